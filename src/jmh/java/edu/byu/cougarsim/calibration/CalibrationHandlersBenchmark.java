@@ -0,0 +1,125 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.EventHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the calibration event handlers on a synthetic event stream. Every benchmark pushes the events of one
+ * iteration through an events manager with one handler set; the <code>events</code> counter reports the events
+ * handled per second. Run with <code>-prof gc</code> for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CalibrationHandlersBenchmark {
+
+    @Param({"10000"})
+    public int agents;
+
+    @Param({"4"})
+    public int tripsPerAgent;
+
+    @Param({"0.2"})
+    public double transitShare;
+
+    @Param({"50"})
+    public int lines;
+
+    private List<Event> events;
+    private EventsManager travelTimeEvents;
+    private EventsManager purposeModeEvents;
+    private EventsManager boardingEvents;
+    private EventsManager allEvents;
+    private TravelTimeCollector travelTimes;
+    private PurposeModeCollector purposeModes;
+    private TransitBoardingsEventHandler boardings;
+    private CalibrationEventHandlers handlers;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class EventCounter {
+        public long events;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            events = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticEventStream stream = new SyntheticEventStream(agents, tripsPerAgent, transitShare, lines, 4711);
+        this.events = stream.events;
+        TripPurposeClassifier classifier = new TripPurposeClassifier(stream.scenario.getConfig());
+        TransitIndex transitIndex = new TransitIndex(stream.scenario);
+
+        travelTimes = new TravelTimeCollector(classifier);
+        TripTracker travelTimeTracker = new TripTracker(classifier, new OpenTripStore(stream.scenario.getPopulation()));
+        travelTimeTracker.addCollector(travelTimes);
+        travelTimeEvents = manager(travelTimeTracker);
+
+        purposeModes = new PurposeModeCollector(classifier);
+        TripTracker purposeModeTracker = new TripTracker(classifier, new OpenTripStore(stream.scenario.getPopulation()));
+        purposeModeTracker.addCollector(purposeModes);
+        purposeModeEvents = manager(purposeModeTracker);
+
+        boardings = new TransitBoardingsEventHandler(transitIndex);
+        boardingEvents = manager(boardings);
+
+        handlers = new CalibrationEventHandlers(stream.scenario, classifier, 1);
+        handlers.addCollector(new TravelTimeCollector(classifier));
+        handlers.addCollector(new PurposeModeCollector(classifier));
+        allEvents = EventsUtils.createEventsManager();
+        handlers.addTo(allEvents);
+    }
+
+    private static EventsManager manager(EventHandler handler) {
+        EventsManager events = EventsUtils.createEventsManager();
+        events.addHandler(handler);
+        return events;
+    }
+
+    private void process(EventsManager manager, EventCounter counter) {
+        manager.resetHandlers(0);
+        manager.initProcessing();
+        for(Event event : events) {
+            manager.processEvent(event);
+        }
+        manager.finishProcessing();
+        counter.events += events.size();
+    }
+
+    @Benchmark
+    public long[][] travelTimeCollector(EventCounter counter) {
+        process(travelTimeEvents, counter);
+        return travelTimes.getTimeBins();
+    }
+
+    @Benchmark
+    public int[][] purposeModeCollector(EventCounter counter) {
+        process(purposeModeEvents, counter);
+        return purposeModes.getPurposeModeCounts();
+    }
+
+    @Benchmark
+    public long transitBoardings(EventCounter counter) {
+        process(boardingEvents, counter);
+        return boardings.getTotalBoardings();
+    }
+
+    @Benchmark
+    public long allHandlers(EventCounter counter) {
+        process(allEvents, counter);
+        handlers.merge(0);
+        return handlers.getBoardings().getTotalBoardings();
+    }
+}
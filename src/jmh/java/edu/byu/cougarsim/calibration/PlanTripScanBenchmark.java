@@ -0,0 +1,79 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.TripRouter;
+import org.matsim.core.router.TripRouterFactoryBuilderWithDefaults;
+import org.openjdk.jmh.annotations.*;
+
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the end-of-iteration plan scan behind <code>collectTripPurposeInfo</code>. Before every scan a share of
+ * the agents switches between two copies of its plan, as replanning would, so the incremental scan has work to do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlanTripScanBenchmark {
+
+    @Param({"100000"})
+    public int agents;
+
+    @Param({"4"})
+    public int tripsPerAgent;
+
+    @Param({"0.1"})
+    public double replannedShare;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    private PlanTripScanner scanner;
+    private List<Person> persons;
+    private final Random random = new Random(4711);
+    private int iteration = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticEventStream stream = new SyntheticEventStream(agents, tripsPerAgent, 0.2, 50, 4711);
+        TripPurposeClassifier classifier = new TripPurposeClassifier(stream.scenario.getConfig());
+        Provider<TripRouter> tripRouters = TripRouterFactoryBuilderWithDefaults.createDefaultTripRouterFactoryImpl(
+                stream.scenario);
+        this.persons = new ArrayList<>(stream.scenario.getPopulation().getPersons().values());
+        for(Person person : persons) {
+            Plan copy = PopulationUtils.createPlan(person);
+            PopulationUtils.copyFromTo(person.getSelectedPlan(), copy);
+            person.addPlan(copy);
+        }
+        this.scanner = new PlanTripScanner(stream.scenario.getPopulation(), classifier, tripRouters, threads, incremental);
+        scanner.scan(iteration++);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scanner.shutdown();
+    }
+
+    @Benchmark
+    public int[][] scan() {
+        int replanned = (int) (replannedShare * persons.size());
+        for(int i = 0; i < replanned; i++) {
+            Person person = persons.get(random.nextInt(persons.size()));
+            List<? extends Plan> plans = person.getPlans();
+            person.setSelectedPlan(plans.get(plans.get(0) == person.getSelectedPlan() ? 1 : 0));
+        }
+        return scanner.scan(iteration++);
+    }
+}
@@ -0,0 +1,184 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.core.api.experimental.events.TransitDriverStartsEvent;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.*;
+
+/**
+ * A synthetic scenario and the events of one iteration for the benchmarks: every agent makes a tour from home
+ * through a number of work, shop and leisure activities back home; a share of the trips uses one of the transit
+ * lines, with walk legs and <code>pt interaction</code> activities as routed transit trips have. The selected plan
+ * of every agent matches its events.
+ */
+final class SyntheticEventStream {
+
+    private static final String[] ACTIVITIES = {"work", "shop", "leisure", "school"};
+    private static final String[] MODES = {TransportMode.car, TransportMode.walk, TransportMode.bike};
+    private static final int DEPARTURES_PER_LINE = 40;
+
+    final Scenario scenario;
+    final List<Event> events = new ArrayList<>();
+
+    SyntheticEventStream(int agents, int tripsPerAgent, double transitShare, int lines, long seed) {
+        Config config = ConfigUtils.createConfig();
+        config.transit().setUseTransit(true);
+        for(String type : new String[]{"home", "work", "shop", "leisure", "school"}) {
+            PlanCalcScoreConfigGroup.ActivityParams params = new PlanCalcScoreConfigGroup.ActivityParams(type);
+            params.setTypicalDuration(4 * 3600);
+            config.planCalcScore().addActivityParams(params);
+        }
+        this.scenario = ScenarioUtils.createScenario(config);
+        Random random = new Random(seed);
+
+        Id<Link> link = createNetwork(scenario.getNetwork());
+        List<Id<Vehicle>> vehicles = createTransit(lines, link);
+        createTransitDriverEvents();
+
+        Population population = scenario.getPopulation();
+        PopulationFactory factory = population.getFactory();
+        for(int agent = 0; agent < agents; agent++) {
+            Person person = factory.createPerson(Id.createPersonId(agent));
+            Plan plan = factory.createPlan();
+            person.addPlan(plan);
+            population.addPerson(person);
+
+            double time = 5 * 3600 + random.nextInt(4 * 3600);
+            String origin = "home";
+            Activity first = factory.createActivityFromLinkId(origin, link);
+            first.setEndTime(time);
+            plan.addActivity(first);
+            for(int trip = 0; trip < tripsPerAgent; trip++) {
+                String destination = trip == tripsPerAgent - 1 ? "home" : ACTIVITIES[random.nextInt(ACTIVITIES.length)];
+                events.add(new ActivityEndEvent(time, person.getId(), link, null, origin));
+                if(random.nextDouble() < transitShare) {
+                    time = transitTrip(plan, person.getId(), link, time, vehicles.get(random.nextInt(vehicles.size())), random);
+                } else {
+                    String mode = MODES[random.nextInt(MODES.length)];
+                    plan.addLeg(factory.createLeg(mode));
+                    events.add(new PersonDepartureEvent(time, person.getId(), link, mode));
+                    time += 120 + random.nextInt(3600);
+                    events.add(new PersonArrivalEvent(time, person.getId(), link, mode));
+                }
+                events.add(new ActivityStartEvent(time, person.getId(), link, null, destination));
+                Activity activity = factory.createActivityFromLinkId(destination, link);
+                time += 900 + random.nextInt(3 * 3600);
+                activity.setEndTime(time);
+                plan.addActivity(activity);
+                origin = destination;
+            }
+        }
+        events.sort(Comparator.comparingDouble(Event::getTime));
+    }
+
+    private double transitTrip(Plan plan, Id<Person> person, Id<Link> link, double time, Id<Vehicle> vehicle,
+                               Random random) {
+        PopulationFactory factory = scenario.getPopulation().getFactory();
+        plan.addLeg(factory.createLeg(TransportMode.transit_walk));
+        events.add(new PersonDepartureEvent(time, person, link, TransportMode.transit_walk));
+        time += 60 + random.nextInt(600);
+        events.add(new PersonArrivalEvent(time, person, link, TransportMode.transit_walk));
+        interaction(plan, person, link, time);
+        plan.addLeg(factory.createLeg(TransportMode.pt));
+        events.add(new PersonDepartureEvent(time, person, link, TransportMode.pt));
+        time += random.nextInt(900);
+        events.add(new PersonEntersVehicleEvent(time, person, vehicle));
+        time += 300 + random.nextInt(2400);
+        events.add(new PersonLeavesVehicleEvent(time, person, vehicle));
+        events.add(new PersonArrivalEvent(time, person, link, TransportMode.pt));
+        interaction(plan, person, link, time);
+        plan.addLeg(factory.createLeg(TransportMode.transit_walk));
+        events.add(new PersonDepartureEvent(time, person, link, TransportMode.transit_walk));
+        time += 60 + random.nextInt(600);
+        events.add(new PersonArrivalEvent(time, person, link, TransportMode.transit_walk));
+        return time;
+    }
+
+    private void interaction(Plan plan, Id<Person> person, Id<Link> link, double time) {
+        Activity interaction = scenario.getPopulation().getFactory().createActivityFromLinkId("pt interaction", link);
+        interaction.setMaximumDuration(0);
+        plan.addActivity(interaction);
+        events.add(new ActivityStartEvent(time, person, link, null, "pt interaction"));
+        events.add(new ActivityEndEvent(time, person, link, null, "pt interaction"));
+    }
+
+    private static Id<Link> createNetwork(Network network) {
+        Node from = network.getFactory().createNode(Id.createNodeId("1"), new Coord(0, 0));
+        Node to = network.getFactory().createNode(Id.createNodeId("2"), new Coord(1000, 0));
+        network.addNode(from);
+        network.addNode(to);
+        Link link = network.getFactory().createLink(Id.createLinkId("1"), from, to);
+        network.addLink(link);
+        return link.getId();
+    }
+
+    /**
+     * One route with {@link #DEPARTURES_PER_LINE} departures per line, every departure with its own vehicle.
+     */
+    private List<Id<Vehicle>> createTransit(int lines, Id<Link> link) {
+        Vehicles transitVehicles = scenario.getTransitVehicles();
+        VehicleType bus = transitVehicles.getFactory().createVehicleType(Id.create("bus", VehicleType.class));
+        transitVehicles.addVehicleType(bus);
+
+        TransitSchedule schedule = scenario.getTransitSchedule();
+        TransitScheduleFactory factory = schedule.getFactory();
+        List<Id<Vehicle>> vehicles = new ArrayList<>();
+        for(int line = 0; line < lines; line++) {
+            TransitStopFacility stop = factory.createTransitStopFacility(Id.create("stop_" + line, TransitStopFacility.class),
+                    new Coord(0, 0), false);
+            stop.setLinkId(link);
+            schedule.addStopFacility(stop);
+            TransitRoute route = factory.createTransitRoute(Id.create("route_" + line, TransitRoute.class),
+                    RouteUtils.createLinkNetworkRouteImpl(link, link),
+                    Collections.singletonList(factory.createTransitRouteStop(stop, 0, 0)), "bus");
+            for(int departure = 0; departure < DEPARTURES_PER_LINE; departure++) {
+                Vehicle vehicle = transitVehicles.getFactory().createVehicle(
+                        Id.createVehicleId("bus_" + line + "_" + departure), bus);
+                transitVehicles.addVehicle(vehicle);
+                vehicles.add(vehicle.getId());
+                Departure scheduled = factory.createDeparture(Id.create(departure, Departure.class),
+                        5 * 3600 + departure * 900);
+                scheduled.setVehicleId(vehicle.getId());
+                route.addDeparture(scheduled);
+            }
+            TransitLine transitLine = factory.createTransitLine(Id.create("line_" + line, TransitLine.class));
+            transitLine.addRoute(route);
+            schedule.addTransitLine(transitLine);
+        }
+        return vehicles;
+    }
+
+    private void createTransitDriverEvents() {
+        for(TransitLine line : scenario.getTransitSchedule().getTransitLines().values()) {
+            for(TransitRoute route : line.getRoutes().values()) {
+                for(Departure departure : route.getDepartures().values()) {
+                    double time = departure.getDepartureTime();
+                    Id<Person> driver = Id.createPersonId("pt_" + departure.getVehicleId());
+                    events.add(new TransitDriverStartsEvent(time, driver, departure.getVehicleId(), line.getId(),
+                            route.getId(), departure.getId()));
+                    events.add(new PersonEntersVehicleEvent(time, driver, departure.getVehicleId()));
+                    events.add(new VehicleArrivesAtFacilityEvent(time, departure.getVehicleId(),
+                            route.getStops().get(0).getStopFacility().getId(), 0));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package edu.byu.cougarsim.calibration;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationWriter;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The state of a calibration run after an iteration, from which a later run can start instead of from the input
+ * plans: the plans of all persons with their scores and selected plan, the mode constants of every subpopulation,
+ * the purpose-specific mode constants of the solver and the trips by purpose and mode of the iteration.
+ *
+ * A checkpoint is a directory <code>it.N</code>; its <code>checkpoint.properties</code> is written last, so a
+ * directory without it is incomplete and ignored. Constants are stored by mode and purpose name, so a checkpoint
+ * stays valid when the codes of the classifier change.
+ */
+public class CalibrationCheckpoint {
+    private static final Logger log = Logger.getLogger(CalibrationCheckpoint.class);
+
+    private static final String FILENAME_PROPERTIES = "checkpoint.properties";
+    private static final String FILENAME_PLANS = "plans.xml.gz";
+    private static final String FILENAME_MODE_CONSTANTS = "mode_constants.csv";
+    private static final String FILENAME_PURPOSEMODE_CONSTANTS = "purpose_mode_constants.csv";
+    private static final String FILENAME_PURPOSEMODES = "trips_by_purpose_and_mode.csv";
+    private static final String PREFIX = "it.";
+    private static final String ITERATION = "iteration";
+
+    private final File directory;
+    private final int iteration;
+    // subpopulation (empty for the default) -> mode -> constant
+    private final Map<String, Map<String, Double>> modeConstants = new LinkedHashMap<>();
+    // purpose -> mode -> constant
+    private final Map<String, Map<String, Double>> purposeModeConstants = new LinkedHashMap<>();
+
+    private CalibrationCheckpoint(File directory, int iteration) {
+        this.directory = directory;
+        this.iteration = iteration;
+    }
+
+    /**
+     * Write a checkpoint into <code>it.N</code> of a directory.
+     * @param parent the checkpoint directory of the run
+     * @param iteration
+     * @param population
+     * @param network
+     * @param scoring the scoring config, holding the current mode constants
+     * @param classifier
+     * @param purposeModeConstants the constants of the solver indexed by purpose and mode code, may be empty
+     * @param tripPurpose the trips of the iteration indexed by purpose and mode code
+     * @return the checkpoint directory
+     * @throws IOException
+     */
+    public static File write(File parent, int iteration, Population population, Network network,
+                             PlanCalcScoreConfigGroup scoring, TripPurposeClassifier classifier,
+                             double[][] purposeModeConstants, int[][] tripPurpose) throws IOException {
+        File directory = new File(parent, PREFIX + iteration);
+        directory.mkdirs();
+        new File(directory, FILENAME_PROPERTIES).delete();
+
+        new PopulationWriter(population, network).write(new File(directory, FILENAME_PLANS).getPath());
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(directory, FILENAME_MODE_CONSTANTS)))) {
+            writer.write("Subpopulation, Mode, Constant\n");
+            for(Map.Entry<String, PlanCalcScoreConfigGroup.ScoringParameterSet> entry :
+                    scoring.getScoringParametersPerSubpopulation().entrySet()) {
+                String subpopulation = entry.getKey() == null ? "" : entry.getKey();
+                for(PlanCalcScoreConfigGroup.ModeParams modeParams : entry.getValue().getModes().values()) {
+                    writer.write(subpopulation + ", " + modeParams.getMode() + ", " + modeParams.getConstant() + "\n");
+                }
+            }
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(
+                new File(directory, FILENAME_PURPOSEMODE_CONSTANTS)))) {
+            writer.write("Purpose, Mode, Constant\n");
+            for(int purpose = 0; purpose < purposeModeConstants.length; purpose++) {
+                for(int mode = 0; mode < purposeModeConstants[purpose].length; mode++) {
+                    if(purposeModeConstants[purpose][mode] == 0.0) continue;
+                    writer.write(classifier.getPurposeName(purpose) + ", " + classifier.getModeName(mode) + ", " +
+                            purposeModeConstants[purpose][mode] + "\n");
+                }
+            }
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(directory, FILENAME_PURPOSEMODES)))) {
+            writer.write("Purpose, Mode, Trips\n");
+            for(int purpose = 0; purpose < tripPurpose.length; purpose++) {
+                for(int mode = 0; mode < tripPurpose[purpose].length; mode++) {
+                    writer.write(classifier.getPurposeName(purpose) + ", " + classifier.getModeName(mode) + ", " +
+                            tripPurpose[purpose][mode] + "\n");
+                }
+            }
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(ITERATION, Integer.toString(iteration));
+        try (Writer writer = new FileWriter(new File(directory, FILENAME_PROPERTIES))) {
+            properties.store(writer, "Calibration checkpoint");
+        }
+        return directory;
+    }
+
+    /**
+     * Read a checkpoint, or the latest complete checkpoint in a checkpoint directory.
+     * @param file a checkpoint or a directory of checkpoints
+     * @return
+     * @throws IOException if there is no complete checkpoint
+     */
+    public static CalibrationCheckpoint readLatest(File file) throws IOException {
+        File latest = new File(file, FILENAME_PROPERTIES).exists() ? file : null;
+        int latestIteration = -1;
+        File[] children = latest == null ? file.listFiles() : null;
+        if(children != null) {
+            for(File child : children) {
+                if(!child.getName().startsWith(PREFIX) || !new File(child, FILENAME_PROPERTIES).exists()) continue;
+                try {
+                    int iteration = Integer.parseInt(child.getName().substring(PREFIX.length()));
+                    if(iteration > latestIteration) {
+                        latest = child;
+                        latestIteration = iteration;
+                    }
+                } catch (NumberFormatException e) {
+                    // not a checkpoint
+                }
+            }
+        }
+        if(latest == null) throw new FileNotFoundException("No complete calibration checkpoint in " + file);
+        return read(latest);
+    }
+
+    private static CalibrationCheckpoint read(File directory) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(new File(directory, FILENAME_PROPERTIES))) {
+            properties.load(reader);
+        }
+        CalibrationCheckpoint checkpoint = new CalibrationCheckpoint(directory,
+                Integer.parseInt(properties.getProperty(ITERATION)));
+        readConstants(new File(directory, FILENAME_MODE_CONSTANTS), checkpoint.modeConstants);
+        readConstants(new File(directory, FILENAME_PURPOSEMODE_CONSTANTS), checkpoint.purposeModeConstants);
+        log.info("Read the calibration checkpoint of iteration " + checkpoint.iteration + " from " + directory);
+        return checkpoint;
+    }
+
+    private static void readConstants(File file, Map<String, Map<String, Double>> constants) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split(",", -1);
+                if(fields.length < 3) continue;
+                constants.computeIfAbsent(fields[0].trim(), key -> new LinkedHashMap<>())
+                        .put(fields[1].trim(), Double.parseDouble(fields[2].trim()));
+            }
+        }
+    }
+
+    /**
+     * Start a run from the checkpoint: read the plans of the checkpoint instead of the input plans, and set the mode
+     * constants of the checkpoint. Must be called before the scenario is loaded.
+     * @param config
+     */
+    public void applyTo(Config config) {
+        config.plans().setInputFile(new File(directory, FILENAME_PLANS).getAbsolutePath());
+        PlanCalcScoreConfigGroup scoring = config.planCalcScore();
+        for(Map.Entry<String, Map<String, Double>> entry : modeConstants.entrySet()) {
+            String subpopulation = entry.getKey().isEmpty() ? null : entry.getKey();
+            PlanCalcScoreConfigGroup.ScoringParameterSet parameterSet =
+                    scoring.getScoringParametersPerSubpopulation().get(subpopulation);
+            if(parameterSet == null) {
+                log.warn("The config has no scoring parameters for subpopulation " + entry.getKey() +
+                        " of the checkpoint, not setting its constants");
+                continue;
+            }
+            for(Map.Entry<String, Double> constant : entry.getValue().entrySet()) {
+                parameterSet.getOrCreateModeParams(constant.getKey()).setConstant(constant.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param classifier
+     * @return the purpose-specific mode constants of the checkpoint indexed by purpose and mode code; purposes
+     * unknown to the classifier are dropped
+     */
+    public double[][] getPurposeModeConstants(TripPurposeClassifier classifier) {
+        double[][] constants = new double[classifier.getNumberOfPurposes()][];
+        for(int purpose = 0; purpose < constants.length; purpose++) {
+            constants[purpose] = new double[classifier.getNumberOfModes()];
+        }
+        for(Map.Entry<String, Map<String, Double>> entry : purposeModeConstants.entrySet()) {
+            int purpose = classifier.getPurposeCode(entry.getKey());
+            if(purpose < 0) continue;
+            for(Map.Entry<String, Double> constant : entry.getValue().entrySet()) {
+                int mode = classifier.getModeCode(constant.getKey());
+                if(mode >= constants[purpose].length) {
+                    constants[purpose] = Arrays.copyOf(constants[purpose], mode + 1);
+                }
+                constants[purpose][mode] = constant.getValue();
+            }
+        }
+        return constants;
+    }
+
+    public boolean hasPurposeModeConstants() {
+        return !purposeModeConstants.isEmpty();
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+}
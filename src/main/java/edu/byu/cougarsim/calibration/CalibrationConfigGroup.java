@@ -0,0 +1,441 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.core.config.ReflectiveConfigGroup;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Config group holding the settings of the calibration listener and its event handlers.
+ * All parameters have defaults that reproduce the behavior of the original hard-coded calibration code,
+ * so a config file without a <code>calibration</code> module works as before.
+ */
+public class CalibrationConfigGroup extends ReflectiveConfigGroup {
+
+    public static final String GROUP_NAME = "calibration";
+
+    private static final String TRIP_PURPOSE_RULES = "tripPurposeRules";
+    private static final String DEFAULT_TRIP_PURPOSE = "defaultTripPurpose";
+    private static final String OPEN_TRIP_STORAGE = "openTripStorage";
+    private static final String TRAVEL_TIME_BINS = "travelTimeBins";
+    private static final String EVENT_HANDLER_PARTITIONS = "eventHandlerPartitions";
+    private static final String INCREMENTAL_PLAN_SCAN = "incrementalPlanScan";
+    private static final String CONSTANT_UPDATE_INTERVAL = "constantUpdateInterval";
+    private static final String CONSTANT_UPDATE_STEP_SIZE = "constantUpdateStepSize";
+    private static final String MODE_SHARE_TARGETS = "modeShareTargets";
+    private static final String CONSTANT_SOLVER = "constantSolver";
+    private static final String MAX_CONSTANT_STEP = "maxConstantStep";
+    private static final String TRIP_LOG_INTERVAL = "tripLogInterval";
+    private static final String INSTRUMENTATION = "instrumentation";
+    private static final String INSTRUMENTATION_SAMPLE_INTERVAL = "instrumentationSampleInterval";
+    private static final String COUNTS_FILE = "countsFile";
+    private static final String COUNTS_SCALE_FACTOR = "countsScaleFactor";
+    private static final String OD_ZONES = "odZones";
+    private static final String DISTANCE_BINS = "distanceBins";
+    private static final String SCENARIO_SNAPSHOT_DIRECTORY = "scenarioSnapshotDirectory";
+    private static final String CHECKPOINT_INTERVAL = "checkpointInterval";
+    private static final String CHECKPOINT_DIRECTORY = "checkpointDirectory";
+    private static final String BOARDINGS_SCALE_FACTOR = "boardingsScaleFactor";
+    private static final String CALIBRATION_STAGES = "calibrationStages";
+    private static final String CONVERGENCE_WINDOW = "convergenceWindow";
+    private static final String CONVERGENCE_SHARE_TOLERANCE = "convergenceShareTolerance";
+    private static final String CONVERGENCE_BOARDINGS_TOLERANCE = "convergenceBoardingsTolerance";
+    private static final String CONVERGENCE_OBJECTIVE_TOLERANCE = "convergenceObjectiveTolerance";
+    private static final String TRANSIT_LOAD_PROFILES = "transitLoadProfiles";
+
+    public enum OpenTripStorage {population, dynamic}
+
+    public enum ConstantSolver {logShare, broyden}
+
+    private String tripPurposeRules = "hbw:home-work,work-home;hbo:home-*,*-home";
+    private String defaultTripPurpose = "nhb";
+    private OpenTripStorage openTripStorage = OpenTripStorage.population;
+    private String travelTimeBins = "uniform:20:5";
+    private int eventHandlerPartitions = 1;
+    private boolean incrementalPlanScan = false;
+    private int constantUpdateInterval = 0;
+    private double constantUpdateStepSize = 0.5;
+    private String modeShareTargets = "";
+    private ConstantSolver constantSolver = ConstantSolver.logShare;
+    private double maxConstantStep = 1.0;
+    private int tripLogInterval = 0;
+    private boolean instrumentation = false;
+    private int instrumentationSampleInterval = 64;
+    private String countsFile = "";
+    private double countsScaleFactor = 1.0;
+    private String odZones = "";
+    private String distanceBins = "";
+    private String scenarioSnapshotDirectory = "";
+    private int checkpointInterval = 0;
+    private String checkpointDirectory = "";
+    private double boardingsScaleFactor = 1.0;
+    private String calibrationStages = "";
+    private int convergenceWindow = 0;
+    private double convergenceShareTolerance = 0.005;
+    private double convergenceBoardingsTolerance = 0.02;
+    private double convergenceObjectiveTolerance = 0.002;
+    private boolean transitLoadProfiles = false;
+
+    public CalibrationConfigGroup() {
+        super(GROUP_NAME);
+    }
+
+    @Override
+    public Map<String, String> getComments() {
+        Map<String, String> comments = super.getComments();
+        comments.put(TRIP_PURPOSE_RULES, "Ordered trip purpose rules, 'purpose:origin-destination,origin-destination;purpose:...'. " +
+                "Activity types may be '*' (any type) or end with '*' (prefix match). The first matching rule wins, e.g. " +
+                "'hbw:home-work,work-home;hbsch:home-school,school-home;hbshp:home-shop,shop-home;hbesc:home-escort,escort-home;hbo:home-*,*-home'");
+        comments.put(DEFAULT_TRIP_PURPOSE, "Purpose assigned to trips that match none of the rules.");
+        comments.put(OPEN_TRIP_STORAGE, "How the trip tracker stores open trips. 'population' sizes primitive arrays from the " +
+                "population at startup and ignores other persons; 'dynamic' grows them as persons appear, for event " +
+                "streams without a matching population. Options: " + Arrays.toString(OpenTripStorage.values()));
+        comments.put(TRAVEL_TIME_BINS, "Travel time bins in minutes: 'uniform:size:width', 'log:size:min:max' or " +
+                "'edges:e0,e1,...' with increasing lower edges. Longer trips are counted in the last bin.");
+        comments.put(EVENT_HANDLER_PARTITIONS, "Number of person partitions of the calibration event handlers. With " +
+                "parallel event handling, set this to parallelEventHandling.numberOfThreads so every thread gets a " +
+                "partition. Results do not depend on the number of partitions.");
+        comments.put(INCREMENTAL_PLAN_SCAN, "If true, the trips of the selected plans are only re-derived for persons " +
+                "whose selected plan changed since the last iteration. Only safe with strategies that select or create " +
+                "plans instead of editing the selected plan in place.");
+        comments.put(CONSTANT_UPDATE_INTERVAL, "Update the mode constants every this many iterations during the run " +
+                "and write them to planCalcScore, so the following iterations are scored with them. 0 only computes " +
+                "the updated constants at shutdown.");
+        comments.put(CONSTANT_UPDATE_STEP_SIZE, "Fraction of the log-share correction applied by an update during " +
+                "the run, between 0 and 1. Smaller values damp oscillations of the mode shares.");
+        comments.put(MODE_SHARE_TARGETS, "Target mode shares by trip purpose, 'purpose:mode=share,mode=share;purpose:...', " +
+                "e.g. 'hbw:car=0.8,pt=0.2;hbo:car=0.85,pt=0.1,walk=0.05'. The first mode of a purpose is its reference " +
+                "mode. The hbw targets replace the default targets of the logShare update.");
+        comments.put(CONSTANT_SOLVER, "How the constants are updated during the run. 'logShare' updates the " +
+                "planCalcScore mode constants from the hbw shares; 'broyden' solves purpose-specific mode constants " +
+                "for all purposes with targets, which are added to the score of every trip. Options: " +
+                Arrays.toString(ConstantSolver.values()));
+        comments.put(MAX_CONSTANT_STEP, "Largest change of a purpose-specific mode constant in one broyden update.");
+        comments.put(TRIP_LOG_INTERVAL, "Write the completed trips of every this many iterations (and of the last one) " +
+                "to a binary trip log, ITERS/it.N/N.trips.bin. Trips are only collected in these iterations, so a " +
+                "run ended early by convergence has no log of its last iteration unless it was due. 0 writes no " +
+                "trip logs.");
+        comments.put(INSTRUMENTATION, "If true, the calibration event handlers and the phases of the listener are " +
+                "timed and counted. The figures are written to calibration_perf.csv every iteration and published as " +
+                "a JMX MBean. If false, the handlers are not instrumented at all.");
+        comments.put(INSTRUMENTATION_SAMPLE_INTERVAL, "With instrumentation, time the handling of every this many " +
+                "events per handler. Every event is counted.");
+        comments.put(COUNTS_FILE, "Traffic counts file (counts_v1) to compare the simulated hourly link volumes " +
+                "with every iteration, relative to the config file. Empty compares no counts.");
+        comments.put(COUNTS_SCALE_FACTOR, "Factor from simulated vehicles to counted vehicles, e.g. 10 for a 10% sample.");
+        comments.put(OD_ZONES, "Zones of the origin-destination matrix written every iteration: 'grid:size' " +
+                "for square cells of size meters, or a CSV file of 'link,zone' rows relative to the config file. " +
+                "Empty writes no matrix.");
+        comments.put(DISTANCE_BINS, "Trip distance bins in kilometers, in the format of travelTimeBins, e.g. " +
+                "'log:20:0.5:200'. The distances of vehicle legs are measured on the network from the link events. " +
+                "Empty measures no distances.");
+        comments.put(SCENARIO_SNAPSHOT_DIRECTORY, "Directory of binary snapshots of the parsed scenario, keyed by the " +
+                "SHA-256 of the input files. The first run with the inputs writes a snapshot, later runs load it instead " +
+                "of parsing the XML. Runs resuming from a checkpoint parse its plans. Empty disables the " +
+                "cache.");
+        comments.put(CHECKPOINT_INTERVAL, "Write a checkpoint every n iterations and after the last one, from which " +
+                "RunMatsim can start a later run. 0 writes no checkpoints.");
+        comments.put(CHECKPOINT_DIRECTORY, "Directory of the checkpoints. Empty uses 'checkpoints' in the output " +
+                "directory, which is deleted when a later run writes to the same output directory.");
+        comments.put(BOARDINGS_SCALE_FACTOR, "The factor from simulated to real transit boardings, e.g. 10 for a 10% " +
+                "population sample. Applied to the written boardings.");
+        comments.put(CALIBRATION_STAGES, "Stages of a multi-fidelity calibration run by RunMatsim, " +
+                "'fraction:iterations,...' with growing population sample fractions, e.g. '0.01:40,0.1:15,1:5'. Every " +
+                "stage runs on a stratified sample with scaled capacities and expansion factors and starts from the " +
+                "constants of the stage before, which needs a constantUpdateInterval. Empty runs once on the full " +
+                "population.");
+        comments.put(CONVERGENCE_WINDOW, "End the run early once the mode shares, the total transit boardings and " +
+                "the largest mode share difference to the targets have stayed within their tolerances for this many " +
+                "iterations; the final outputs are written as after the last iteration. 0 runs all iterations.");
+        comments.put(CONVERGENCE_SHARE_TOLERANCE, "Largest change of a mode share within a purpose over the " +
+                "convergence window.");
+        comments.put(CONVERGENCE_BOARDINGS_TOLERANCE, "Largest change of the total transit boardings over the " +
+                "convergence window, relative to their mean.");
+        comments.put(CONVERGENCE_OBJECTIVE_TOLERANCE, "Largest change of the largest mode share difference to the " +
+                "targets over the convergence window.");
+        comments.put(TRANSIT_LOAD_PROFILES, "If true, the on-board loads of the transit vehicles are collected by " +
+                "route segment and hour and written to transitroute_loads.csv at the end of the run, with the " +
+                "passenger-kilometers by line every iteration.");
+        return comments;
+    }
+
+    @StringGetter(TRIP_PURPOSE_RULES)
+    public String getTripPurposeRules() {
+        return tripPurposeRules;
+    }
+
+    @StringSetter(TRIP_PURPOSE_RULES)
+    public void setTripPurposeRules(String tripPurposeRules) {
+        this.tripPurposeRules = tripPurposeRules;
+    }
+
+    @StringGetter(DEFAULT_TRIP_PURPOSE)
+    public String getDefaultTripPurpose() {
+        return defaultTripPurpose;
+    }
+
+    @StringSetter(DEFAULT_TRIP_PURPOSE)
+    public void setDefaultTripPurpose(String defaultTripPurpose) {
+        this.defaultTripPurpose = defaultTripPurpose;
+    }
+
+    @StringGetter(OPEN_TRIP_STORAGE)
+    public OpenTripStorage getOpenTripStorage() {
+        return openTripStorage;
+    }
+
+    @StringSetter(OPEN_TRIP_STORAGE)
+    public void setOpenTripStorage(OpenTripStorage openTripStorage) {
+        this.openTripStorage = openTripStorage;
+    }
+
+    @StringGetter(TRAVEL_TIME_BINS)
+    public String getTravelTimeBins() {
+        return travelTimeBins;
+    }
+
+    @StringSetter(TRAVEL_TIME_BINS)
+    public void setTravelTimeBins(String travelTimeBins) {
+        this.travelTimeBins = travelTimeBins;
+    }
+
+    @StringGetter(EVENT_HANDLER_PARTITIONS)
+    public int getEventHandlerPartitions() {
+        return eventHandlerPartitions;
+    }
+
+    @StringSetter(EVENT_HANDLER_PARTITIONS)
+    public void setEventHandlerPartitions(int eventHandlerPartitions) {
+        this.eventHandlerPartitions = eventHandlerPartitions;
+    }
+
+    @StringGetter(INCREMENTAL_PLAN_SCAN)
+    public boolean isIncrementalPlanScan() {
+        return incrementalPlanScan;
+    }
+
+    @StringSetter(INCREMENTAL_PLAN_SCAN)
+    public void setIncrementalPlanScan(boolean incrementalPlanScan) {
+        this.incrementalPlanScan = incrementalPlanScan;
+    }
+
+    @StringGetter(CONSTANT_UPDATE_INTERVAL)
+    public int getConstantUpdateInterval() {
+        return constantUpdateInterval;
+    }
+
+    @StringSetter(CONSTANT_UPDATE_INTERVAL)
+    public void setConstantUpdateInterval(int constantUpdateInterval) {
+        this.constantUpdateInterval = constantUpdateInterval;
+    }
+
+    @StringGetter(CONSTANT_UPDATE_STEP_SIZE)
+    public double getConstantUpdateStepSize() {
+        return constantUpdateStepSize;
+    }
+
+    @StringSetter(CONSTANT_UPDATE_STEP_SIZE)
+    public void setConstantUpdateStepSize(double constantUpdateStepSize) {
+        this.constantUpdateStepSize = constantUpdateStepSize;
+    }
+
+    @StringGetter(MODE_SHARE_TARGETS)
+    public String getModeShareTargets() {
+        return modeShareTargets;
+    }
+
+    @StringSetter(MODE_SHARE_TARGETS)
+    public void setModeShareTargets(String modeShareTargets) {
+        this.modeShareTargets = modeShareTargets;
+    }
+
+    @StringGetter(CONSTANT_SOLVER)
+    public ConstantSolver getConstantSolver() {
+        return constantSolver;
+    }
+
+    @StringSetter(CONSTANT_SOLVER)
+    public void setConstantSolver(ConstantSolver constantSolver) {
+        this.constantSolver = constantSolver;
+    }
+
+    @StringGetter(MAX_CONSTANT_STEP)
+    public double getMaxConstantStep() {
+        return maxConstantStep;
+    }
+
+    @StringSetter(MAX_CONSTANT_STEP)
+    public void setMaxConstantStep(double maxConstantStep) {
+        this.maxConstantStep = maxConstantStep;
+    }
+
+    @StringGetter(TRIP_LOG_INTERVAL)
+    public int getTripLogInterval() {
+        return tripLogInterval;
+    }
+
+    @StringSetter(TRIP_LOG_INTERVAL)
+    public void setTripLogInterval(int tripLogInterval) {
+        this.tripLogInterval = tripLogInterval;
+    }
+
+    @StringGetter(INSTRUMENTATION)
+    public boolean isInstrumentation() {
+        return instrumentation;
+    }
+
+    @StringSetter(INSTRUMENTATION)
+    public void setInstrumentation(boolean instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    @StringGetter(INSTRUMENTATION_SAMPLE_INTERVAL)
+    public int getInstrumentationSampleInterval() {
+        return instrumentationSampleInterval;
+    }
+
+    @StringSetter(INSTRUMENTATION_SAMPLE_INTERVAL)
+    public void setInstrumentationSampleInterval(int instrumentationSampleInterval) {
+        this.instrumentationSampleInterval = instrumentationSampleInterval;
+    }
+
+    @StringGetter(COUNTS_FILE)
+    public String getCountsFile() {
+        return countsFile;
+    }
+
+    @StringSetter(COUNTS_FILE)
+    public void setCountsFile(String countsFile) {
+        this.countsFile = countsFile;
+    }
+
+    @StringGetter(COUNTS_SCALE_FACTOR)
+    public double getCountsScaleFactor() {
+        return countsScaleFactor;
+    }
+
+    @StringSetter(COUNTS_SCALE_FACTOR)
+    public void setCountsScaleFactor(double countsScaleFactor) {
+        this.countsScaleFactor = countsScaleFactor;
+    }
+
+    @StringGetter(OD_ZONES)
+    public String getOdZones() {
+        return odZones;
+    }
+
+    @StringSetter(OD_ZONES)
+    public void setOdZones(String odZones) {
+        this.odZones = odZones;
+    }
+
+    @StringGetter(DISTANCE_BINS)
+    public String getDistanceBins() {
+        return distanceBins;
+    }
+
+    @StringSetter(DISTANCE_BINS)
+    public void setDistanceBins(String distanceBins) {
+        this.distanceBins = distanceBins;
+    }
+
+    @StringGetter(SCENARIO_SNAPSHOT_DIRECTORY)
+    public String getScenarioSnapshotDirectory() {
+        return scenarioSnapshotDirectory;
+    }
+
+    @StringSetter(SCENARIO_SNAPSHOT_DIRECTORY)
+    public void setScenarioSnapshotDirectory(String scenarioSnapshotDirectory) {
+        this.scenarioSnapshotDirectory = scenarioSnapshotDirectory;
+    }
+
+    @StringGetter(CHECKPOINT_INTERVAL)
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    @StringSetter(CHECKPOINT_INTERVAL)
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    @StringGetter(CHECKPOINT_DIRECTORY)
+    public String getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    @StringSetter(CHECKPOINT_DIRECTORY)
+    public void setCheckpointDirectory(String checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    @StringGetter(BOARDINGS_SCALE_FACTOR)
+    public double getBoardingsScaleFactor() {
+        return boardingsScaleFactor;
+    }
+
+    @StringSetter(BOARDINGS_SCALE_FACTOR)
+    public void setBoardingsScaleFactor(double boardingsScaleFactor) {
+        this.boardingsScaleFactor = boardingsScaleFactor;
+    }
+
+    @StringGetter(CALIBRATION_STAGES)
+    public String getCalibrationStages() {
+        return calibrationStages;
+    }
+
+    @StringSetter(CALIBRATION_STAGES)
+    public void setCalibrationStages(String calibrationStages) {
+        this.calibrationStages = calibrationStages;
+    }
+
+    @StringGetter(CONVERGENCE_WINDOW)
+    public int getConvergenceWindow() {
+        return convergenceWindow;
+    }
+
+    @StringSetter(CONVERGENCE_WINDOW)
+    public void setConvergenceWindow(int convergenceWindow) {
+        this.convergenceWindow = convergenceWindow;
+    }
+
+    @StringGetter(CONVERGENCE_SHARE_TOLERANCE)
+    public double getConvergenceShareTolerance() {
+        return convergenceShareTolerance;
+    }
+
+    @StringSetter(CONVERGENCE_SHARE_TOLERANCE)
+    public void setConvergenceShareTolerance(double convergenceShareTolerance) {
+        this.convergenceShareTolerance = convergenceShareTolerance;
+    }
+
+    @StringGetter(CONVERGENCE_BOARDINGS_TOLERANCE)
+    public double getConvergenceBoardingsTolerance() {
+        return convergenceBoardingsTolerance;
+    }
+
+    @StringSetter(CONVERGENCE_BOARDINGS_TOLERANCE)
+    public void setConvergenceBoardingsTolerance(double convergenceBoardingsTolerance) {
+        this.convergenceBoardingsTolerance = convergenceBoardingsTolerance;
+    }
+
+    @StringGetter(CONVERGENCE_OBJECTIVE_TOLERANCE)
+    public double getConvergenceObjectiveTolerance() {
+        return convergenceObjectiveTolerance;
+    }
+
+    @StringSetter(CONVERGENCE_OBJECTIVE_TOLERANCE)
+    public void setConvergenceObjectiveTolerance(double convergenceObjectiveTolerance) {
+        this.convergenceObjectiveTolerance = convergenceObjectiveTolerance;
+    }
+
+    @StringGetter(TRANSIT_LOAD_PROFILES)
+    public boolean isTransitLoadProfiles() {
+        return transitLoadProfiles;
+    }
+
+    @StringSetter(TRANSIT_LOAD_PROFILES)
+    public void setTransitLoadProfiles(boolean transitLoadProfiles) {
+        this.transitLoadProfiles = transitLoadProfiles;
+    }
+}
@@ -4,55 +4,90 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.*;
 import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.config.groups.ControlerConfigGroup;
 import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.AfterMobsimEvent;
+import org.matsim.core.controler.events.BeforeMobsimEvent;
 import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
 import org.matsim.core.controler.events.ShutdownEvent;
 import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.controler.listener.AfterMobsimListener;
+import org.matsim.core.controler.listener.BeforeMobsimListener;
 import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
 import org.matsim.core.controler.listener.ShutdownListener;
 import org.matsim.core.controler.listener.StartupListener;
-import org.matsim.core.router.*;
-import org.matsim.core.utils.io.IOUtils;
-import sun.nio.ch.IOUtil;
+import org.matsim.core.router.TripRouter;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
+import javax.inject.Singleton;
 import java.io.*;
+import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-public class CalibrationControlerListener implements StartupListener, IterationEndsListener, ShutdownListener {
+@Singleton
+public class CalibrationControlerListener implements StartupListener, IterationStartsListener, BeforeMobsimListener,
+        AfterMobsimListener, IterationEndsListener, ShutdownListener {
 
-    @Inject
     private TransitBoardingsEventHandler eventHandler;
 
-    @Inject
-    private TravelTimeEventHandler timeEventHandler;
-
-    @Inject
-    private ModePurposeEventHandler modePurposeEventHandler;
+    private CalibrationEventHandlers handlers;
+    private TravelTimeCollector travelTimeCollector;
+    private PurposeModeCollector purposeModeCollector;
+    private TripLogCollector tripLogCollector;
+    private int tripLogInterval;
+    private LinkCountsCollector linkCounts;
+    private OdMatrixCollector odMatrixCollector;
+    private DistanceCollector distanceCollector;
+    private TransitLoadCollector transitLoadCollector;
 
     @Inject
     EventsManager events;
 
     private static final String FILENAME_COEFFICIENTVALUES = "coefficient_values.csv";
     private static final String FILENAME_HBWFILE = "hbw_modeshare.csv";
-    private static final String FILENAME_BOARDINGS = "transitline_boardings.csv";
-    private static final String FILENAME_TIMEBINS = "timebins.csv";
-    private static final String FILENAME_PURPOSEMODES = "trips_by_purpose_and_mode.csv";
-    private BufferedWriter hbwOut;
-    private BufferedWriter constantsOut;
-    private String constantsFileName;
-    private String hbwFileName;
+    public static final String FILENAME_BOARDINGS = "transitline_boardings.csv";
+    public static final String FILENAME_ROUTE_BOARDINGS = "transitroute_boardings.csv";
+    public static final String FILENAME_DEPARTURE_BOARDINGS = "transitdeparture_boardings.csv";
+    public static final String FILENAME_STOP_RIDERSHIP = "transitstop_ridership.csv";
+    public static final String FILENAME_TIMEBINS = "timebins.csv";
+    public static final String FILENAME_DISTANCEBINS = "distancebins.csv";
+    public static final String FILENAME_TRANSIT_LOADS = "transitroute_loads.csv";
+    public static final String FILENAME_PURPOSEMODES = "trips_by_purpose_and_mode.csv";
+    private static final String FILENAME_PURPOSEMODE_CONSTANTS = "purpose_mode_constants.csv";
+    public static final String FILENAME_TRIPLOG = "trips.bin";
+    public static final String FILENAME_OD_MATRIX = "od_matrix.csv.gz";
+    public static final String DIRECTORY_CHECKPOINTS = "checkpoints";
+    private static final String FILENAME_BOARDINGS_SERIES = "transitline_boardings_by_iteration.csv";
+    private static final String FILENAME_TIMEBINS_SERIES = "timebins_by_iteration.csv";
+    private static final String FILENAME_DISTANCEBINS_SERIES = "distancebins_by_iteration.csv";
+    private static final String FILENAME_DISTANCE_BY_MODE_SERIES = "distance_by_mode_by_iteration.csv";
+    private static final String FILENAME_PURPOSEMODES_SERIES = "trips_by_purpose_and_mode_by_iteration.csv";
+    private static final String FILENAME_COUNTS_COMPARISON = "counts_comparison_by_iteration.csv";
+    private static final String FILENAME_COUNTS_ERRORS = "counts_errors_by_iteration.csv";
+    private static final String FILENAME_PASSENGER_KM_SERIES = "transitline_passengerkm_by_iteration.csv";
+    private static final String FILENAME_CONVERGENCE = "convergence_by_iteration.csv";
+    private final MetricsSink metrics;
+    private String modeHeader;
     private File transitFileName;
+    private File routeBoardingsFileName;
+    private File departureBoardingsFileName;
+    private File stopRidershipFileName;
     private File timeFileName;
     private File modePurposeFileName;
 
     private static final Logger log = Logger.getLogger(CalibrationControlerListener.class);
-    HashMap<Integer, HashMap<String, HashMap<String, Integer>>> iterationPurposeCount = new HashMap<>();
     private Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private Collection<String> modes = new ArrayList<>();
     private Integer lastIteration;
@@ -60,71 +95,210 @@ public class CalibrationControlerListener implements StartupListener, IterationE
 
     final private Population population;
     final private ControlerConfigGroup controlerConfigGroup;
+    private final OutputDirectoryHierarchy controlerIO;
     private final Provider<TripRouter> tripRouterFactory;
     private final PlanCalcScoreConfigGroup planCalcScoreConfigGroup;
 
-    private MainModeIdentifier mainModeIdentifier;
-    private StageActivityTypes stageActivities;
+    private final TripPurposeClassifier classifier;
+    // the purpose of the hbw mode shares and the logShare update, -1 if the trip purpose rules have none
+    private final int hbwPurpose;
+    private final PlanTripScanner planTripScanner;
+    private int lastCompletedIteration = -1;
     private ModeChoiceCoefficientsUpdater modeUpdater;
-
+    private final RefreshableScoringParameters scoringParameters;
+    private final int constantUpdateInterval;
+    private final int checkpointInterval;
+    private final File checkpointDirectory;
+    private Future<?> pendingCheckpoint;
+    private final Network network;
+    private final double constantUpdateStepSize;
+    private final ModeConstantSolver constantSolver;
+    private final PurposeModeConstants purposeModeConstants;
+    // purpose -> mode -> target share, for the objective of the convergence monitor
+    private final Map<String, Map<String, Double>> objectiveTargets = new LinkedHashMap<>();
+    private ConvergenceMonitor convergence;
+    private long iterationEndsNanos;
+    private final CalibrationPerf perf;
 
 
     @Inject
     public CalibrationControlerListener(ControlerConfigGroup controlerConfigGroup, PlanCalcScoreConfigGroup planCalcScoreConfigGroup,
                                         OutputDirectoryHierarchy controlerIO, Scenario scenario,
-                                        Population population1, Provider<TripRouter> tripRouterFactory) {
+                                        Population population1, Provider<TripRouter> tripRouterFactory,
+                                        TripPurposeClassifier classifier, RefreshableScoringParameters scoringParameters,
+                                        PurposeModeConstants purposeModeConstants) {
         this.controlerConfigGroup = controlerConfigGroup;
+        this.controlerIO = controlerIO;
         this.population = population1;
-        mainModeIdentifier = null;
         this.tripRouterFactory = tripRouterFactory;
-        this.modeUpdater = new ModeChoiceCoefficientsUpdater();
         this.planCalcScoreConfigGroup = planCalcScoreConfigGroup;
+        this.classifier = classifier;
+        this.hbwPurpose = classifier.getPurposeCode("hbw");
+        this.scoringParameters = scoringParameters;
+        this.purposeModeConstants = purposeModeConstants;
 
-        this.constantsFileName = controlerIO.getOutputFilename(FILENAME_COEFFICIENTVALUES);
-        this.hbwFileName = controlerIO.getOutputFilename(FILENAME_HBWFILE);
-        this.constantsOut = IOUtils.getBufferedWriter(constantsFileName);
-        this.hbwOut = IOUtils.getBufferedWriter(hbwFileName);
+        this.metrics = new MetricsSink(new File(controlerIO.getOutputPath()));
         this.transitFileName = new File(controlerIO.getOutputFilename(FILENAME_BOARDINGS));
+        this.routeBoardingsFileName = new File(controlerIO.getOutputFilename(FILENAME_ROUTE_BOARDINGS));
+        this.departureBoardingsFileName = new File(controlerIO.getOutputFilename(FILENAME_DEPARTURE_BOARDINGS));
+        this.stopRidershipFileName = new File(controlerIO.getOutputFilename(FILENAME_STOP_RIDERSHIP));
         this.timeFileName = new File(controlerIO.getOutputFilename(FILENAME_TIMEBINS));
         this.modePurposeFileName = new File(controlerIO.getOutputFilename(FILENAME_PURPOSEMODES));
 
-        this.eventHandler = new TransitBoardingsEventHandler(scenario);
-        this.timeEventHandler = new TravelTimeEventHandler();
-        this.modePurposeEventHandler = new ModePurposeEventHandler();
+        CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(scenario.getConfig(),
+                CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+        this.travelTimeCollector = new TravelTimeCollector(classifier, CountBin.parse(calibrationConfig.getTravelTimeBins()));
+        this.purposeModeCollector = new PurposeModeCollector(classifier);
+        this.handlers = new CalibrationEventHandlers(scenario, classifier, calibrationConfig.getEventHandlerPartitions());
+        this.handlers.addCollector(travelTimeCollector);
+        this.handlers.addCollector(purposeModeCollector);
+        this.tripLogInterval = calibrationConfig.getTripLogInterval();
+        if(tripLogInterval > 0) {
+            this.tripLogCollector = new TripLogCollector(classifier, handlers.getBoardings().getTransitIndex());
+            this.handlers.addCollector(tripLogCollector);
+        }
+        if(!calibrationConfig.getOdZones().isEmpty()) {
+            ZoneMap zones = ZoneMap.create(calibrationConfig.getOdZones(), scenario.getNetwork(),
+                    scenario.getConfig().getContext());
+            this.odMatrixCollector = new OdMatrixCollector(classifier, zones);
+            this.handlers.addCollector(odMatrixCollector);
+        }
+        if(!calibrationConfig.getDistanceBins().isEmpty()) {
+            this.distanceCollector = new DistanceCollector(classifier, CountBin.parse(calibrationConfig.getDistanceBins()),
+                    scenario.getConfig().qsim().getMainModes());
+            this.handlers.addCollector(distanceCollector);
+        }
+        this.eventHandler = handlers.getBoardings();
+        if(calibrationConfig.isTransitLoadProfiles()) {
+            this.transitLoadCollector = new TransitLoadCollector(scenario, eventHandler.getTransitIndex(),
+                    calibrationConfig.getBoardingsScaleFactor());
+        }
+        if(!calibrationConfig.getCountsFile().isEmpty()) {
+            URL countsUrl = ConfigGroup.getInputFileURL(scenario.getConfig().getContext(), calibrationConfig.getCountsFile());
+            this.linkCounts = new LinkCountsCollector(LinkCountsCollector.readCounts(countsUrl),
+                    calibrationConfig.getCountsScaleFactor());
+        }
+        this.perf = new CalibrationPerf(calibrationConfig.isInstrumentation());
         this.lastIteration = controlerConfigGroup.getLastIteration();
+        this.planTripScanner = new PlanTripScanner(population1, classifier, tripRouterFactory,
+                scenario.getConfig().global().getNumberOfThreads(), calibrationConfig.isIncrementalPlanScan());
+        this.constantUpdateInterval = calibrationConfig.getConstantUpdateInterval();
+        this.checkpointInterval = calibrationConfig.getCheckpointInterval();
+        this.checkpointDirectory = calibrationConfig.getCheckpointDirectory().isEmpty() ?
+                new File(controlerIO.getOutputFilename(DIRECTORY_CHECKPOINTS)) :
+                new File(calibrationConfig.getCheckpointDirectory());
+        this.network = scenario.getNetwork();
+        this.constantUpdateStepSize = calibrationConfig.getConstantUpdateStepSize();
+
+        ModeShareTargets targets = ModeShareTargets.parse(calibrationConfig.getModeShareTargets());
+        this.modeUpdater = targets.getShares("hbw").isEmpty() ? new ModeChoiceCoefficientsUpdater() :
+                new ModeChoiceCoefficientsUpdater(targets.getShares("hbw"));
+        for(String purpose : targets.getPurposes()) {
+            objectiveTargets.put(purpose, targets.getShares(purpose));
+        }
+        if(objectiveTargets.isEmpty()) {
+            objectiveTargets.put("hbw", modeUpdater.populationShares);
+        }
+        if(calibrationConfig.getConstantSolver() == CalibrationConfigGroup.ConstantSolver.broyden && !targets.isEmpty()) {
+            this.constantSolver = new ModeConstantSolver(targets, classifier, planCalcScoreConfigGroup.getBrainExpBeta(),
+                    constantUpdateStepSize, calibrationConfig.getMaxConstantStep());
+        } else {
+            this.constantSolver = null;
+        }
+        if(hbwPurpose < 0) {
+            log.warn("The trip purpose rules have no hbw purpose: no hbw mode shares are written" +
+                    (constantSolver == null ? " and the logShare update of the mode constants is off" : ""));
+        }
+        // a run that starts with constants in the table, like a later stage of a staged calibration, continues from them
+        if(constantSolver != null && !purposeModeConstants.isEmpty()) {
+            constantSolver.setConstants(purposeModeConstants.getConstants());
+        }
     }
 
     /**
-     * At startup, need to initialize some of the router-based trip statistics calculators
+     * Start from the purpose-specific mode constants of a checkpoint. Only called when a run resumes from a
+     * checkpoint and {@link org.matsim.run.RunMatsim} binds it; its mode constants and plans are already in the
+     * config and the population.
+     * @param checkpoint
+     */
+    @com.google.inject.Inject(optional = true)
+    void setCheckpoint(CalibrationCheckpoint checkpoint) {
+        if(!checkpoint.hasPurposeModeConstants()) return;
+        double[][] constants = checkpoint.getPurposeModeConstants(classifier);
+        purposeModeConstants.setConstants(constants);
+        if(constantSolver != null) constantSolver.setConstants(constants);
+    }
+
+    /**
+     * End the run once the figures of the iterations stop moving. Only called when {@link org.matsim.run.RunMatsim}
+     * binds a monitor, which is also the termination criterion of the controler.
+     * @param convergence
+     */
+    @com.google.inject.Inject(optional = true)
+    void setConvergenceMonitor(ConvergenceMonitor convergence) {
+        this.convergence = convergence;
+    }
+
+    /**
+     * @return the time the listener took at the end of the last completed iteration, in nanoseconds
+     */
+    public long getIterationEndsNanos() {
+        return iterationEndsNanos;
+    }
+
+    /**
+     * At startup, register the event handlers and build the header of the per-mode files
      * @param startupEvent
      */
     @Override
     public void notifyStartup(StartupEvent startupEvent) {
 
-        TripRouter tripRouter = tripRouterFactory.get();
-        this.mainModeIdentifier = tripRouter.getMainModeIdentifier();
-        this.stageActivities = tripRouter.getStageActivityTypes();
         this.modes = planCalcScoreConfigGroup.getAllModes();
-        this.events.addHandler(eventHandler);
-        this.events.addHandler(timeEventHandler);
-        this.events.addHandler(modePurposeEventHandler);
+        this.handlers.addTo(events);
+        if(linkCounts != null) events.addHandler(linkCounts);
+        if(transitLoadCollector != null) events.addHandler(transitLoadCollector);
+        this.modeHeader = "Iteration, " + String.join(", ", modes);
+    }
+
+
+    /**
+     * Collect the trips only in the iterations with a trip log, and wait for the checkpoint of the last iteration,
+     * which the metrics writer may still be writing, before replanning changes the plans and the constants it holds.
+     * @param iterationStartsEvent
+     */
+    @Override
+    public void notifyIterationStarts(IterationStartsEvent iterationStartsEvent) {
+        int iteration = iterationStartsEvent.getIteration();
+        if(tripLogCollector != null) {
+            tripLogCollector.setLogged(iteration % tripLogInterval == 0 || iteration == lastIteration);
+        }
 
+        if(pendingCheckpoint == null) return;
         try {
-            this.hbwOut.write("Iteration");
-            this.hbwOut.write("Iteration");
-            for(String mode: modes){
-                this.constantsOut.write(", " + mode);
-                this.hbwOut.write(", " + mode);
-            }
-            this.constantsOut.write("\n");
-            this.hbwOut.write("\n");
-        } catch (IOException e) {
-            e.printStackTrace();
+            pendingCheckpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Could not write the calibration checkpoint", e.getCause());
+        } catch (CancellationException e) {
+            // the metrics writer was closed and dropped the checkpoint, which it logged
         }
+        pendingCheckpoint = null;
+    }
 
+    @Override
+    public void notifyBeforeMobsim(BeforeMobsimEvent beforeMobsimEvent) {
+        perf.mobsimStarted();
+    }
 
+    @Override
+    public void notifyAfterMobsim(AfterMobsimEvent afterMobsimEvent) {
+        perf.mobsimEnded();
     }
 
+    public CalibrationPerf getPerf() {
+        return perf;
+    }
 
     /**
      * At the end of each iteration, collect the mode split by trip purpose
@@ -132,99 +306,373 @@ public class CalibrationControlerListener implements StartupListener, IterationE
      */
     @Override
     public void notifyIterationEnds(IterationEndsEvent iterationEndsEvent) {
+        long start = System.nanoTime();
         Integer iterationNo = iterationEndsEvent.getIteration();
-
-        HashMap<String, HashMap<String, Integer>> tripPurpose = collectTripPurposeInfo();
+        // the events of the iteration are processed, combine the partitions of the event handlers
+        long phase = perf.start();
+        handlers.merge(iterationNo);
+        perf.stop(CalibrationPerf.Phase.merge, phase);
+
+        phase = perf.start();
+        int[][] tripPurpose = collectTripPurposeInfo(iterationNo);
+        lastCompletedIteration = iterationNo;
+        perf.stop(CalibrationPerf.Phase.planScan, phase);
         // Calculate the mode shares for home-based work trips
-        Map<String, Double> modelShares = calculateModeShares(tripPurpose.get("hbw"));
+        phase = perf.start();
+        Map<String, Double> modelShares = hbwPurpose < 0 ? Collections.<String, Double>emptyMap() :
+                calculateModeShares(tripPurpose[hbwPurpose]);
+        perf.stop(CalibrationPerf.Phase.shares, phase);
+
+        // a converged iteration is the last one, so it gets the outputs of the last iteration and no constant update
+        if(convergence != null && !iterationNo.equals(lastIteration) && checkConvergence(iterationNo, tripPurpose)) {
+            log.info("Mode shares, boardings and the objective converged with iteration " + iterationNo +
+                    ", ending the run instead of running to iteration " + lastIteration);
+            lastIteration = iterationNo;
+        }
+
+        phase = perf.start();
+        writeIterationMetrics(iterationNo);
+        if(linkCounts != null) writeCountsComparison(iterationNo);
+        if(distanceCollector != null) writeDistances(iterationNo);
+        if(transitLoadCollector != null) writePassengerKilometers(iterationNo);
+        // the handlers are reset before the writer gets to the files, so it writes copies
+        if(odMatrixCollector != null) {
+            final OdMatrixCollector odMatrix = odMatrixCollector.copy();
+            final File odMatrixFile = new File(controlerIO.getIterationFilename(iterationNo, FILENAME_OD_MATRIX));
+            metrics.write(odMatrixFile.getPath(), () -> odMatrix.write(odMatrixFile));
+            log.info("OD matrix cells: " + odMatrixCollector.getCells() + ", trips outside the zones: " +
+                    odMatrixCollector.getUnzonedTrips());
+        }
+        if(tripLogCollector != null && tripLogCollector.isLogged()) {
+            final TripLogCollector trips = tripLogCollector.copy();
+            final File tripLogFile = new File(controlerIO.getIterationFilename(iterationNo, FILENAME_TRIPLOG));
+            metrics.write(tripLogFile.getPath(), () -> trips.write(tripLogFile));
+        }
+        perf.stop(CalibrationPerf.Phase.writes, phase);
 
-        log.info("Total transit boardings: " + this.eventHandler.totalBoardings.toString());
+        log.info("Total transit boardings: " + eventHandler.expand(eventHandler.getTotalBoardings()));
 
-        try {
-            this.hbwOut.write(iterationNo.toString());
+        if(hbwPurpose >= 0) {
+            StringBuilder hbwRow = new StringBuilder(iterationNo.toString());
             for(String mode : modes ) {
-                this.hbwOut.write(", " + modelShares.getOrDefault(mode, 0.0));
+                hbwRow.append(", ").append(modelShares.getOrDefault(mode, 0.0));
             }
-            this.hbwOut.write("\n");
-        } catch (IOException e) {
-            e.printStackTrace();
+            metrics.append(FILENAME_HBWFILE, modeHeader, out -> out.write(hbwRow + "\n"));
         }
 
+        phase = perf.start();
+        if(constantUpdateInterval > 0 && !iterationNo.equals(lastIteration) &&
+                (iterationNo - controlerConfigGroup.getFirstIteration() + 1) % constantUpdateInterval == 0) {
+            if(constantSolver != null) {
+                updatePurposeModeConstants(iterationNo, tripPurpose);
+            } else if(hbwPurpose >= 0) {
+                updateConstantsInRun(iterationNo, modelShares);
+            }
+        }
+        perf.stop(CalibrationPerf.Phase.constantUpdate, phase);
+
+        phase = perf.start();
+        if(checkpointInterval > 0 && (iterationNo % checkpointInterval == 0 || iterationNo.equals(lastIteration))) {
+            writeCheckpoint(iterationNo, tripPurpose);
+        }
+        perf.stop(CalibrationPerf.Phase.checkpoint, phase);
+
+        perf.endIteration(iterationNo, handlers, System.nanoTime() - start, metrics);
+        metrics.endIteration(iterationNo);
+
         if(!iterationNo.equals(lastIteration)) {
-           eventHandler.reset(iterationNo);
-           timeEventHandler.reset(iterationNo);
-           modePurposeEventHandler.reset(iterationNo);
+           handlers.reset(iterationNo);
+        }
+        iterationEndsNanos = System.nanoTime() - start;
+
+    }
+
+    /**
+     * Hand the mode shares within every purpose, the total boardings and the largest difference to the target shares
+     * of the iteration to the convergence monitor, and its changes over the window to the metrics sink.
+     * @param iteration
+     * @param tripPurpose trip counts by purpose and mode
+     * @return true if the run has converged
+     */
+    private boolean checkConvergence(int iteration, int[][] tripPurpose) {
+        double[][] shares = new double[tripPurpose.length][];
+        for(int purpose = 0; purpose < tripPurpose.length; purpose++) {
+            long total = 0;
+            for(int trips : tripPurpose[purpose]) total += trips;
+            shares[purpose] = new double[tripPurpose[purpose].length];
+            for(int mode = 0; mode < shares[purpose].length; mode++) {
+                shares[purpose][mode] = total == 0 ? 0.0 : (double) tripPurpose[purpose][mode] / total;
+            }
+        }
+        double objective = Double.NaN;
+        for(Map.Entry<String, Map<String, Double>> entry : objectiveTargets.entrySet()) {
+            int purpose = classifier.getPurposeCode(entry.getKey());
+            if(purpose < 0 || purpose >= shares.length) continue;
+            for(Map.Entry<String, Double> target : entry.getValue().entrySet()) {
+                int mode = classifier.getModeCode(target.getKey());
+                double share = mode < shares[purpose].length ? shares[purpose][mode] : 0.0;
+                double difference = Math.abs(share - target.getValue());
+                objective = Double.isNaN(objective) ? difference : Math.max(objective, difference);
+            }
         }
+        double boardings = eventHandler.expand(eventHandler.getTotalBoardings());
+
+        boolean converged = convergence.update(iteration, shares, boardings, objective);
+        final String row = iteration + ", " + convergence.getShareChange() + ", " + convergence.getBoardingsChange() +
+                ", " + objective + ", " + convergence.getObjectiveChange() + ", " + converged + "\n";
+        metrics.append(FILENAME_CONVERGENCE, "Iteration, ShareChange, BoardingsChange, Objective, ObjectiveChange, " +
+                "Converged", out -> out.write(row));
+        return converged;
+    }
 
+    /**
+     * Hand copies of the iteration's boardings, travel time bins and purpose-mode counts to the metrics sink, which
+     * appends them to the long-format time series files on its own thread.
+     * @param iteration
+     */
+    private void writeIterationMetrics(int iteration) {
+        final TransitIndex transitIndex = eventHandler.getTransitIndex();
+        final long[] lineBoardings = eventHandler.getLineBoardings().clone();
+        final long[][] timeBins = travelTimeCollector.getTimeBins();
+        final double[] lowerEdges = travelTimeCollector.getLowerEdges();
+        final int[][] purposeModes = purposeModeCollector.getPurposeModeCounts();
+        final int[][] purposeModeCounts = new int[purposeModes.length][];
+        for(int purpose = 0; purpose < purposeModes.length; purpose++) {
+            purposeModeCounts[purpose] = purposeModes[purpose].clone();
+        }
+        final List<String> purposeNames = new ArrayList<>(classifier.getPurposes());
+        final List<String> modeNames = new ArrayList<>(classifier.getModes());
+
+        metrics.append(FILENAME_BOARDINGS_SERIES, "Iteration, TransitLine, Boardings", out -> {
+            for(int line = 0; line < lineBoardings.length; line++) {
+                if(lineBoardings[line] == 0) continue;
+                out.write(iteration + ", " + transitIndex.getLineId(line) + ", " +
+                        eventHandler.expand(lineBoardings[line]) + "\n");
+            }
+        });
+        metrics.append(FILENAME_TIMEBINS_SERIES, "Iteration, Purpose, TravelTime, Trips", out -> {
+            for(int purpose = 0; purpose < timeBins.length; purpose++) {
+                for(int bin = 0; bin < timeBins[purpose].length; bin++) {
+                    out.write(iteration + ", " + purposeNames.get(purpose) + ", " + lowerEdges[bin] + ", " +
+                            timeBins[purpose][bin] + "\n");
+                }
+            }
+        });
+        metrics.append(FILENAME_PURPOSEMODES_SERIES, "Iteration, Purpose, Mode, Trips", out -> {
+            for(int purpose = 0; purpose < purposeModeCounts.length; purpose++) {
+                for(int mode = 0; mode < purposeModeCounts[purpose].length; mode++) {
+                    out.write(iteration + ", " + purposeNames.get(purpose) + ", " + modeNames.get(mode) + ", " +
+                            purposeModeCounts[purpose][mode] + "\n");
+                }
+            }
+        });
     }
 
 
 
-    private Map<String, Double> calculateModeShares(HashMap<String, Integer> tripsByMode) {
-        // get total number of trips
-        Integer totalTrips = tripsByMode.values().stream().reduce(0, Integer::sum);
-        Map<String, Double> modeShares = new HashMap<>();
+    /**
+     * Hand copies of the iteration's distance bins and the person- and vehicle-kilometers by mode to the metrics sink.
+     * @param iteration
+     */
+    private void writeDistances(int iteration) {
+        final long[][] distanceBins = distanceCollector.getDistanceBins();
+        final double[] lowerEdges = distanceCollector.getLowerEdges();
+        final double[] personKilometers = distanceCollector.getPersonKilometers();
+        final double[] vehicleKilometers = distanceCollector.getVehicleKilometers();
+        final List<String> purposeNames = new ArrayList<>(classifier.getPurposes());
+        final List<String> modeNames = new ArrayList<>(classifier.getModes());
+
+        metrics.append(FILENAME_DISTANCEBINS_SERIES, "Iteration, Purpose, Distance, Trips", out -> {
+            for(int purpose = 0; purpose < distanceBins.length; purpose++) {
+                for(int bin = 0; bin < distanceBins[purpose].length; bin++) {
+                    out.write(iteration + ", " + purposeNames.get(purpose) + ", " + lowerEdges[bin] + ", " +
+                            distanceBins[purpose][bin] + "\n");
+                }
+            }
+        });
+        metrics.append(FILENAME_DISTANCE_BY_MODE_SERIES, "Iteration, Mode, PKT, VKT", out -> {
+            for(int mode = 0; mode < personKilometers.length; mode++) {
+                if(personKilometers[mode] == 0.0) continue;
+                out.write(iteration + ", " + modeNames.get(mode) + ", " + personKilometers[mode] + ", " +
+                        vehicleKilometers[mode] + "\n");
+            }
+        });
+    }
 
-        for(Map.Entry<String, Integer> modeTrips:tripsByMode.entrySet()) {
-            Double share = (1.0 * modeTrips.getValue() / totalTrips);
-            modeShares.putIfAbsent(modeTrips.getKey(), share);
+    /**
+     * Hand the passenger-kilometers of the iteration by transit line to the metrics sink.
+     * @param iteration
+     */
+    private void writePassengerKilometers(int iteration) {
+        final TransitIndex transitIndex = eventHandler.getTransitIndex();
+        final double[] linePassengerKilometers = transitLoadCollector.getLinePassengerKilometers();
+        metrics.append(FILENAME_PASSENGER_KM_SERIES, "Iteration, TransitLine, PassengerKm", out -> {
+            for(int line = 0; line < linePassengerKilometers.length; line++) {
+                if(linePassengerKilometers[line] == 0.0) continue;
+                out.write(iteration + ", " + transitIndex.getLineId(line) + ", " + linePassengerKilometers[line] +
+                        "\n");
+            }
+        });
+    }
+
+    /**
+     * Compare the link volumes of the iteration with the counts and hand the GEH of every station and hour, and the
+     * errors by station, by hour and overall, to the metrics sink.
+     * @param iteration
+     */
+    private void writeCountsComparison(int iteration) {
+        final LinkCountsCollector.Comparison comparison = linkCounts.compare();
+        final int stations = linkCounts.getNumberOfStations();
+        final String[] names = new String[stations];
+        final String[] links = new String[stations];
+        for(int station = 0; station < stations; station++) {
+            names[station] = linkCounts.getStationName(station);
+            links[station] = linkCounts.getStationLink(station).toString();
         }
-        log.info("Home-Based Work mode split: ");
-        log.info(gson.toJson(modeShares));
-        return modeShares;
+        double[] total = comparison.getTotalErrors();
+        log.info("Counts after iteration " + iteration + ": RMSE " + total[0] + ", bias " + total[1] +
+                ", mean GEH " + total[2] + ", share of GEH < 5: " + comparison.getShareGehBelow5());
+
+        metrics.append(FILENAME_COUNTS_COMPARISON, "Iteration, Station, Link, Hour, Observed, Simulated, GEH", out -> {
+            for(int station = 0; station < stations; station++) {
+                for(int hour = 0; hour < LinkCountsCollector.HOURS; hour++) {
+                    int cell = station * LinkCountsCollector.HOURS + hour;
+                    if(Double.isNaN(comparison.observed[cell])) continue;
+                    out.write(iteration + ", " + names[station] + ", " + links[station] + ", " + (hour + 1) + ", " +
+                            comparison.observed[cell] + ", " + comparison.simulated[cell] + ", " +
+                            comparison.geh[cell] + "\n");
+                }
+            }
+        });
+        metrics.append(FILENAME_COUNTS_ERRORS, "Iteration, Station, Hour, RMSE, Bias, MeanGEH", out -> {
+            for(int station = 0; station < stations; station++) {
+                writeErrors(out, iteration, names[station], "all", comparison.getStationErrors(station));
+            }
+            for(int hour = 0; hour < LinkCountsCollector.HOURS; hour++) {
+                writeErrors(out, iteration, "all", Integer.toString(hour + 1), comparison.getHourErrors(hour));
+            }
+            writeErrors(out, iteration, "all", "all", comparison.getTotalErrors());
+        });
+    }
+
+    private static void writeErrors(Writer out, int iteration, String station, String hour, double[] errors)
+            throws IOException {
+        if(Double.isNaN(errors[0])) return;
+        out.write(iteration + ", " + station + ", " + hour + ", " + errors[0] + ", " + errors[1] + ", " + errors[2] + "\n");
     }
 
     /**
-     * Loop through the population plans at the end of an iteration, get the main mode and the purpose of the
-     * activity, and store the counts for each kind of trip in a HashMap. Note that the mode is the "planned" mode,
-     * rather than the "executed" mode. As an example, the 'transit_walk' trips are coded as 'pt'.
-     * @return A map indexed by purpose and mode, with the count of trips in the most recently selected population plans
+     * Apply a damped log-share correction to the mode constants and write them into the scoring config, so the
+     * scoring functions of the next iteration use them. The change of a constant is added to every subpopulation's
+     * parameter set, which keeps the differences between subpopulations.
+     * @param iteration
+     * @param modelShares
      */
-    private HashMap<String, HashMap<String, Integer>> collectTripPurposeInfo(){
-        HashMap<String, HashMap<String, Integer>> purposeAndModeCount = new HashMap<>();
+    private void updateConstantsInRun(int iteration, Map<String, Double> modelShares) {
+        for(String mode: modes){
+            modeUpdater.setConstant(mode, planCalcScoreConfigGroup.getOrCreateModeParams(mode).getConstant());
+        }
+        Map<String, Double> oldConstants = new HashMap<>(modeUpdater.getConstants());
+        modeUpdater.updateConstants(modelShares, constantUpdateStepSize);
+        Map<String, Double> updatedConstants = modeUpdater.getConstants();
 
-        //Initialize dictionary
-        for(String purpose: new String[] {"hbw", "hbo", "nhb"}){
-            purposeAndModeCount.putIfAbsent(purpose, new HashMap<>());
+        for(String mode: modes){
+            double change = updatedConstants.get(mode) - oldConstants.get(mode);
+            if(change == 0.0) continue;
+            for(PlanCalcScoreConfigGroup.ScoringParameterSet parameterSet :
+                    planCalcScoreConfigGroup.getScoringParametersPerSubpopulation().values()) {
+                PlanCalcScoreConfigGroup.ModeParams modeParams = parameterSet.getOrCreateModeParams(mode);
+                modeParams.setConstant(modeParams.getConstant() + change);
+            }
         }
+        scoringParameters.refresh();
 
-        // loop through population, then through the trips in the selected plan
-        for(Person person : this.population.getPersons().values()){
-            Plan plan = person.getSelectedPlan();
-            List<TripStructureUtils.Trip> trips = TripStructureUtils.getTrips(plan, stageActivities);
-            for(TripStructureUtils.Trip trip : trips){
-               String mode = this.mainModeIdentifier.identifyMainMode(trip.getTripElements());
-               String purpose = getTripPurpose(trip);
+        log.info("Mode constants after iteration " + iteration + ": ");
+        log.info(gson.toJson(updatedConstants));
+        writeConstants(iteration, updatedConstants);
+    }
 
-               purposeAndModeCount.get(purpose).merge(mode, 1, Integer::sum);
+    /**
+     * Take a solver step for the purpose-specific mode constants and hand them to the scoring of the next iteration.
+     * @param iteration
+     * @param tripPurpose trip counts by purpose and mode
+     */
+    private void updatePurposeModeConstants(int iteration, int[][] tripPurpose) {
+        double residual = constantSolver.update(tripPurpose);
+        double[][] constants = constantSolver.getConstants();
+        purposeModeConstants.setConstants(constants);
+        log.info("Largest mode share difference after iteration " + iteration + ": " + residual);
+
+        StringBuilder rows = new StringBuilder();
+        for(int purpose = 0; purpose < constants.length; purpose++) {
+            for(int mode = 0; mode < constants[purpose].length; mode++) {
+                if(constants[purpose][mode] == 0.0) continue;
+                rows.append(iteration).append(", ").append(classifier.getPurposeName(purpose)).append(", ")
+                        .append(classifier.getModeName(mode)).append(", ").append(constants[purpose][mode]).append("\n");
             }
         }
+        metrics.append(FILENAME_PURPOSEMODE_CONSTANTS, "Iteration, Purpose, Mode, Constant", out -> out.write(rows.toString()));
+    }
 
-        return purposeAndModeCount;
+    /**
+     * Write the plans and the constants after the update of this iteration, so a run resuming from the checkpoint
+     * continues with the constants the next iteration would have used. The metrics writer writes the checkpoint; the
+     * plans, constants and trip counts do not change until the next iteration starts, which waits for it.
+     * @param iteration
+     * @param tripPurpose trip counts by purpose and mode of the iteration
+     */
+    private void writeCheckpoint(int iteration, int[][] tripPurpose) {
+        final double[][] constants = purposeModeConstants.getConstants();
+        pendingCheckpoint = metrics.write("the calibration checkpoint of iteration " + iteration, () -> {
+            File directory = CalibrationCheckpoint.write(checkpointDirectory, iteration, population, network,
+                    planCalcScoreConfigGroup, classifier, constants, tripPurpose);
+            log.info("Wrote the calibration checkpoint of iteration " + iteration + " to " + directory);
+        });
     }
 
-    /***
-     * Given a trip, determine its purpose based on its origin and destination activity types.
-     * @param trip
-     * @return
+    private void writeConstants(int iteration, Map<String, Double> constants) {
+        StringBuilder row = new StringBuilder(Integer.toString(iteration));
+        for(String mode:modes){
+            row.append(", ").append(constants.get(mode));
+        }
+        metrics.append(FILENAME_COEFFICIENTVALUES, modeHeader, out -> out.write(row + "\n"));
+    }
+
+    private Map<String, Double> calculateModeShares(int[] tripsByMode) {
+        // get total number of trips
+        int totalTrips = 0;
+        for(int trips : tripsByMode) {
+            totalTrips += trips;
+        }
+        Map<String, Double> modeShares = new HashMap<>();
+
+        for(int mode = 0; mode < tripsByMode.length; mode++) {
+            if(tripsByMode[mode] == 0) continue;
+            Double share = (1.0 * tripsByMode[mode] / totalTrips);
+            modeShares.putIfAbsent(classifier.getModeName(mode), share);
+        }
+        log.info("Home-Based Work mode split: ");
+        log.info(gson.toJson(modeShares));
+        return modeShares;
+    }
+
+    /**
+     * Loop through the population plans at the end of an iteration, get the main mode and the purpose of the
+     * activity, and store the counts for each kind of trip in an array. Note that the mode is the "planned" mode,
+     * rather than the "executed" mode. As an example, the 'transit_walk' trips are coded as 'pt'.
+     * The scan runs in parallel and at most once per iteration, see {@link PlanTripScanner}.
+     * @param iteration
+     * @return An array indexed by purpose and mode code, with the count of trips in the most recently selected population plans
      */
-    private String getTripPurpose(TripStructureUtils.Trip trip){
-        String lastActivity = trip.getOriginActivity().getType();
-        String activity = trip.getDestinationActivity().getType();
-        String purpose = "nhb";
-
-        if(lastActivity.equals("home") & activity.equals("work")) {
-            purpose = "hbw";
-        } else if(lastActivity.equals("work") & activity.equals("home")){
-            purpose = "hbw";
-        } else if(lastActivity.equals("home") | activity.equals("home")){
-            purpose = "hbo";
-        }
-        return purpose;
+    private int[][] collectTripPurposeInfo(int iteration){
+        int[][] counts = planTripScanner.scan(iteration);
+        log.info("Persons with a changed selected plan: " + planTripScanner.getRescannedPersons());
+        return counts;
     }
 
     @Override
     public void notifyShutdown(ShutdownEvent shutdownEvent) {
+        long start = System.nanoTime();
 
         // Get the scenario mode score parameters and print to file and log
         for(String mode: modes){
@@ -232,31 +680,41 @@ public class CalibrationControlerListener implements StartupListener, IterationE
             modeUpdater.setConstant(mode, constant);
         }
 
-        HashMap<String, HashMap<String, Integer>> tripPurpose = collectTripPurposeInfo();
+        // the plans have not changed since the end of the last iteration, so this re-uses its scan
+        int[][] tripPurpose = collectTripPurposeInfo(lastCompletedIteration);
+        planTripScanner.shutdown();
 
-        log.info("Total transit boardings: " + eventHandler.totalBoardings.toString());
-        modeUpdater.updateConstants(calculateModeShares(tripPurpose.get("hbw")));
+        log.info("Total transit boardings: " + eventHandler.expand(eventHandler.getTotalBoardings()));
+        if(hbwPurpose >= 0) {
+            modeUpdater.updateConstants(calculateModeShares(tripPurpose[hbwPurpose]));
+        }
         Map<String, Double> updatedConstants = modeUpdater.getConstants();
 
         log.info("Updated mode constants: ");
         log.info(gson.toJson(updatedConstants));
 
+        // the last iteration of the run, which is earlier than the config's when the run converged
+        writeConstants(lastIteration, updatedConstants);
+        // drain the queued rows and close the time series files
+        metrics.close();
+
         try {
-            this.constantsOut.write(controlerConfigGroup.getLastIteration());
-            for(String mode:modes){
-                this.constantsOut.write(", " + updatedConstants.get(mode).toString());
-            }
-            this.constantsOut.close();
-            this.hbwOut.close();
             eventHandler.writeLineBoardings(this.transitFileName);
-            timeEventHandler.writeTimeBins(this.timeFileName);
-            modePurposeEventHandler.writePurposeModeCounts(this.modePurposeFileName);
+            eventHandler.writeRouteBoardings(this.routeBoardingsFileName);
+            eventHandler.writeDepartureBoardings(this.departureBoardingsFileName);
+            eventHandler.writeStopRidership(this.stopRidershipFileName);
+            travelTimeCollector.writeTimeBins(this.timeFileName);
+            purposeModeCollector.writePurposeModeCounts(this.modePurposeFileName);
+            if(distanceCollector != null) {
+                distanceCollector.writeDistanceBins(new File(controlerIO.getOutputFilename(FILENAME_DISTANCEBINS)));
+            }
+            if(transitLoadCollector != null) {
+                transitLoadCollector.writeLoadProfiles(new File(controlerIO.getOutputFilename(FILENAME_TRANSIT_LOADS)));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-
-
+        perf.shutdown(System.nanoTime() - start);
     }
 
 
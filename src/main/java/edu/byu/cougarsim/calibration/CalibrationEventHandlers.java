@@ -0,0 +1,182 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.ConfigUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The event handlers of the calibration package, split into person partitions so they can run under
+ * {@link org.matsim.core.events.ParallelEventsManagerImpl} and similar managers.
+ *
+ * Every partition has its own {@link TripTracker} with shards of the registered collectors, and its own shard of
+ * the {@link TransitBoardingsEventHandler}. With <code>distanceBins</code> in the calibration config the trackers are
+ * {@link OdometerTripTracker}s, otherwise no handler subscribes to the link events. A parallel events manager gives each handler its own thread, so no
+ * state is shared between threads while events are processed. {@link #merge(int)} adds the shards into the
+ * original collectors in partition order after the events of an iteration are processed. All metrics are integer
+ * counts, so the merged values are identical to those of a single partition.
+ *
+ * With one partition the original collectors are registered directly and merging does nothing.
+ *
+ * With <code>instrumentation</code> in the calibration config, the trackers and boardings shards are replaced by
+ * subclasses that count and time their events, see {@link HandlerStats}. The boardings then always run as shards,
+ * so every partition has its own counters.
+ */
+public class CalibrationEventHandlers {
+
+    private final int partitions;
+    private final List<TripTracker> trackers = new ArrayList<>();
+    private final List<TripCollector> collectors = new ArrayList<>();
+    private final List<List<TripCollector>> collectorShards = new ArrayList<>();
+    private final TransitBoardingsEventHandler boardings;
+    private final List<TransitBoardingsEventHandler> boardingShards = new ArrayList<>();
+    private final List<HandlerStats> trackerStats = new ArrayList<>();
+    private final List<HandlerStats> boardingStats = new ArrayList<>();
+
+    public CalibrationEventHandlers(Scenario scenario, TripPurposeClassifier classifier, int partitions) {
+        this.partitions = Math.max(1, partitions);
+        CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(scenario.getConfig(),
+                CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+        boolean dynamic = calibrationConfig.getOpenTripStorage() == CalibrationConfigGroup.OpenTripStorage.dynamic;
+        boolean instrumented = calibrationConfig.isInstrumentation();
+        int sampleInterval = calibrationConfig.getInstrumentationSampleInterval();
+
+        this.boardings = new TransitBoardingsEventHandler(scenario);
+        this.boardings.setScaleFactor(calibrationConfig.getBoardingsScaleFactor());
+
+        VehicleOdometer odometer = calibrationConfig.getDistanceBins().isEmpty() ? null :
+                new VehicleOdometer(scenario.getNetwork());
+        IdIndex<Person> populationIndex = dynamic ? null : OpenTripStore.createPopulationIndex(scenario.getPopulation());
+        for(int partition = 0; partition < this.partitions; partition++) {
+            OpenTripStore openTrips = dynamic ? new OpenTripStore(partition, this.partitions) :
+                    new OpenTripStore(populationIndex, partition, this.partitions);
+            VehicleOdometer partitionOdometer = odometer == null ? null : odometer.newShard();
+            if(instrumented) {
+                HandlerStats stats = new HandlerStats(sampleInterval);
+                trackerStats.add(stats);
+                trackers.add(odometer == null ?
+                        new InstrumentedTripTracker(classifier, openTrips, boardings.getTransitIndex(), null, stats) :
+                        new InstrumentedOdometerTripTracker(classifier, openTrips, boardings.getTransitIndex(),
+                                partitionOdometer, stats));
+            } else {
+                trackers.add(odometer == null ?
+                        new TripTracker(classifier, openTrips, boardings.getTransitIndex()) :
+                        new OdometerTripTracker(classifier, openTrips, boardings.getTransitIndex(), partitionOdometer));
+            }
+        }
+        if(instrumented) {
+            for(int partition = 0; partition < this.partitions; partition++) {
+                HandlerStats stats = new HandlerStats(sampleInterval);
+                boardingStats.add(stats);
+                boardingShards.add(new InstrumentedTransitBoardings(boardings.getTransitIndex(), partition,
+                        this.partitions, stats));
+            }
+        } else if(this.partitions == 1) {
+            boardingShards.add(boardings);
+        } else {
+            for(int partition = 0; partition < this.partitions; partition++) {
+                boardingShards.add(boardings.newShard(partition, this.partitions));
+            }
+        }
+    }
+
+    /**
+     * Register a collector; every partition gets its own shard of it. Must be called before
+     * {@link #addTo(EventsManager)}.
+     * @param collector
+     */
+    public void addCollector(TripCollector collector) {
+        collectors.add(collector);
+        List<TripCollector> shards = new ArrayList<>();
+        for(TripTracker tracker : trackers) {
+            TripCollector shard = partitions == 1 ? collector : collector.newShard();
+            tracker.addCollector(shard);
+            shards.add(shard);
+        }
+        collectorShards.add(shards);
+    }
+
+    public void addTo(EventsManager events) {
+        for(TripTracker tracker : trackers) {
+            events.addHandler(tracker);
+        }
+        for(TransitBoardingsEventHandler shard : boardingShards) {
+            events.addHandler(shard);
+        }
+    }
+
+    /**
+     * Merge the shards of all partitions into the original collectors and boardings handler. Call this once
+     * after the events of an iteration have been processed.
+     * @param iteration
+     */
+    public void merge(int iteration) {
+        if(partitions > 1) {
+            for(int c = 0; c < collectors.size(); c++) {
+                TripCollector collector = collectors.get(c);
+                collector.reset(iteration);
+                for(TripCollector shard : collectorShards.get(c)) {
+                    collector.merge(shard);
+                }
+            }
+        }
+        if(boardingShards.get(0) == boardings) return;
+        boardings.reset(iteration);
+        for(TransitBoardingsEventHandler shard : boardingShards) {
+            boardings.merge(shard);
+        }
+    }
+
+    public void reset(int iteration) {
+        for(TripTracker tracker : trackers) {
+            tracker.reset(iteration);
+        }
+        for(TransitBoardingsEventHandler shard : boardingShards) {
+            shard.reset(iteration);
+        }
+    }
+
+    /**
+     * @return the events and handling times of all trip trackers since the last {@link #resetStats()}, empty
+     * without instrumentation
+     */
+    public HandlerStats getTrackerStats() {
+        return sum(trackerStats);
+    }
+
+    /**
+     * @return the events and handling times of all boardings shards since the last {@link #resetStats()}, empty
+     * without instrumentation
+     */
+    public HandlerStats getBoardingStats() {
+        return sum(boardingStats);
+    }
+
+    private static HandlerStats sum(List<HandlerStats> stats) {
+        HandlerStats total = new HandlerStats(1);
+        for(HandlerStats partition : stats) {
+            total.add(partition);
+        }
+        return total;
+    }
+
+    public void resetStats() {
+        for(HandlerStats stats : trackerStats) stats.reset();
+        for(HandlerStats stats : boardingStats) stats.reset();
+    }
+
+    public TransitBoardingsEventHandler getBoardings() {
+        return boardings;
+    }
+
+    public List<TripTracker> getTrackers() {
+        return trackers;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+}
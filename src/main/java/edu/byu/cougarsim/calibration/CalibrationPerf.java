@@ -0,0 +1,241 @@
+package edu.byu.cougarsim.calibration;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Times the phases of the {@link CalibrationControlerListener} and collects the statistics of the instrumented
+ * event handlers, see {@link CalibrationEventHandlers}. At the end of every iteration the figures are appended to
+ * <code>calibration_perf.csv</code> and published through the {@link CalibrationPerfMBean}.
+ *
+ * Disabled, {@link #start()} returns 0 without reading the clock and the other methods return at once.
+ */
+public class CalibrationPerf implements CalibrationPerfMBean {
+    private final static Logger log = Logger.getLogger(CalibrationPerf.class);
+
+    public static final String FILENAME_PERF = "calibration_perf.csv";
+    static final String OBJECT_NAME = "edu.byu.cougarsim.calibration:type=CalibrationPerf";
+
+    public enum Phase {merge, writes, planScan, shares, constantUpdate, checkpoint}
+
+    private final boolean enabled;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long mobsimStart;
+    private long mobsimNanos;
+    private ObjectName objectName;
+
+    // the figures of the last completed iteration, read by JMX threads
+    private volatile int iteration = -1;
+    private volatile long trackerEvents;
+    private volatile double trackerNanosPerEvent;
+    private volatile long boardingEvents;
+    private volatile double boardingNanosPerEvent;
+    private volatile double eventsPerSecond;
+    private volatile int openTrips;
+    private volatile int openTripCapacity;
+    private volatile double[] phaseMillis = new double[Phase.values().length];
+    private volatile double iterationEndsMillis;
+    private volatile double shutdownMillis;
+
+    public CalibrationPerf(boolean enabled) {
+        this.enabled = enabled;
+        if(enabled) register();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(OBJECT_NAME);
+            // a previous controler in the same JVM may have left its bean behind
+            if(server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            log.warn("Could not register the calibration MBean", e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * @return the start time of a phase, or 0 if disabled
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Add the time since a {@link #start()} to a phase of the current iteration.
+     * @param phase
+     * @param start
+     */
+    public void stop(Phase phase, long start) {
+        if(!enabled) return;
+        phaseNanos[phase.ordinal()] += System.nanoTime() - start;
+    }
+
+    public void mobsimStarted() {
+        if(enabled) mobsimStart = System.nanoTime();
+    }
+
+    public void mobsimEnded() {
+        if(enabled) mobsimNanos = System.nanoTime() - mobsimStart;
+    }
+
+    /**
+     * Publish the figures of an iteration, append them to the perf file and reset the counters. Call this after
+     * the handlers are merged and before they are reset.
+     * @param iteration
+     * @param handlers
+     * @param iterationEndsNanos the time of the listener at the end of the iteration so far
+     * @param metrics
+     */
+    public void endIteration(int iteration, CalibrationEventHandlers handlers, long iterationEndsNanos,
+                             MetricsSink metrics) {
+        if(!enabled) return;
+        HandlerStats tracker = handlers.getTrackerStats();
+        HandlerStats boarding = handlers.getBoardingStats();
+        int open = 0;
+        int capacity = 0;
+        for(TripTracker partition : handlers.getTrackers()) {
+            open += partition.getOpenTrips().getOpenTrips();
+            capacity += partition.getOpenTrips().getCapacity();
+        }
+        double[] millis = new double[phaseNanos.length];
+        for(int phase = 0; phase < millis.length; phase++) {
+            millis[phase] = phaseNanos[phase] / 1e6;
+        }
+
+        this.trackerEvents = tracker.getEvents();
+        this.trackerNanosPerEvent = tracker.getNanosPerEvent();
+        this.boardingEvents = boarding.getEvents();
+        this.boardingNanosPerEvent = boarding.getNanosPerEvent();
+        this.eventsPerSecond = mobsimNanos == 0 ? 0.0 : tracker.getEvents() * 1e9 / mobsimNanos;
+        this.openTrips = open;
+        this.openTripCapacity = capacity;
+        this.phaseMillis = millis;
+        this.iterationEndsMillis = iterationEndsNanos / 1e6;
+        this.iteration = iteration;
+
+        StringBuilder header = new StringBuilder("Iteration, TrackerEvents, TrackerNanosPerEvent, BoardingEvents, " +
+                "BoardingNanosPerEvent, EventsPerSecond, OpenTrips, OpenTripCapacity");
+        StringBuilder row = new StringBuilder().append(iteration).append(", ").append(trackerEvents).append(", ")
+                .append(trackerNanosPerEvent).append(", ").append(boardingEvents).append(", ")
+                .append(boardingNanosPerEvent).append(", ").append(eventsPerSecond).append(", ").append(open)
+                .append(", ").append(capacity);
+        for(Phase phase : Phase.values()) {
+            header.append(", ").append(phase).append("Millis");
+            row.append(", ").append(millis[phase.ordinal()]);
+        }
+        header.append(", IterationEndsMillis");
+        row.append(", ").append(iterationEndsMillis).append("\n");
+        metrics.append(FILENAME_PERF, header.toString(), out -> out.write(row.toString()));
+
+        Arrays.fill(phaseNanos, 0);
+        mobsimNanos = 0;
+        handlers.resetStats();
+    }
+
+    /**
+     * Log the time of the listener at shutdown and unregister the MBean.
+     * @param shutdownNanos
+     */
+    public void shutdown(long shutdownNanos) {
+        if(!enabled) return;
+        this.shutdownMillis = shutdownNanos / 1e6;
+        log.info("Calibration listener shutdown took " + shutdownMillis + " ms");
+        if(objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Could not unregister the calibration MBean", e);
+        }
+    }
+
+    @Override
+    public int getIteration() {
+        return iteration;
+    }
+
+    @Override
+    public long getTrackerEvents() {
+        return trackerEvents;
+    }
+
+    @Override
+    public double getTrackerNanosPerEvent() {
+        return trackerNanosPerEvent;
+    }
+
+    @Override
+    public long getBoardingEvents() {
+        return boardingEvents;
+    }
+
+    @Override
+    public double getBoardingNanosPerEvent() {
+        return boardingNanosPerEvent;
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        return eventsPerSecond;
+    }
+
+    @Override
+    public int getOpenTrips() {
+        return openTrips;
+    }
+
+    @Override
+    public int getOpenTripCapacity() {
+        return openTripCapacity;
+    }
+
+    @Override
+    public double getMergeMillis() {
+        return phaseMillis[Phase.merge.ordinal()];
+    }
+
+    @Override
+    public double getWriteMillis() {
+        return phaseMillis[Phase.writes.ordinal()];
+    }
+
+    @Override
+    public double getPlanScanMillis() {
+        return phaseMillis[Phase.planScan.ordinal()];
+    }
+
+    @Override
+    public double getShareMillis() {
+        return phaseMillis[Phase.shares.ordinal()];
+    }
+
+    @Override
+    public double getConstantUpdateMillis() {
+        return phaseMillis[Phase.constantUpdate.ordinal()];
+    }
+
+    @Override
+    public double getCheckpointMillis() {
+        return phaseMillis[Phase.checkpoint.ordinal()];
+    }
+
+    @Override
+    public double getIterationEndsMillis() {
+        return iterationEndsMillis;
+    }
+
+    @Override
+    public double getShutdownMillis() {
+        return shutdownMillis;
+    }
+}
@@ -0,0 +1,42 @@
+package edu.byu.cougarsim.calibration;
+
+/**
+ * JMX view of the calibration instrumentation. All values are those of the last completed iteration.
+ */
+public interface CalibrationPerfMBean {
+
+    int getIteration();
+
+    long getTrackerEvents();
+
+    double getTrackerNanosPerEvent();
+
+    long getBoardingEvents();
+
+    double getBoardingNanosPerEvent();
+
+    /**
+     * @return the events handled by the trackers per second of mobsim wall time
+     */
+    double getEventsPerSecond();
+
+    int getOpenTrips();
+
+    int getOpenTripCapacity();
+
+    double getMergeMillis();
+
+    double getWriteMillis();
+
+    double getPlanScanMillis();
+
+    double getShareMillis();
+
+    double getConstantUpdateMillis();
+
+    double getCheckpointMillis();
+
+    double getIterationEndsMillis();
+
+    double getShutdownMillis();
+}
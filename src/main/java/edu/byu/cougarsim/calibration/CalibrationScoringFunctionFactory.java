@@ -0,0 +1,47 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.scoring.ScoringFunction;
+import org.matsim.core.scoring.ScoringFunctionFactory;
+import org.matsim.core.scoring.SumScoringFunction;
+import org.matsim.core.scoring.functions.*;
+
+import javax.inject.Inject;
+
+/**
+ * The Charypar-Nagel scoring function, plus the {@link PurposeModeConstantScoring} term as long as there are
+ * purpose-specific mode constants.
+ */
+public class CalibrationScoringFunctionFactory implements ScoringFunctionFactory {
+
+    private final ScoringParametersForPerson parameters;
+    private final Network network;
+    private final TripPurposeClassifier classifier;
+    private final PurposeModeConstants purposeModeConstants;
+
+    @Inject
+    public CalibrationScoringFunctionFactory(ScoringParametersForPerson parameters, Network network,
+                                             TripPurposeClassifier classifier, PurposeModeConstants purposeModeConstants) {
+        this.parameters = parameters;
+        this.network = network;
+        this.classifier = classifier;
+        this.purposeModeConstants = purposeModeConstants;
+    }
+
+    @Override
+    public ScoringFunction createNewScoringFunction(Person person) {
+        ScoringParameters params = parameters.getScoringParameters(person);
+
+        SumScoringFunction sumScoringFunction = new SumScoringFunction();
+        sumScoringFunction.addScoringFunction(new CharyparNagelActivityScoring(params));
+        sumScoringFunction.addScoringFunction(new CharyparNagelLegScoring(params, network));
+        sumScoringFunction.addScoringFunction(new CharyparNagelMoneyScoring(params));
+        sumScoringFunction.addScoringFunction(new CharyparNagelAgentStuckScoring(params));
+        if(!purposeModeConstants.isEmpty()) {
+            sumScoringFunction.addScoringFunction(new PurposeModeConstantScoring(classifier,
+                    purposeModeConstants.getConstants()));
+        }
+        return sumScoringFunction;
+    }
+}
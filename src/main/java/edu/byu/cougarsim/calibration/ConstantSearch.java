@@ -0,0 +1,159 @@
+package edu.byu.cougarsim.calibration;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Proposes batches of mode constant vectors for calibration runs that are simulated side by side, and moves towards
+ * the target shares from their results.
+ *
+ * A batch is centred on the current constants: the first vector is the centre itself, the next ones move the
+ * constant of one mode up (and, with enough variants, down) by the perturbation. The shares of the perturbed runs
+ * give finite-difference slopes <code>dS_i/dC_i</code>; modes that were not perturbed, or whose slope is lost in
+ * simulation noise, use the slope of a logit model, <code>scale * S_i * (1 - S_i)</code>. The next centre takes a
+ * Newton step on every mode, limited to the largest step. If the centre of a batch is further from the targets than
+ * the one before, the search does not step from it but bisects back towards the better centre.
+ *
+ * The first mode is the reference mode; its constant stays at its start value.
+ */
+public class ConstantSearch {
+    private final static Logger log = Logger.getLogger(ConstantSearch.class);
+
+    private final double[] targets;
+    private final double scale;
+    private final double perturbation;
+    private final double maxStep;
+
+    private double[] center;
+    private double[] bestCenter = null;
+    private double bestResidual = Double.POSITIVE_INFINITY;
+    private int nextMode = 1;
+
+    /**
+     * @param targets the target shares, reference mode first
+     * @param start the constants of the first batch centre, in the order of the targets
+     * @param scale the logit scale of plan selection, usually <code>planCalcScore.BrainExpBeta</code>
+     * @param perturbation the change of a constant for the finite differences
+     * @param maxStep the largest change of a constant from one centre to the next
+     */
+    public ConstantSearch(double[] targets, double[] start, double scale, double perturbation, double maxStep) {
+        if(targets.length < 2 || start.length != targets.length) {
+            throw new IllegalArgumentException("The search needs a start constant and a target for at least two modes");
+        }
+        this.targets = targets.clone();
+        this.center = start.clone();
+        this.scale = scale;
+        this.perturbation = perturbation;
+        this.maxStep = maxStep;
+    }
+
+    /**
+     * @param variants the number of runs that can be simulated at once
+     * @return the constant vectors of the next batch, the centre first; at most one more than twice the number of
+     * free modes, since more runs would add no information
+     */
+    public double[][] proposeBatch(int variants) {
+        int free = targets.length - 1;
+        int size = Math.max(1, Math.min(variants, 2 * free + 1));
+        double[][] batch = new double[size][];
+        batch[0] = center.clone();
+        for(int v = 1; v < size; v++) {
+            // the first pass moves constants up, a second pass moves them down for central differences
+            int mode = 1 + (nextMode - 1 + (v - 1) % free) % free;
+            batch[v] = center.clone();
+            batch[v][mode] += v <= free ? perturbation : -perturbation;
+        }
+        // with fewer variants than modes, the next batch perturbs the modes left out of this one
+        nextMode = 1 + (nextMode - 1 + Math.max(0, size - 1)) % free;
+        return batch;
+    }
+
+    /**
+     * Take the results of a batch and move the centre for the next one.
+     * @param batch the constant vectors of the batch, as proposed
+     * @param shares the simulated shares of every vector in the order of the targets, null for failed runs
+     * @return the largest difference between the simulated and the target shares at the centre of the batch
+     */
+    public double update(double[][] batch, double[][] shares) {
+        if(shares[0] == null) {
+            throw new IllegalStateException("The run at the centre of the batch failed, cannot continue the search");
+        }
+        double residual = residual(shares[0]);
+        if(residual > bestResidual) {
+            log.info("Batch centre is further from the targets (" + residual + ") than the best so far (" +
+                    bestResidual + "), bisecting back");
+            for(int mode = 1; mode < center.length; mode++) {
+                center[mode] = 0.5 * (center[mode] + bestCenter[mode]);
+            }
+            return residual;
+        }
+        bestResidual = residual;
+        bestCenter = batch[0].clone();
+
+        double[] upper = new double[targets.length];
+        double[] lower = new double[targets.length];
+        Arrays.fill(upper, Double.NaN);
+        Arrays.fill(lower, Double.NaN);
+        for(int v = 1; v < batch.length; v++) {
+            if(shares[v] == null) continue;
+            for(int mode = 1; mode < targets.length; mode++) {
+                double change = batch[v][mode] - batch[0][mode];
+                if(change > 0) upper[mode] = shares[v][mode];
+                if(change < 0) lower[mode] = shares[v][mode];
+            }
+        }
+
+        double[] next = batch[0].clone();
+        for(int mode = 1; mode < targets.length; mode++) {
+            double share = shares[0][mode];
+            double slope = slope(share, upper[mode], lower[mode]);
+            double step = (targets[mode] - share) / slope;
+            next[mode] += Math.max(-maxStep, Math.min(maxStep, step));
+        }
+        center = next;
+        return residual;
+    }
+
+    private double slope(double share, double upper, double lower) {
+        double slope;
+        if(!Double.isNaN(upper) && !Double.isNaN(lower)) {
+            slope = (upper - lower) / (2 * perturbation);
+        } else if(!Double.isNaN(upper)) {
+            slope = (upper - share) / perturbation;
+        } else if(!Double.isNaN(lower)) {
+            slope = (share - lower) / perturbation;
+        } else {
+            slope = 0.0;
+        }
+        // a share cannot fall when its own constant rises, so a flat or negative difference is noise
+        double logitSlope = scale * share * (1 - share);
+        return slope > 0.1 * logitSlope ? slope : Math.max(logitSlope, 1e-6);
+    }
+
+    private double residual(double[] shares) {
+        double residual = 0.0;
+        for(int mode = 0; mode < targets.length; mode++) {
+            residual = Math.max(residual, Math.abs(shares[mode] - targets[mode]));
+        }
+        return residual;
+    }
+
+    /**
+     * @return the constants of the next batch centre
+     */
+    public double[] getCenter() {
+        return center.clone();
+    }
+
+    /**
+     * @return the batch centre closest to the targets so far, or null before the first update
+     */
+    public double[] getBestCenter() {
+        return bestCenter == null ? null : bestCenter.clone();
+    }
+
+    public double getBestResidual() {
+        return bestResidual;
+    }
+}
@@ -0,0 +1,140 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.core.controler.TerminationCriterion;
+
+/**
+ * Ends a run early once the mode shares, the transit boardings and the calibration objective have stopped moving.
+ *
+ * Every iteration the listener hands the monitor the mode shares within every purpose, the total boardings and the
+ * objective, the largest difference between a simulated and a target share. Over the last <code>window + 1</code>
+ * iterations the change of a figure is the spread between its largest and smallest value; the boardings change is
+ * relative to their mean. The run has converged when all three changes are within their tolerances, and the monitor,
+ * as the termination criterion of the controler, does not start another iteration after that.
+ */
+public class ConvergenceMonitor implements TerminationCriterion {
+
+    private final int window;
+    private final double shareTolerance;
+    private final double boardingsTolerance;
+    private final double objectiveTolerance;
+    private final int lastIteration;
+
+    // the last window + 1 iterations, oldest overwritten first
+    private final double[][][] shares;
+    private final double[] boardings;
+    private final double[] objective;
+    private int recorded = 0;
+
+    private double shareChange = Double.NaN;
+    private double boardingsChange = Double.NaN;
+    private double objectiveChange = Double.NaN;
+    private int convergedIteration = -1;
+
+    /**
+     * @param window the number of iterations over which the figures have to stay within the tolerances
+     * @param shareTolerance largest change of a mode share within a purpose
+     * @param boardingsTolerance largest relative change of the total boardings
+     * @param objectiveTolerance largest change of the objective
+     * @param lastIteration the last iteration of the config, after which the run ends anyway
+     */
+    public ConvergenceMonitor(int window, double shareTolerance, double boardingsTolerance, double objectiveTolerance,
+                              int lastIteration) {
+        if(window < 1) throw new IllegalArgumentException("The convergence window needs at least one iteration");
+        this.window = window;
+        this.shareTolerance = shareTolerance;
+        this.boardingsTolerance = boardingsTolerance;
+        this.objectiveTolerance = objectiveTolerance;
+        this.lastIteration = lastIteration;
+        this.shares = new double[window + 1][][];
+        this.boardings = new double[window + 1];
+        this.objective = new double[window + 1];
+    }
+
+    /**
+     * Record the figures of an iteration.
+     * @param iteration
+     * @param shares the mode shares within every purpose, indexed by purpose and mode code
+     * @param boardings the total transit boardings
+     * @param objective the calibration objective, or NaN if there are no targets
+     * @return true if the run has converged with this iteration
+     */
+    public boolean update(int iteration, double[][] shares, double boardings, double objective) {
+        int slot = recorded % (window + 1);
+        this.shares[slot] = shares;
+        this.boardings[slot] = boardings;
+        this.objective[slot] = objective;
+        recorded++;
+        if(recorded <= window) return false;
+
+        shareChange = 0.0;
+        double minBoardings = Double.POSITIVE_INFINITY, maxBoardings = Double.NEGATIVE_INFINITY, sumBoardings = 0.0;
+        double minObjective = Double.POSITIVE_INFINITY, maxObjective = Double.NEGATIVE_INFINITY;
+        // the classifier may intern modes during the run, missing shares are 0
+        int purposes = 0, modes = 0;
+        for(double[][] table : this.shares) {
+            purposes = Math.max(purposes, table.length);
+            for(double[] row : table) modes = Math.max(modes, row.length);
+        }
+        for(int purpose = 0; purpose < purposes; purpose++) {
+            for(int mode = 0; mode < modes; mode++) {
+                double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+                for(double[][] table : this.shares) {
+                    double share = purpose < table.length && mode < table[purpose].length ? table[purpose][mode] : 0.0;
+                    min = Math.min(min, share);
+                    max = Math.max(max, share);
+                }
+                shareChange = Math.max(shareChange, max - min);
+            }
+        }
+        for(int s = 0; s <= window; s++) {
+            minBoardings = Math.min(minBoardings, this.boardings[s]);
+            maxBoardings = Math.max(maxBoardings, this.boardings[s]);
+            sumBoardings += this.boardings[s];
+            minObjective = Math.min(minObjective, this.objective[s]);
+            maxObjective = Math.max(maxObjective, this.objective[s]);
+        }
+        boardingsChange = sumBoardings > 0 ? (maxBoardings - minBoardings) / (sumBoardings / (window + 1)) : 0.0;
+        // NaN objectives compare false both ways and leave the spread at 0
+        objectiveChange = maxObjective >= minObjective ? maxObjective - minObjective : 0.0;
+
+        if(convergedIteration < 0 && shareChange <= shareTolerance && boardingsChange <= boardingsTolerance &&
+                objectiveChange <= objectiveTolerance) {
+            convergedIteration = iteration;
+        }
+        return convergedIteration >= 0;
+    }
+
+    @Override
+    public boolean continueIterations(int iteration) {
+        return iteration <= lastIteration && (convergedIteration < 0 || iteration <= convergedIteration);
+    }
+
+    public boolean isConverged() {
+        return convergedIteration >= 0;
+    }
+
+    /**
+     * @return the iteration the run converged with, or -1
+     */
+    public int getConvergedIteration() {
+        return convergedIteration;
+    }
+
+    /**
+     * @return the largest spread of a mode share over the last window, NaN until the window is filled
+     */
+    public double getShareChange() {
+        return shareChange;
+    }
+
+    /**
+     * @return the spread of the total boardings over the last window relative to their mean
+     */
+    public double getBoardingsChange() {
+        return boardingsChange;
+    }
+
+    public double getObjectiveChange() {
+        return objectiveChange;
+    }
+}
@@ -2,34 +2,226 @@ package edu.byu.cougarsim.calibration;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Histogram of counts over bins with configurable lower edges. A value falls into the last bin whose lower edge
+ * is not above it; values below the first edge count in the first bin and values above the last edge are
+ * top-coded into the last bin.
+ *
+ * A plain bin keeps its counts in a <code>long[]</code> and must only be updated from one thread. A concurrent bin
+ * (see {@link #concurrent()}) keeps a {@link LongAdder} per bin, so several event handling threads can update it
+ * without locks. Per-thread bins can also be combined with {@link #merge(CountBin)} at the end of an iteration.
+ */
 public class CountBin {
-    private Integer[] bins;
+    private final double[] lowerEdges;
+    private final double uniformWidth;
+    private final long[] bins;
+    private final LongAdder[] adders;
 
+    /**
+     * Create bins of width one, so {@link #updateBin(int)} and {@link #add(double)} agree.
+     * @param size
+     */
     public CountBin(Integer size){
-        this.bins = new Integer[size];
-        for(Integer i = 0; i < bins.length; i++) {
-            bins[i] = 0;
+        this(uniformEdges(size, 1.0), 1.0, false);
+    }
+
+    private CountBin(double[] lowerEdges, double uniformWidth, boolean concurrent) {
+        if(lowerEdges.length == 0) {
+            throw new IllegalArgumentException("A CountBin needs at least one bin");
+        }
+        for(int i = 1; i < lowerEdges.length; i++) {
+            if(lowerEdges[i] <= lowerEdges[i - 1]) {
+                throw new IllegalArgumentException("Bin edges must be increasing: " + Arrays.toString(lowerEdges));
+            }
+        }
+        this.lowerEdges = lowerEdges;
+        this.uniformWidth = uniformWidth;
+        if(concurrent) {
+            this.bins = null;
+            this.adders = new LongAdder[lowerEdges.length];
+            for(int i = 0; i < adders.length; i++) {
+                adders[i] = new LongAdder();
+            }
+        } else {
+            this.bins = new long[lowerEdges.length];
+            this.adders = null;
+        }
+    }
+
+    /**
+     * @param size number of bins
+     * @param width width of every bin, starting at zero
+     * @return
+     */
+    public static CountBin uniform(int size, double width) {
+        return new CountBin(uniformEdges(size, width), width, false);
+    }
+
+    /**
+     * Bins whose widths grow geometrically from <code>min</code> to <code>max</code>, with a first bin from zero
+     * to <code>min</code>. Useful for trip distances and times with a long tail.
+     * @param size number of bins, at least two
+     * @param min lower edge of the second bin
+     * @param max lower edge of the last bin
+     * @return
+     */
+    public static CountBin logarithmic(int size, double min, double max) {
+        if(size < 2 || min <= 0 || max <= min) {
+            throw new IllegalArgumentException("Logarithmic bins need size >= 2 and 0 < min < max");
+        }
+        double[] edges = new double[size];
+        double ratio = Math.log(max / min) / (size - 2);
+        for(int i = 1; i < size; i++) {
+            edges[i] = size == 2 ? min : min * Math.exp(ratio * (i - 1));
         }
+        return new CountBin(edges, 0, false);
+    }
+
+    /**
+     * @param lowerEdges increasing lower edges of the bins
+     * @return
+     */
+    public static CountBin withEdges(double... lowerEdges) {
+        return new CountBin(lowerEdges.clone(), 0, false);
+    }
+
+    /**
+     * Parse a bin definition: <code>uniform:size:width</code>, <code>log:size:min:max</code> or
+     * <code>edges:e0,e1,...</code>.
+     * @param definition
+     * @return
+     */
+    public static CountBin parse(String definition) {
+        String[] parts = definition.trim().split(":");
+        switch(parts[0]) {
+            case "uniform":
+                return uniform(Integer.parseInt(parts[1]), Double.parseDouble(parts[2]));
+            case "log":
+                return logarithmic(Integer.parseInt(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+            case "edges":
+                String[] values = parts[1].split(",");
+                double[] edges = new double[values.length];
+                for(int i = 0; i < values.length; i++) {
+                    edges[i] = Double.parseDouble(values[i].trim());
+                }
+                return withEdges(edges);
+            default:
+                throw new IllegalArgumentException("Unknown bin definition: " + definition);
+        }
+    }
+
+    private static double[] uniformEdges(int size, double width) {
+        double[] edges = new double[size];
+        for(int i = 0; i < size; i++) {
+            edges[i] = i * width;
+        }
+        return edges;
+    }
+
+    /**
+     * @return an empty bin with the same edges that can be updated from several threads at once
+     */
+    public CountBin concurrent() {
+        return new CountBin(lowerEdges, uniformWidth, true);
+    }
+
+    /**
+     * @return an empty bin with the same edges and the same backing as this one
+     */
+    public CountBin emptyCopy() {
+        return new CountBin(lowerEdges, uniformWidth, adders != null);
+    }
+
+    /**
+     * Get the bin a value falls into.
+     * @param value
+     * @return
+     */
+    public int getBinIndex(double value) {
+        int last = lowerEdges.length - 1;
+        if(uniformWidth > 0) {
+            if(value <= 0) return 0;
+            double index = value / uniformWidth;
+            return index >= last ? last : (int) index;
+        }
+        int index = Arrays.binarySearch(lowerEdges, value);
+        if(index < 0) index = -index - 2; // insertion point - 1 is the bin with the last lower edge below the value
+        return index < 0 ? 0 : index;
+    }
+
+    /**
+     * Count a value in the bin it falls into.
+     * @param value
+     */
+    public void add(double value) {
+        updateBin(getBinIndex(value));
     }
 
     public void updateBin(int index) {
-        bins[index]++;
+        if(adders != null) {
+            adders[index].increment();
+        } else {
+            bins[index]++;
+        }
+    }
+
+    /**
+     * Add the counts of another bin with the same edges to this one.
+     * @param other
+     */
+    public void merge(CountBin other) {
+        if(!Arrays.equals(lowerEdges, other.lowerEdges)) {
+            throw new IllegalArgumentException("Cannot merge bins with different edges");
+        }
+        for(int i = 0; i < lowerEdges.length; i++) {
+            long count = other.getCount(i);
+            if(adders != null) {
+                adders[i].add(count);
+            } else {
+                bins[i] += count;
+            }
+        }
+    }
+
+    public long getCount(int index) {
+        return adders != null ? adders[index].sum() : bins[index];
+    }
+
+    /**
+     * @return a copy of the current counts
+     */
+    public long[] getBins() {
+        long[] counts = new long[lowerEdges.length];
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] = getCount(i);
+        }
+        return counts;
+    }
+
+    public double[] getLowerEdges() {
+        return lowerEdges.clone();
     }
 
-    public Integer[] getBins() {
-        return bins;
+    public int size() {
+        return lowerEdges.length;
     }
 
     public void clearBins() {
-        for(int i = 0; i < bins.length; i++) {
-            bins[i] = 0;
+        if(adders != null) {
+            for(LongAdder adder : adders) {
+                adder.reset();
+            }
+        } else {
+            Arrays.fill(bins, 0);
         }
     }
 
     public void writeBins(BufferedWriter writer) throws IOException {
-        for(Integer i = 0; i < bins.length; i++) {
-            writer.write(", " + bins[i]);
+        for(int i = 0; i < lowerEdges.length; i++) {
+            writer.write(", " + getCount(i));
         }
         writer.write("\n");
 
@@ -0,0 +1,139 @@
+package edu.byu.cougarsim.calibration;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Counts completed trips in distance bins (in kilometers) by trip purpose, and sums the person-kilometers travelled
+ * by main mode. For the modes driven on the network, e.g. car, each trip is also one vehicle on the road, so their
+ * person-kilometers are counted as vehicle-kilometers too. Transit vehicles carry no trip of their own and are not
+ * part of the vehicle-kilometers.
+ *
+ * The distances come from the {@link TripTracker}, which only measures them with a {@link VehicleOdometer}.
+ */
+public class DistanceCollector implements TripCollector {
+
+    private final TripPurposeClassifier classifier;
+    private final Set<String> vehicleModes;
+    private final CountBin[] distanceBins;
+    private double[] personKilometers;
+    private double[] vehicleKilometers;
+
+    /**
+     * @param classifier
+     * @param bins template for the distance bins of every purpose, in kilometers
+     * @param vehicleModes the modes whose trips drive their own vehicle, usually the main modes of the mobsim
+     */
+    public DistanceCollector(TripPurposeClassifier classifier, CountBin bins, Collection<String> vehicleModes) {
+        this.classifier = classifier;
+        this.vehicleModes = new HashSet<>(vehicleModes);
+        this.distanceBins = new CountBin[classifier.getNumberOfPurposes()];
+        for(int purpose = 0; purpose < distanceBins.length; purpose++) {
+            distanceBins[purpose] = bins.emptyCopy();
+        }
+        this.personKilometers = new double[classifier.getNumberOfModes()];
+        this.vehicleKilometers = new double[classifier.getNumberOfModes()];
+    }
+
+    @Override
+    public void handleTrip(TripRecord trip) {
+        double kilometers = trip.getDistance() / 1000.;
+        distanceBins[trip.getPurpose()].add(kilometers);
+
+        int mode = trip.getMode();
+        // modes that were not known at startup get a new code, so the sums may need to grow
+        if(mode >= personKilometers.length) {
+            growModes(classifier.getNumberOfModes());
+        }
+        personKilometers[mode] += kilometers;
+        if(vehicleModes.contains(classifier.getModeName(mode))) {
+            vehicleKilometers[mode] += kilometers;
+        }
+    }
+
+    private void growModes(int numberOfModes) {
+        if(numberOfModes <= personKilometers.length) return;
+        personKilometers = Arrays.copyOf(personKilometers, numberOfModes);
+        vehicleKilometers = Arrays.copyOf(vehicleKilometers, numberOfModes);
+    }
+
+    @Override
+    public TripCollector newShard() {
+        return new DistanceCollector(classifier, distanceBins[0], vehicleModes);
+    }
+
+    @Override
+    public void merge(TripCollector shard) {
+        DistanceCollector other = (DistanceCollector) shard;
+        for(int purpose = 0; purpose < distanceBins.length; purpose++) {
+            distanceBins[purpose].merge(other.distanceBins[purpose]);
+        }
+        growModes(other.personKilometers.length);
+        for(int mode = 0; mode < other.personKilometers.length; mode++) {
+            personKilometers[mode] += other.personKilometers[mode];
+            vehicleKilometers[mode] += other.vehicleKilometers[mode];
+        }
+    }
+
+    /**
+     * @return a copy of the bin counts, indexed by purpose code and bin
+     */
+    public long[][] getDistanceBins() {
+        long[][] counts = new long[distanceBins.length][];
+        for(int purpose = 0; purpose < distanceBins.length; purpose++) {
+            counts[purpose] = distanceBins[purpose].getBins();
+        }
+        return counts;
+    }
+
+    /**
+     * @return the lower edges of the bins, in kilometers
+     */
+    public double[] getLowerEdges() {
+        return distanceBins[0].getLowerEdges();
+    }
+
+    /**
+     * @return a copy of the person-kilometers, indexed by mode code
+     */
+    public double[] getPersonKilometers() {
+        return personKilometers.clone();
+    }
+
+    /**
+     * @return a copy of the vehicle-kilometers, indexed by mode code
+     */
+    public double[] getVehicleKilometers() {
+        return vehicleKilometers.clone();
+    }
+
+    public void writeDistanceBins(File distanceBinFile) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(distanceBinFile))) {
+            writer.write("Purpose");
+            for(double edge : distanceBins[0].getLowerEdges()) {
+                writer.write(", " + edge);
+            }
+            writer.write("\n");
+
+            for(int purpose = 0; purpose < distanceBins.length; purpose++) {
+                writer.write(classifier.getPurposeName(purpose));
+                distanceBins[purpose].writeBins(writer);
+            }
+        }
+    }
+
+    @Override
+    public void reset(int iteration) {
+        for(CountBin bins : distanceBins) {
+            bins.clearBins();
+        }
+        Arrays.fill(personKilometers, 0.0);
+        Arrays.fill(vehicleKilometers, 0.0);
+    }
+}
@@ -0,0 +1,66 @@
+package edu.byu.cougarsim.calibration;
+
+/**
+ * Event count and sampled handling time of one instrumented event handler. Every event is counted; the handling
+ * time is measured for every <code>sampleInterval</code>-th event only, so the two calls to
+ * {@link System#nanoTime()} are not paid on every event.
+ *
+ * A handler is driven by one thread at a time, so the counters are plain fields. They are read after the events of
+ * an iteration are processed.
+ */
+public final class HandlerStats {
+
+    private final int sampleInterval;
+    private int sinceSample = 0;
+    private long events = 0;
+    private long samples = 0;
+    private long sampledNanos = 0;
+
+    public HandlerStats(int sampleInterval) {
+        this.sampleInterval = Math.max(1, sampleInterval);
+    }
+
+    /**
+     * Count an event.
+     * @return the start time if this event is sampled, 0 otherwise
+     */
+    long begin() {
+        events++;
+        if(++sinceSample < sampleInterval) return 0;
+        sinceSample = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * @param start the value returned by {@link #begin()}
+     */
+    void end(long start) {
+        if(start == 0) return;
+        sampledNanos += System.nanoTime() - start;
+        samples++;
+    }
+
+    public void add(HandlerStats other) {
+        events += other.events;
+        samples += other.samples;
+        sampledNanos += other.sampledNanos;
+    }
+
+    public void reset() {
+        sinceSample = 0;
+        events = 0;
+        samples = 0;
+        sampledNanos = 0;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the mean handling time of the sampled events, in nanoseconds
+     */
+    public double getNanosPerEvent() {
+        return samples == 0 ? 0.0 : (double) sampledNanos / samples;
+    }
+}
@@ -0,0 +1,64 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Id;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense integer index for a set of MATSim ids, so per-id state can live in primitive arrays.
+ *
+ * The MATSim version used here has no <code>Id.index()</code>, so the index is built once from the known ids
+ * (persons, vehicles, links) and a lookup is a single hash probe with no allocation. Ids that were not known when
+ * the index was built can be appended with {@link #add(Id)}; adding is not thread-safe.
+ * @param <T>
+ */
+public final class IdIndex<T> {
+
+    private final Map<Id<T>, Integer> indices;
+    private final List<Id<T>> ids;
+
+    public IdIndex(Iterable<Id<T>> ids, int expectedSize) {
+        this.indices = new HashMap<>(Math.max(16, (int) (expectedSize / 0.75f) + 1));
+        this.ids = new ArrayList<>(expectedSize);
+        for(Id<T> id : ids) {
+            add(id);
+        }
+    }
+
+    public IdIndex() {
+        this.indices = new HashMap<>();
+        this.ids = new ArrayList<>();
+    }
+
+    /**
+     * @param id
+     * @return the index of the id, or -1 if the id is not in the index
+     */
+    public int get(Id<T> id) {
+        Integer index = indices.get(id);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @param id
+     * @return the index of the id, appending it to the index if necessary
+     */
+    public int add(Id<T> id) {
+        Integer index = indices.get(id);
+        if(index != null) return index;
+        ids.add(id);
+        indices.put(id, ids.size() - 1);
+        return ids.size() - 1;
+    }
+
+    public Id<T> getId(int index) {
+        return ids.get(index);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,24 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+
+/**
+ * An {@link InstrumentedTripTracker} that also measures trip distances, like the {@link OdometerTripTracker}, and
+ * counts and times the link events as well.
+ */
+class InstrumentedOdometerTripTracker extends InstrumentedTripTracker implements LinkEnterEventHandler {
+
+    InstrumentedOdometerTripTracker(TripPurposeClassifier classifier, OpenTripStore openTrips,
+                                    TransitIndex transitIndex, VehicleOdometer odometer, HandlerStats stats) {
+        super(classifier, openTrips, transitIndex, odometer, stats);
+        if(odometer == null) throw new IllegalArgumentException("An odometer trip tracker needs an odometer");
+    }
+
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
+        long start = getStats().begin();
+        getOdometer().enterLink(event.getVehicleId(), event.getLinkId());
+        getStats().end(start);
+    }
+}
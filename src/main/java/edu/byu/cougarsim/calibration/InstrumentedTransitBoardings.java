@@ -0,0 +1,52 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.core.api.experimental.events.TransitDriverStartsEvent;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+
+/**
+ * A shard of the {@link TransitBoardingsEventHandler} that counts and samples the time of the events it handles.
+ * Only used with instrumentation switched on.
+ */
+class InstrumentedTransitBoardings extends TransitBoardingsEventHandler {
+
+    private final HandlerStats stats;
+
+    InstrumentedTransitBoardings(TransitIndex transitIndex, int partition, int partitions, HandlerStats stats) {
+        super(transitIndex, partition, partitions);
+        this.stats = stats;
+    }
+
+    HandlerStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void handleEvent(TransitDriverStartsEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(VehicleArrivesAtFacilityEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(PersonEntersVehicleEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(PersonLeavesVehicleEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+}
@@ -0,0 +1,77 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.core.api.experimental.events.TeleportationArrivalEvent;
+import org.matsim.core.api.experimental.events.TransitDriverStartsEvent;
+
+/**
+ * A {@link TripTracker} that counts and samples the time of the events it handles, including the time of its
+ * collectors. Only used with instrumentation switched on, so the plain tracker carries no timing code.
+ */
+class InstrumentedTripTracker extends TripTracker {
+
+    private final HandlerStats stats;
+
+    InstrumentedTripTracker(TripPurposeClassifier classifier, OpenTripStore openTrips, TransitIndex transitIndex,
+                            VehicleOdometer odometer, HandlerStats stats) {
+        super(classifier, openTrips, transitIndex, odometer);
+        this.stats = stats;
+    }
+
+    HandlerStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void handleEvent(ActivityEndEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(PersonDepartureEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(TransitDriverStartsEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(PersonEntersVehicleEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(PersonLeavesVehicleEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(TeleportationArrivalEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+
+    @Override
+    public void handleEvent(ActivityStartEvent event) {
+        long start = stats.begin();
+        super.handleEvent(event);
+        stats.end(start);
+    }
+}
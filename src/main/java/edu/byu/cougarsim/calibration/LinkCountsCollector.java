@@ -0,0 +1,234 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.counts.Count;
+import org.matsim.counts.Counts;
+import org.matsim.counts.MatsimCountsReader;
+import org.matsim.counts.Volume;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compares the simulated hourly link volumes with traffic counts.
+ *
+ * Volumes are counted per count station and hour in one primitive array, from the <code>LinkEnterEvent</code>s.
+ * Most links of a large network have no station, so every event is first tested against a bit set of the hashes
+ * of the counted links: an uncounted link costs one bit test, and only the few links whose hash bit is set pay a
+ * hash lookup for their station. The MATSim version used here has no <code>Id.index()</code> that a bit set could
+ * be indexed with directly (see {@link IdIndex}). The filter has at least 32 bits per station, so at most about
+ * 3% of the uncounted links pass it.
+ *
+ * {@link #compare()} computes the GEH statistic of every station and hour with a count, and the RMSE, bias and
+ * mean GEH of every station, every hour and all of them together.
+ */
+public class LinkCountsCollector implements LinkEnterEventHandler {
+
+    public static final int HOURS = 24;
+    private static final int MIN_FILTER_BITS = 1 << 16;
+    private static final int FILTER_BITS_PER_STATION = 32;
+
+    private final IdIndex<Link> stations = new IdIndex<>();
+    private final String[] stationNames;
+    private final long[] filter;
+    private final int filterMask;
+    private final double scaleFactor;
+
+    private final int[] volumes;
+    private final double[] observed;
+
+    /**
+     * @param counts
+     * @param scaleFactor the factor from simulated to counted vehicles
+     */
+    public LinkCountsCollector(Counts<Link> counts, double scaleFactor) {
+        this.scaleFactor = scaleFactor;
+        int n = counts.getCounts().size();
+        this.stationNames = new String[n];
+        this.observed = new double[n * HOURS];
+        this.volumes = new int[n * HOURS];
+        Arrays.fill(observed, Double.NaN);
+
+        int bits = Integer.highestOneBit(Math.max(MIN_FILTER_BITS, n * FILTER_BITS_PER_STATION - 1)) << 1;
+        this.filter = new long[bits >>> 6];
+        this.filterMask = bits - 1;
+
+        for(Map.Entry<Id<Link>, Count<Link>> entry : counts.getCounts().entrySet()) {
+            Count<Link> count = entry.getValue();
+            int station = stations.add(entry.getKey());
+            stationNames[station] = count.getCsLabel();
+            for(int hour = 0; hour < HOURS; hour++) {
+                Volume volume = count.getVolume(hour + 1);
+                if(volume != null) observed[station * HOURS + hour] = volume.getValue();
+            }
+            int bit = hash(entry.getKey());
+            filter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param url
+     * @return the counts of a counts file
+     */
+    public static Counts<Link> readCounts(URL url) {
+        Counts<Link> counts = new Counts<>();
+        new MatsimCountsReader(counts).parse(url);
+        return counts;
+    }
+
+    private int hash(Id<Link> link) {
+        int h = link.hashCode();
+        return (h ^ (h >>> 16)) & filterMask;
+    }
+
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
+        int bit = hash(event.getLinkId());
+        if((filter[bit >>> 6] & (1L << bit)) == 0) return;
+        int station = stations.get(event.getLinkId());
+        if(station < 0) return;
+        int hour = (int) (event.getTime() / 3600);
+        if(hour < HOURS) volumes[station * HOURS + hour]++;
+    }
+
+    @Override
+    public void reset(int iteration) {
+        Arrays.fill(volumes, 0);
+    }
+
+    public int getNumberOfStations() {
+        return stationNames.length;
+    }
+
+    public Id<Link> getStationLink(int station) {
+        return stations.getId(station);
+    }
+
+    public String getStationName(int station) {
+        return stationNames[station];
+    }
+
+    /**
+     * @return the simulated vehicles by station and hour, indexed <code>station * HOURS + hour</code>
+     */
+    public int[] getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * @return the GEH statistics and errors of the volumes counted so far
+     */
+    public Comparison compare() {
+        return new Comparison(this);
+    }
+
+    /**
+     * GEH = sqrt(2 (s - c)^2 / (s + c)) of the scaled simulated volume s and the count c, and the root mean square
+     * error, mean error (simulated minus counted) and mean GEH over the hours with a count. Values are NaN where
+     * there is nothing to compare.
+     */
+    public static final class Comparison {
+        final double[] simulated;
+        final double[] observed;
+        final double[] geh;
+        final double[][] station;
+        final double[][] hour;
+        final double[] total;
+        final int hoursWithGehBelow5;
+        final int comparisons;
+
+        private Comparison(LinkCountsCollector counts) {
+            int n = counts.getNumberOfStations();
+            this.simulated = new double[n * HOURS];
+            this.observed = counts.observed;
+            this.geh = new double[n * HOURS];
+            Errors[] stationErrors = new Errors[n];
+            Errors[] hourErrors = new Errors[HOURS];
+            Errors totalErrors = new Errors();
+            for(int h = 0; h < HOURS; h++) hourErrors[h] = new Errors();
+            int below5 = 0;
+            int compared = 0;
+            for(int s = 0; s < n; s++) {
+                stationErrors[s] = new Errors();
+                for(int h = 0; h < HOURS; h++) {
+                    int cell = s * HOURS + h;
+                    simulated[cell] = counts.volumes[cell] * counts.scaleFactor;
+                    if(Double.isNaN(observed[cell])) {
+                        geh[cell] = Double.NaN;
+                        continue;
+                    }
+                    double difference = simulated[cell] - observed[cell];
+                    double sum = simulated[cell] + observed[cell];
+                    geh[cell] = sum == 0.0 ? 0.0 : Math.sqrt(2 * difference * difference / sum);
+                    stationErrors[s].add(difference, geh[cell]);
+                    hourErrors[h].add(difference, geh[cell]);
+                    totalErrors.add(difference, geh[cell]);
+                    compared++;
+                    if(geh[cell] < 5) below5++;
+                }
+            }
+            this.station = new double[n][];
+            for(int s = 0; s < n; s++) station[s] = stationErrors[s].values();
+            this.hour = new double[HOURS][];
+            for(int h = 0; h < HOURS; h++) hour[h] = hourErrors[h].values();
+            this.total = totalErrors.values();
+            this.hoursWithGehBelow5 = below5;
+            this.comparisons = compared;
+        }
+
+        public double getGeh(int station, int hour) {
+            return geh[station * HOURS + hour];
+        }
+
+        /**
+         * @return RMSE, bias and mean GEH of a station over its counted hours
+         */
+        public double[] getStationErrors(int station) {
+            return this.station[station];
+        }
+
+        /**
+         * @return RMSE, bias and mean GEH of an hour over the stations counted in it
+         */
+        public double[] getHourErrors(int hour) {
+            return this.hour[hour];
+        }
+
+        /**
+         * @return RMSE, bias and mean GEH over all counted stations and hours
+         */
+        public double[] getTotalErrors() {
+            return total;
+        }
+
+        /**
+         * @return the share of the counted station hours with a GEH below 5
+         */
+        public double getShareGehBelow5() {
+            return comparisons == 0 ? Double.NaN : (double) hoursWithGehBelow5 / comparisons;
+        }
+    }
+
+    private static final class Errors {
+        private int n = 0;
+        private double squares = 0.0;
+        private double differences = 0.0;
+        private double gehs = 0.0;
+
+        void add(double difference, double geh) {
+            n++;
+            squares += difference * difference;
+            differences += difference;
+            gehs += geh;
+        }
+
+        double[] values() {
+            if(n == 0) return new double[]{Double.NaN, Double.NaN, Double.NaN};
+            return new double[]{Math.sqrt(squares / n), differences / n, gehs / n};
+        }
+    }
+}
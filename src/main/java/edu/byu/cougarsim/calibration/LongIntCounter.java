@@ -0,0 +1,115 @@
+package edu.byu.cougarsim.calibration;
+
+import java.util.Arrays;
+
+/**
+ * Counts by non-negative long key in an open-addressing hash table of primitive arrays, for sparse matrices whose
+ * full size would not fit in memory. Memory grows with the number of non-empty keys only; nothing is allocated
+ * per count.
+ */
+public final class LongIntCounter {
+
+    private static final long EMPTY = -1L;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+
+    public LongIntCounter() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongIntCounter(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expectedSize * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @param key a non-negative key
+     * @param delta
+     */
+    public void add(long key, int delta) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while(keys[slot] != EMPTY) {
+            if(keys[slot] == key) {
+                values[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        // keep the table at most half full
+        if(++size * 2 > keys.length) grow();
+    }
+
+    public int get(long key) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while(keys[slot] != EMPTY) {
+            if(keys[slot] == key) return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        int mask = keys.length - 1;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] == EMPTY) continue;
+            int slot = slot(oldKeys[i], mask);
+            while(keys[slot] != EMPTY) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /**
+     * Add all counts of another counter.
+     * @param other
+     */
+    public void addAll(LongIntCounter other) {
+        for(int i = 0; i < other.keys.length; i++) {
+            if(other.keys[i] != EMPTY) add(other.keys[i], other.values[i]);
+        }
+    }
+
+    /**
+     * @return the keys with a count, in increasing order
+     */
+    public long[] sortedKeys() {
+        long[] sorted = new long[size];
+        int n = 0;
+        for(long key : keys) {
+            if(key != EMPTY) sorted[n++] = key;
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all counts, keeping the table size, which the next iteration is likely to need again.
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+}
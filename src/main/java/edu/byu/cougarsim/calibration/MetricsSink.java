@@ -0,0 +1,202 @@
+package edu.byu.cougarsim.calibration;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends rows to CSV files on a background thread, so the controler does not wait for the disk at the end of an
+ * iteration.
+ *
+ * Callers hand over {@link Rows} that format data they no longer change (copies of the counts, usually); the rows
+ * are formatted and written by the writer thread in the order they were submitted. Whole files, like trip logs and
+ * checkpoints, can be handed over as a {@link FileTask} and are written in the same order. {@link #endIteration(int)}
+ * flushes all files and forces them to disk, so the metrics of every completed iteration survive a crash.
+ * The queue is bounded: if the disk falls behind by more than {@link #QUEUE_CAPACITY} tasks, the controler waits,
+ * for at most {@link #SUBMIT_TIMEOUT_SECONDS}; after that, and after {@link #close()} or the end of the writer
+ * thread, tasks are dropped with an error in the log instead of stalling the run.
+ * {@link #close()} drains the queue and closes the files.
+ */
+public class MetricsSink implements Closeable {
+    private final static Logger log = Logger.getLogger(MetricsSink.class);
+
+    static final int QUEUE_CAPACITY = 256;
+    static final long SUBMIT_TIMEOUT_SECONDS = 60;
+
+    /**
+     * Rows of a file, formatted on the writer thread.
+     */
+    public interface Rows {
+        void write(Writer out) throws IOException;
+    }
+
+    /**
+     * A write of a whole file, run on the writer thread.
+     */
+    public interface FileTask {
+        void write() throws IOException;
+    }
+
+    private final File directory;
+    private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Map<String, OpenFile> files = new HashMap<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile boolean closing = false;
+    private int droppedTasks = 0;
+
+    public MetricsSink(File directory) {
+        this.directory = directory;
+        this.writer = new Thread(this::run, "calibration-metrics");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Append rows to a file in the output directory, creating it with the header on first use.
+     * @param fileName
+     * @param header the first line of the file, without line break
+     * @param rows
+     */
+    public void append(String fileName, String header, Rows rows) {
+        submit(() -> {
+            try {
+                OpenFile file = open(fileName, header);
+                rows.write(file.writer);
+            } catch (IOException e) {
+                log.error("Could not write " + fileName, e);
+            }
+        });
+    }
+
+    /**
+     * Write a whole file on the writer thread, after the rows submitted before.
+     * @param description what is written, for the log
+     * @param task
+     * @return done once the task has run, cancelled if it was dropped
+     */
+    public Future<?> write(String description, FileTask task) {
+        FutureTask<Void> future = new FutureTask<>(() -> {
+            try {
+                task.write();
+            } catch (IOException e) {
+                log.error("Could not write " + description, e);
+            }
+        }, null);
+        if(!submit(future)) future.cancel(false);
+        return future;
+    }
+
+    /**
+     * Flush all files and force them to disk once the rows submitted so far are written.
+     * @param iteration
+     */
+    public void endIteration(int iteration) {
+        submit(() -> {
+            for(Map.Entry<String, OpenFile> file : files.entrySet()) {
+                try {
+                    file.getValue().writer.flush();
+                    file.getValue().stream.getFD().sync();
+                } catch (IOException e) {
+                    log.error("Could not flush " + file.getKey() + " after iteration " + iteration, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write everything that was submitted, close the files and stop the writer thread.
+     */
+    @Override
+    public void close() {
+        if(closing) return;
+        closing = true;
+        if(!writer.isAlive()) return;
+        boolean queued = enqueue(() -> {
+            for(Map.Entry<String, OpenFile> file : files.entrySet()) {
+                try {
+                    file.getValue().writer.close();
+                } catch (IOException e) {
+                    log.error("Could not close " + file.getKey(), e);
+                }
+            }
+            files.clear();
+            closed = true;
+        });
+        try {
+            if(queued) {
+                writer.join();
+            } else {
+                log.error("Could not close the metrics files, stopping the metrics writer");
+                writer.interrupt();
+                writer.join(TimeUnit.SECONDS.toMillis(SUBMIT_TIMEOUT_SECONDS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean submit(Runnable task) {
+        if(closing || !writer.isAlive()) {
+            if(droppedTasks++ == 0) log.error("The metrics writer is closed, dropping metrics tasks");
+            return false;
+        }
+        return enqueue(task);
+    }
+
+    /**
+     * @return false if the task was dropped because the writer stayed behind for the whole timeout
+     */
+    private boolean enqueue(Runnable task) {
+        try {
+            if(queue.offer(task, SUBMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) return true;
+            log.error("The metrics writer has been " + QUEUE_CAPACITY + " tasks behind for " + SUBMIT_TIMEOUT_SECONDS +
+                    " s, dropping a metrics task");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private OpenFile open(String fileName, String header) throws IOException {
+        OpenFile file = files.get(fileName);
+        if(file == null) {
+            FileOutputStream stream = new FileOutputStream(new File(directory, fileName));
+            file = new OpenFile(stream, new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)));
+            file.writer.write(header);
+            file.writer.write("\n");
+            files.put(fileName, file);
+        }
+        return file;
+    }
+
+    private void run() {
+        while(!closed) {
+            try {
+                queue.take().run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log.error("Metrics writer task failed", e);
+            }
+        }
+    }
+
+    private static final class OpenFile {
+        final FileOutputStream stream;
+        final Writer writer;
+
+        OpenFile(FileOutputStream stream, Writer writer) {
+            this.stream = stream;
+            this.writer = writer;
+        }
+    }
+}
@@ -15,8 +15,15 @@ public class ModeChoiceCoefficientsUpdater {
         this.populationShares.putIfAbsent("car", 0.8);
     }
 
+    /**
+     * @param populationShares the target shares by mode, e.g. the home-based work targets of the config
+     */
+    public ModeChoiceCoefficientsUpdater(Map<String, Double> populationShares) {
+        this.populationShares.putAll(populationShares);
+    }
+
     public void setConstant(String mode, Double constant) {
-        this.constants.putIfAbsent(mode, constant);
+        this.constants.put(mode, constant);
     }
 
     public void setShares(String mode, Double share){
@@ -32,15 +39,29 @@ public class ModeChoiceCoefficientsUpdater {
      * @param modelShares
      */
     public void updateConstants(Map<String, Double> modelShares) {
+        updateConstants(modelShares, 1.0);
+    }
+
+    /**
+     * Move the constants a fraction of the way towards matching the population shares. A step size of 1 applies
+     * the full log-share correction, smaller steps damp it when the constants are updated during a run.
+     * @param modelShares
+     * @param stepSize
+     */
+    public void updateConstants(Map<String, Double> modelShares, double stepSize) {
         // loop through modes
         for(String key:modelShares.keySet()) {
             Double model = modelShares.get(key);
             Double population = populationShares.get(key);
-            log.info("Population share: " + population.toString() + ", Model share: " + model.toString());
             Double constant = constants.get(key);
+            if(population == null || constant == null) {
+                log.warn("No population share or constant for mode " + key + ", its constant is not updated");
+                continue;
+            }
+            log.info("Population share: " + population.toString() + ", Model share: " + model.toString());
 
-            // Population bias adjustment
-            Double newConstant = constant - Math.log(population / model);
+            // Population bias adjustment: a mode below its target share becomes more attractive
+            Double newConstant = constant + stepSize * Math.log(population / model);
             constants.replace(key, newConstant);
         }
     }
@@ -0,0 +1,286 @@
+package edu.byu.cougarsim.calibration;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Quasi-Newton solver for purpose-specific mode constants.
+ *
+ * Every purpose with targets is an independent block: the unknowns are the constants of all its target modes
+ * except the reference mode, and the residuals are the differences between the simulated and target shares of the
+ * same modes. The first step of a block uses the Jacobian of a multinomial logit model at the simulated shares,
+ * <code>dS_i/dC_j = scale * S_i * (delta_ij - S_j)</code>; after that the Jacobian is refined with Broyden's update
+ * from the constants and shares of consecutive calls, which also captures the effect of congestion and crowding. A
+ * refined Jacobian that no longer has a positive diagonal (simulation noise can do that) is replaced by the logit
+ * one again.
+ *
+ * Steps are multiplied by the step size and then scaled down so no constant moves by more than the step limit.
+ */
+public class ModeConstantSolver {
+    private final static Logger log = Logger.getLogger(ModeConstantSolver.class);
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final int numberOfPurposes;
+    private final int numberOfModes;
+    private final double scale;
+    private final double stepSize;
+    private final double maxStep;
+
+    /**
+     * @param targets
+     * @param classifier
+     * @param scale the logit scale of plan selection, usually <code>planCalcScore.BrainExpBeta</code>
+     * @param stepSize fraction of the Newton step that is taken
+     * @param maxStep the largest change of a constant in one update
+     */
+    public ModeConstantSolver(ModeShareTargets targets, TripPurposeClassifier classifier, double scale,
+                              double stepSize, double maxStep) {
+        this(purposeCodes(targets, classifier), modeCodes(targets, classifier), targetShares(targets),
+                classifier.getNumberOfPurposes(), classifier.getNumberOfModes(), scale, stepSize, maxStep);
+    }
+
+    /**
+     * @param purposes the purpose code of every block
+     * @param modes the mode codes of every block, reference mode first
+     * @param targets the target shares of every block, in the order of the modes
+     */
+    ModeConstantSolver(int[] purposes, int[][] modes, double[][] targets, int numberOfPurposes, int numberOfModes,
+                       double scale, double stepSize, double maxStep) {
+        for(int b = 0; b < purposes.length; b++) {
+            blocks.add(new Block(purposes[b], modes[b], targets[b]));
+        }
+        this.numberOfPurposes = numberOfPurposes;
+        this.numberOfModes = numberOfModes;
+        this.scale = scale;
+        this.stepSize = stepSize;
+        this.maxStep = maxStep;
+    }
+
+    private static int[] purposeCodes(ModeShareTargets targets, TripPurposeClassifier classifier) {
+        int[] purposes = new int[targets.getPurposes().size()];
+        int b = 0;
+        for(String purpose : targets.getPurposes()) {
+            purposes[b] = classifier.getPurposeCode(purpose);
+            if(purposes[b++] < 0) {
+                throw new IllegalArgumentException("Mode share target for unknown trip purpose " + purpose);
+            }
+        }
+        return purposes;
+    }
+
+    private static int[][] modeCodes(ModeShareTargets targets, TripPurposeClassifier classifier) {
+        int[][] modes = new int[targets.getPurposes().size()][];
+        int b = 0;
+        for(String purpose : targets.getPurposes()) {
+            int m = 0;
+            modes[b] = new int[targets.getShares(purpose).size()];
+            for(String mode : targets.getShares(purpose).keySet()) {
+                modes[b][m++] = classifier.getModeCode(mode);
+            }
+            b++;
+        }
+        return modes;
+    }
+
+    private static double[][] targetShares(ModeShareTargets targets) {
+        double[][] shares = new double[targets.getPurposes().size()][];
+        int b = 0;
+        for(String purpose : targets.getPurposes()) {
+            int m = 0;
+            shares[b] = new double[targets.getShares(purpose).size()];
+            for(double share : targets.getShares(purpose).values()) {
+                shares[b][m++] = share;
+            }
+            b++;
+        }
+        return shares;
+    }
+
+    /**
+     * Take one step towards the target shares.
+     * @param counts trip counts indexed by purpose and mode code
+     * @return the largest absolute difference between a simulated and a target share, before the step
+     */
+    public double update(int[][] counts) {
+        double maxResidual = 0;
+        for(Block block : blocks) {
+            maxResidual = Math.max(maxResidual, block.update(counts[block.purpose]));
+        }
+        return maxResidual;
+    }
+
+    /**
+     * @return the constants indexed by purpose and mode code; purposes without targets and reference modes are 0
+     */
+    public double[][] getConstants() {
+        int modes = numberOfModes;
+        for(Block block : blocks) {
+            for(int mode : block.modes) modes = Math.max(modes, mode + 1);
+        }
+        double[][] constants = new double[numberOfPurposes][modes];
+        for(Block block : blocks) {
+            for(int i = 1; i < block.modes.length; i++) {
+                constants[block.purpose][block.modes[i]] = block.constants[i - 1];
+            }
+        }
+        return constants;
+    }
+
+    /**
+     * Replace the current constants, for example with those of an earlier run. Forgets the Jacobians.
+     * @param constants indexed by purpose and mode code
+     */
+    public void setConstants(double[][] constants) {
+        for(Block block : blocks) {
+            for(int i = 1; i < block.modes.length; i++) {
+                double[] row = block.purpose < constants.length ? constants[block.purpose] : new double[0];
+                block.constants[i - 1] = block.modes[i] < row.length ? row[block.modes[i]] : 0.0;
+            }
+            block.jacobian = null;
+        }
+    }
+
+    private final class Block {
+        final int purpose;
+        final int[] modes;
+        final double[] targets;
+        final double[] constants;
+        double[] previousConstants;
+        double[] previousResiduals;
+        double[][] jacobian;
+
+        Block(int purpose, int[] modes, double[] targets) {
+            this.purpose = purpose;
+            this.modes = modes;
+            this.targets = targets;
+            this.constants = new double[modes.length - 1];
+        }
+
+        double update(int[] purposeCounts) {
+            long total = 0;
+            for(int count : purposeCounts) total += count;
+            if(total == 0) return 0;
+
+            int n = constants.length;
+            double[] shares = new double[modes.length];
+            for(int m = 0; m < modes.length; m++) {
+                shares[m] = modes[m] < purposeCounts.length ? (double) purposeCounts[modes[m]] / total : 0.0;
+            }
+            double[] residuals = new double[n];
+            double maxResidual = Math.abs(shares[0] - targets[0]);
+            for(int i = 0; i < n; i++) {
+                residuals[i] = shares[i + 1] - targets[i + 1];
+                maxResidual = Math.max(maxResidual, Math.abs(residuals[i]));
+            }
+
+            if(jacobian == null) {
+                jacobian = logitJacobian(shares, 1.0 / total);
+            } else {
+                broydenUpdate(residuals);
+                if(!hasPositiveDiagonal(jacobian)) {
+                    log.info("Resetting the mode share Jacobian of purpose " + purpose);
+                    jacobian = logitJacobian(shares, 1.0 / total);
+                }
+            }
+
+            double[] step = solve(jacobian, residuals);
+            if(step == null) {
+                step = new double[n];
+                for(int i = 0; i < n; i++) {
+                    step[i] = -residuals[i] / Math.max(jacobian[i][i], 1e-6);
+                }
+            }
+            double largest = 0;
+            for(int i = 0; i < n; i++) {
+                step[i] *= stepSize;
+                largest = Math.max(largest, Math.abs(step[i]));
+            }
+            double limit = largest > maxStep ? maxStep / largest : 1.0;
+
+            previousConstants = constants.clone();
+            previousResiduals = residuals;
+            for(int i = 0; i < n; i++) {
+                constants[i] += limit * step[i];
+            }
+            return maxResidual;
+        }
+
+        private double[][] logitJacobian(double[] shares, double minShare) {
+            int n = constants.length;
+            double[][] j = new double[n][n];
+            for(int r = 0; r < n; r++) {
+                double sr = Math.max(shares[r + 1], minShare);
+                for(int c = 0; c < n; c++) {
+                    double sc = Math.max(shares[c + 1], minShare);
+                    j[r][c] = scale * sr * ((r == c ? 1.0 : 0.0) - sc);
+                }
+            }
+            return j;
+        }
+
+        /**
+         * Broyden's rank-one update <code>J += (dF - J dC) dC' / (dC' dC)</code>.
+         */
+        private void broydenUpdate(double[] residuals) {
+            int n = constants.length;
+            double[] dc = new double[n];
+            double norm = 0;
+            for(int i = 0; i < n; i++) {
+                dc[i] = constants[i] - previousConstants[i];
+                norm += dc[i] * dc[i];
+            }
+            if(norm < 1e-12) return;
+            for(int r = 0; r < n; r++) {
+                double predicted = 0;
+                for(int c = 0; c < n; c++) predicted += jacobian[r][c] * dc[c];
+                double error = residuals[r] - previousResiduals[r] - predicted;
+                for(int c = 0; c < n; c++) jacobian[r][c] += error * dc[c] / norm;
+            }
+        }
+    }
+
+    private static boolean hasPositiveDiagonal(double[][] matrix) {
+        for(int i = 0; i < matrix.length; i++) {
+            if(!(matrix[i][i] > 0)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Solve <code>J x = -f</code> by Gaussian elimination with partial pivoting.
+     * @return the solution, or null if the matrix is (nearly) singular
+     */
+    static double[] solve(double[][] jacobian, double[] f) {
+        int n = f.length;
+        double[][] a = new double[n][];
+        double[] b = new double[n];
+        for(int i = 0; i < n; i++) {
+            a[i] = Arrays.copyOf(jacobian[i], n);
+            b[i] = -f[i];
+        }
+        for(int col = 0; col < n; col++) {
+            int pivot = col;
+            for(int row = col + 1; row < n; row++) {
+                if(Math.abs(a[row][col]) > Math.abs(a[pivot][col])) pivot = row;
+            }
+            if(Math.abs(a[pivot][col]) < 1e-9) return null;
+            double[] rowSwap = a[col]; a[col] = a[pivot]; a[pivot] = rowSwap;
+            double bSwap = b[col]; b[col] = b[pivot]; b[pivot] = bSwap;
+            for(int row = col + 1; row < n; row++) {
+                double factor = a[row][col] / a[col][col];
+                for(int c = col; c < n; c++) a[row][c] -= factor * a[col][c];
+                b[row] -= factor * b[col];
+            }
+        }
+        double[] x = new double[n];
+        for(int row = n - 1; row >= 0; row--) {
+            double sum = b[row];
+            for(int c = row + 1; c < n; c++) sum -= a[row][c] * x[c];
+            x[row] = sum / a[row][row];
+        }
+        return x;
+    }
+}
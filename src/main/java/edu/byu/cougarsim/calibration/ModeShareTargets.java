@@ -0,0 +1,60 @@
+package edu.byu.cougarsim.calibration;
+
+import java.util.*;
+
+/**
+ * Target mode shares by trip purpose, parsed from strings of the form
+ * <code>purpose:mode=share,mode=share;purpose:...</code>, e.g. <code>hbw:car=0.8,pt=0.2</code>.
+ *
+ * The first mode listed for a purpose is its reference mode: the solver keeps its constant at zero and calibrates
+ * the other modes relative to it.
+ */
+public class ModeShareTargets {
+
+    private final Map<String, LinkedHashMap<String, Double>> shares = new LinkedHashMap<>();
+
+    public static ModeShareTargets parse(String targetString) {
+        ModeShareTargets targets = new ModeShareTargets();
+        for(String purposeTargets : targetString.split(";")) {
+            if(purposeTargets.trim().isEmpty()) continue;
+            String[] purposeAndShares = purposeTargets.split(":");
+            if(purposeAndShares.length != 2) {
+                throw new IllegalArgumentException("Malformed mode share target: " + purposeTargets);
+            }
+            LinkedHashMap<String, Double> modeShares = new LinkedHashMap<>();
+            for(String modeShare : purposeAndShares[1].split(",")) {
+                String[] modeAndShare = modeShare.split("=");
+                if(modeAndShare.length != 2) {
+                    throw new IllegalArgumentException("Malformed mode share in target: " + modeShare);
+                }
+                double share = Double.parseDouble(modeAndShare[1].trim());
+                if(share <= 0 || share >= 1) {
+                    throw new IllegalArgumentException("Target mode shares must be between 0 and 1: " + modeShare);
+                }
+                modeShares.put(modeAndShare[0].trim(), share);
+            }
+            if(modeShares.size() < 2) {
+                throw new IllegalArgumentException("A purpose needs targets for at least two modes: " + purposeTargets);
+            }
+            targets.shares.put(purposeAndShares[0].trim(), modeShares);
+        }
+        return targets;
+    }
+
+    public boolean isEmpty() {
+        return shares.isEmpty();
+    }
+
+    public Set<String> getPurposes() {
+        return Collections.unmodifiableSet(shares.keySet());
+    }
+
+    /**
+     * @param purpose
+     * @return the target shares of the purpose by mode, reference mode first, or an empty map
+     */
+    public Map<String, Double> getShares(String purpose) {
+        Map<String, Double> modeShares = shares.get(purpose);
+        return modeShares == null ? Collections.<String, Double>emptyMap() : Collections.unmodifiableMap(modeShares);
+    }
+}
@@ -0,0 +1,112 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Counts completed trips by origin zone, destination zone, trip purpose and main mode, for comparison with survey
+ * OD tables. The zones of the origin and destination links come from a {@link ZoneMap}.
+ *
+ * The matrix is kept sparse in a {@link LongIntCounter}, so with thousands of zones its memory grows with the
+ * number of non-empty cells only. Trips with an origin or destination outside the zones are counted separately.
+ */
+public class OdMatrixCollector implements TripCollector {
+
+    private final ZoneMap zones;
+    private final TripPurposeClassifier classifier;
+    private final LongIntCounter counts = new LongIntCounter();
+    private long unzonedTrips = 0;
+
+    public OdMatrixCollector(TripPurposeClassifier classifier, ZoneMap zones) {
+        this.classifier = classifier;
+        this.zones = zones;
+    }
+
+    /**
+     * Purpose and mode codes are below 256, as in the trip log, and take the low 16 bits of the key.
+     */
+    private long key(int origin, int destination, int purpose, int mode) {
+        return (((long) origin * zones.getNumberOfZones() + destination) << 16) | (purpose << 8) | mode;
+    }
+
+    @Override
+    public void handleTrip(TripRecord trip) {
+        int origin = zones.getZone(trip.getOriginLink());
+        int destination = zones.getZone(trip.getDestinationLink());
+        if(origin < 0 || destination < 0) {
+            unzonedTrips++;
+            return;
+        }
+        counts.add(key(origin, destination, trip.getPurpose(), trip.getMode()), 1);
+    }
+
+    /**
+     * @return the trips between two zones with a purpose and mode
+     */
+    public int getTrips(int origin, int destination, int purpose, int mode) {
+        return counts.get(key(origin, destination, purpose, mode));
+    }
+
+    /**
+     * @return the number of non-empty cells
+     */
+    public int getCells() {
+        return counts.size();
+    }
+
+    public long getUnzonedTrips() {
+        return unzonedTrips;
+    }
+
+    @Override
+    public TripCollector newShard() {
+        return new OdMatrixCollector(classifier, zones);
+    }
+
+    @Override
+    public void merge(TripCollector shard) {
+        OdMatrixCollector other = (OdMatrixCollector) shard;
+        counts.addAll(other.counts);
+        unzonedTrips += other.unzonedTrips;
+    }
+
+    /**
+     * @return a collector with a copy of the cells counted so far, which can be written while this one counts the
+     * next iteration
+     */
+    public OdMatrixCollector copy() {
+        OdMatrixCollector copy = new OdMatrixCollector(classifier, zones);
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * Write the non-empty cells, one row per cell ordered by origin, destination, purpose and mode. Files ending in
+     * <code>.gz</code> are compressed.
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        try (BufferedWriter writer = IOUtils.getBufferedWriter(file.getPath())) {
+            writer.write("Origin, Destination, Purpose, Mode, Trips\n");
+            int numberOfZones = zones.getNumberOfZones();
+            for(long key : counts.sortedKeys()) {
+                long od = key >>> 16;
+                int purpose = (int) (key >>> 8) & 0xFF;
+                int mode = (int) key & 0xFF;
+                writer.write(zones.getZoneName((int) (od / numberOfZones)) + ", " +
+                        zones.getZoneName((int) (od % numberOfZones)) + ", " + classifier.getPurposeName(purpose) +
+                        ", " + classifier.getModeName(mode) + ", " + counts.get(key) + "\n");
+            }
+        }
+    }
+
+    @Override
+    public void reset(int iteration) {
+        counts.clear();
+        unzonedTrips = 0;
+    }
+}
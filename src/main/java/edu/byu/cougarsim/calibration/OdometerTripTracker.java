@@ -0,0 +1,29 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+
+/**
+ * A {@link TripTracker} that measures trip distances. It feeds its {@link VehicleOdometer} with the
+ * <code>LinkEnterEvent</code>s itself, so the odometer is read and advanced on the same thread and in event order
+ * under a parallel events manager.
+ */
+public class OdometerTripTracker extends TripTracker implements LinkEnterEventHandler {
+
+    /**
+     * @param classifier
+     * @param openTrips
+     * @param transitIndex the transit index to resolve boarded routes with, or null to not record routes
+     * @param odometer the odometer of this tracker's partition
+     */
+    public OdometerTripTracker(TripPurposeClassifier classifier, OpenTripStore openTrips, TransitIndex transitIndex,
+                               VehicleOdometer odometer) {
+        super(classifier, openTrips, transitIndex, odometer);
+        if(odometer == null) throw new IllegalArgumentException("An odometer trip tracker needs an odometer");
+    }
+
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
+        getOdometer().enterLink(event.getVehicleId(), event.getLinkId());
+    }
+}
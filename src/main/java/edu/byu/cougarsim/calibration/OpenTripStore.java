@@ -0,0 +1,250 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * State of the trips that have departed but not yet arrived, kept in parallel primitive arrays addressed by a
+ * dense person index instead of a map of event objects.
+ *
+ * A store built from the {@link Population} is sized once at startup and ignores persons outside the population
+ * (transit drivers, for example). A dynamic store, for event streams without a population, appends persons as
+ * they appear and grows its arrays by half each time they are full.
+ *
+ * For parallel event handling a store can hold one partition of the persons. A population store takes the
+ * persons whose population index modulo the number of partitions equals its partition, a dynamic store partitions
+ * by the hash of the person id. Either way {@link #getPersonIndex(int)} returns an index that is unique across
+ * all partitions of a run.
+ */
+public class OpenTripStore {
+
+    private static final int INITIAL_DYNAMIC_CAPACITY = 1024;
+
+    private final IdIndex<Person> persons;
+    private final boolean dynamic;
+    private final int partition;
+    private final int partitions;
+
+    private double[] departureTimes;
+    private int[] originTypes;
+    private int[] modes;
+    private int[] routes;
+    private Id<Link>[] originLinks;
+    private double[] distances;
+    private double[] boardedOdometers;
+    private final BitSet open;
+
+    /**
+     * Create a store sized for the population.
+     * @param population
+     */
+    public OpenTripStore(Population population) {
+        this(createPopulationIndex(population), 0, 1);
+    }
+
+    /**
+     * Create a store for one partition of the persons in a population index. The index is only read, so all
+     * partitions can share it.
+     * @param populationIndex
+     * @param partition
+     * @param partitions
+     */
+    public OpenTripStore(IdIndex<Person> populationIndex, int partition, int partitions) {
+        this(populationIndex, false, partition, partitions);
+    }
+
+    /**
+     * Create a store that adds persons the first time they end an activity.
+     */
+    public OpenTripStore() {
+        this(0, 1);
+    }
+
+    /**
+     * Create a dynamic store for one partition of the persons.
+     * @param partition
+     * @param partitions
+     */
+    public OpenTripStore(int partition, int partitions) {
+        this(new IdIndex<>(), true, partition, partitions);
+    }
+
+    @SuppressWarnings("unchecked")
+    private OpenTripStore(IdIndex<Person> persons, boolean dynamic, int partition, int partitions) {
+        this.persons = persons;
+        this.dynamic = dynamic;
+        this.partition = partition;
+        this.partitions = partitions;
+        int capacity = dynamic ? INITIAL_DYNAMIC_CAPACITY : (persons.size() + partitions - 1) / partitions;
+        this.departureTimes = new double[capacity];
+        this.originTypes = new int[capacity];
+        this.modes = new int[capacity];
+        this.routes = new int[capacity];
+        this.originLinks = new Id[capacity];
+        this.distances = new double[capacity];
+        this.boardedOdometers = new double[capacity];
+        this.open = new BitSet(capacity);
+    }
+
+    /**
+     * @param personId
+     * @return the slot of the person, or -1 if the person is not tracked
+     */
+    public int getSlot(Id<Person> personId) {
+        if(dynamic) {
+            return partitions == 1 || partitionOf(personId, partitions) == partition ? persons.get(personId) : -1;
+        }
+        int index = persons.get(personId);
+        if(index < 0 || index % partitions != partition) return -1;
+        return index / partitions;
+    }
+
+    /**
+     * @param personId
+     * @return the slot of the person; a dynamic store adds unknown persons, a population store returns -1
+     */
+    public int getOrCreateSlot(Id<Person> personId) {
+        if(!dynamic) return getSlot(personId);
+        if(partitions > 1 && partitionOf(personId, partitions) != partition) return -1;
+        int slot = persons.add(personId);
+        if(slot >= departureTimes.length) {
+            int capacity = departureTimes.length + (departureTimes.length >> 1);
+            departureTimes = Arrays.copyOf(departureTimes, capacity);
+            originTypes = Arrays.copyOf(originTypes, capacity);
+            modes = Arrays.copyOf(modes, capacity);
+            routes = Arrays.copyOf(routes, capacity);
+            originLinks = Arrays.copyOf(originLinks, capacity);
+            distances = Arrays.copyOf(distances, capacity);
+            boardedOdometers = Arrays.copyOf(boardedOdometers, capacity);
+        }
+        return slot;
+    }
+
+    public Id<Person> getPersonId(int slot) {
+        return dynamic ? persons.getId(slot) : persons.getId(slot * partitions + partition);
+    }
+
+    /**
+     * @param slot
+     * @return the index of the person across all partitions
+     */
+    public int getPersonIndex(int slot) {
+        return slot * partitions + partition;
+    }
+
+    /**
+     * Build the dense person index shared by the partitions of a population store.
+     * @param population
+     * @return
+     */
+    public static IdIndex<Person> createPopulationIndex(Population population) {
+        return new IdIndex<>(population.getPersons().keySet(), population.getPersons().size());
+    }
+
+    /**
+     * Partition of an id for handlers that split their state by hash.
+     * @param id
+     * @param partitions
+     * @return
+     */
+    public static int partitionOf(Id<?> id, int partitions) {
+        return (id.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    public void open(int slot, int originType, Id<Link> originLink, double departureTime) {
+        open.set(slot);
+        originTypes[slot] = originType;
+        originLinks[slot] = originLink;
+        departureTimes[slot] = departureTime;
+        modes[slot] = -1;
+        routes[slot] = -1;
+        distances[slot] = 0.0;
+    }
+
+    public boolean isOpen(int slot) {
+        return open.get(slot);
+    }
+
+    public void close(int slot) {
+        open.clear(slot);
+    }
+
+    public int getOriginType(int slot) {
+        return originTypes[slot];
+    }
+
+    public Id<Link> getOriginLink(int slot) {
+        return originLinks[slot];
+    }
+
+    public double getDepartureTime(int slot) {
+        return departureTimes[slot];
+    }
+
+    public int getMode(int slot) {
+        return modes[slot];
+    }
+
+    public void setMode(int slot, int mode) {
+        modes[slot] = mode;
+    }
+
+    /**
+     * @param slot
+     * @return the index of the first transit route the trip boarded, or -1
+     */
+    public int getRoute(int slot) {
+        return routes[slot];
+    }
+
+    public void setRoute(int slot, int route) {
+        routes[slot] = route;
+    }
+
+    /**
+     * @param slot
+     * @return the distance travelled on the trip so far, in meters
+     */
+    public double getDistance(int slot) {
+        return distances[slot];
+    }
+
+    public void addDistance(int slot, double distance) {
+        distances[slot] += distance;
+    }
+
+    /**
+     * @param slot
+     * @return the odometer reading of the vehicle the person last entered, when they entered it
+     */
+    public double getBoardedOdometer(int slot) {
+        return boardedOdometers[slot];
+    }
+
+    public void setBoardedOdometer(int slot, double odometer) {
+        boardedOdometers[slot] = odometer;
+    }
+
+    /**
+     * @return the number of trips currently open
+     */
+    public int getOpenTrips() {
+        return open.cardinality();
+    }
+
+    /**
+     * @return the number of persons the store has room for
+     */
+    public int getCapacity() {
+        return departureTimes.length;
+    }
+
+    public void clear() {
+        open.clear();
+    }
+}
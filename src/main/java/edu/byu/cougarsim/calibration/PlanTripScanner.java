@@ -0,0 +1,241 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.router.TripRouter;
+import org.matsim.core.router.TripStructureUtils;
+
+import javax.inject.Provider;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the trips in the selected plans of the population by purpose and main mode.
+ *
+ * The population is split into slices that are scanned in parallel on a fork-join pool. Every worker thread has
+ * its own {@link TripRouter} (and with it its own main mode identifier and stage activity types) and counts into
+ * its own primitive array; the arrays are added up as the slices join. The counts are integers, so the result
+ * does not depend on the number of threads.
+ *
+ * The result is cached by iteration, so the end of an iteration and the shutdown of the controler share one scan.
+ *
+ * In incremental mode the scanner also remembers the trips every person contributed, together with the identity
+ * and length of the plan they came from. Replanning selects another plan object or a modified copy, so on the next
+ * scan only the persons whose selected plan is a different object (or has a different number of elements) are
+ * subtracted and re-added; the rest cost one reference comparison. Strategies that modify the selected plan in
+ * place without changing its length are not detected; use the full scan with such strategies.
+ */
+public class PlanTripScanner {
+
+    private static final int SLICE_SIZE = 4096;
+
+    private final Population population;
+    private final TripPurposeClassifier classifier;
+    private final ThreadLocal<TripRouter> tripRouters;
+    private final ForkJoinPool pool;
+
+    private final boolean incremental;
+
+    private int cachedIteration = Integer.MIN_VALUE;
+    private int[][] cachedCounts;
+
+    // state of the incremental mode, indexed like the persons array
+    private Person[] persons;
+    private Plan[] scannedPlans;
+    private int[] scannedPlanSizes;
+    private int[][] contributions;
+    private int rescannedPersons;
+
+    public PlanTripScanner(Population population, TripPurposeClassifier classifier,
+                           Provider<TripRouter> tripRouterFactory, int numberOfThreads) {
+        this(population, classifier, tripRouterFactory, numberOfThreads, false);
+    }
+
+    public PlanTripScanner(Population population, TripPurposeClassifier classifier,
+                           Provider<TripRouter> tripRouterFactory, int numberOfThreads, boolean incremental) {
+        this.population = population;
+        this.classifier = classifier;
+        this.tripRouters = ThreadLocal.withInitial(tripRouterFactory::get);
+        this.pool = new ForkJoinPool(Math.max(1, numberOfThreads));
+        this.incremental = incremental;
+    }
+
+    /**
+     * Count the trips of the selected plans, or return the counts of an earlier call for the same iteration.
+     * @param iteration
+     * @return trip counts indexed by purpose and mode code
+     */
+    public int[][] scan(int iteration) {
+        if(iteration == cachedIteration && cachedCounts != null) return cachedCounts;
+
+        rescannedPersons = 0;
+        if(!incremental) {
+            Person[] persons = population.getPersons().values().toArray(new Person[0]);
+            cachedCounts = widen(pool.invoke(new ScanTask(persons, 0, persons.length)), classifier.getNumberOfModes());
+            rescannedPersons = persons.length;
+        } else if(cachedCounts == null || persons == null || persons.length != population.getPersons().size()) {
+            // first scan, or persons were added or removed: remember every person's contribution
+            persons = population.getPersons().values().toArray(new Person[0]);
+            scannedPlans = new Plan[persons.length];
+            scannedPlanSizes = new int[persons.length];
+            contributions = new int[persons.length][];
+            cachedCounts = widen(pool.invoke(new DeltaTask(0, persons.length)), classifier.getNumberOfModes());
+        } else {
+            cachedCounts = add(cachedCounts, pool.invoke(new DeltaTask(0, persons.length)));
+        }
+        cachedIteration = iteration;
+        return cachedCounts;
+    }
+
+    /**
+     * Forget the cached counts, for example after plans were changed outside of the iteration loop. In incremental
+     * mode the next scan re-reads every person.
+     */
+    public void invalidate() {
+        cachedCounts = null;
+    }
+
+    /**
+     * @return the number of persons whose trips were derived from their plan in the last scan
+     */
+    public int getRescannedPersons() {
+        return rescannedPersons;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private int[][] countSlice(Person[] persons, int from, int to) {
+        TripRouter tripRouter = tripRouters.get();
+        int[][] counts = new int[classifier.getNumberOfPurposes()][classifier.getNumberOfModes()];
+        for(int i = from; i < to; i++) {
+            List<TripStructureUtils.Trip> trips = TripStructureUtils.getTrips(persons[i].getSelectedPlan(),
+                    tripRouter.getStageActivityTypes());
+            for(TripStructureUtils.Trip trip : trips) {
+                int mode = classifier.getModeCode(tripRouter.getMainModeIdentifier().identifyMainMode(trip.getTripElements()));
+                int purpose = classifier.getPurpose(trip.getOriginActivity().getType(),
+                        trip.getDestinationActivity().getType());
+
+                // a mode that is not in the scoring config gets a new code, widen the rows to fit it
+                if(mode >= counts[purpose].length) {
+                    counts = widen(counts, classifier.getNumberOfModes());
+                }
+                counts[purpose][mode]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Re-read the persons of a slice whose selected plan changed since the last scan.
+     * @return the change of the counts: the new contributions minus the old ones
+     */
+    private int[][] deltaSlice(int from, int to) {
+        TripRouter tripRouter = tripRouters.get();
+        int[][] delta = new int[classifier.getNumberOfPurposes()][classifier.getNumberOfModes()];
+        int rescanned = 0;
+        for(int i = from; i < to; i++) {
+            Plan plan = persons[i].getSelectedPlan();
+            if(plan == scannedPlans[i] && plan.getPlanElements().size() == scannedPlanSizes[i]) continue;
+            rescanned++;
+
+            if(contributions[i] != null) {
+                for(int trip : contributions[i]) {
+                    delta[trip >>> 16][trip & 0xFFFF]--;
+                }
+            }
+            List<TripStructureUtils.Trip> trips = TripStructureUtils.getTrips(plan, tripRouter.getStageActivityTypes());
+            int[] contribution = new int[trips.size()];
+            for(int t = 0; t < contribution.length; t++) {
+                TripStructureUtils.Trip trip = trips.get(t);
+                int mode = classifier.getModeCode(tripRouter.getMainModeIdentifier().identifyMainMode(trip.getTripElements()));
+                int purpose = classifier.getPurpose(trip.getOriginActivity().getType(),
+                        trip.getDestinationActivity().getType());
+                if(mode >= delta[purpose].length) {
+                    delta = widen(delta, classifier.getNumberOfModes());
+                }
+                delta[purpose][mode]++;
+                contribution[t] = purpose << 16 | mode;
+            }
+            contributions[i] = contribution;
+            scannedPlans[i] = plan;
+            scannedPlanSizes[i] = plan.getPlanElements().size();
+        }
+        addRescanned(rescanned);
+        return delta;
+    }
+
+    private synchronized void addRescanned(int rescanned) {
+        rescannedPersons += rescanned;
+    }
+
+    private static int[][] widen(int[][] counts, int numberOfModes) {
+        for(int purpose = 0; purpose < counts.length; purpose++) {
+            if(counts[purpose].length < numberOfModes) {
+                counts[purpose] = Arrays.copyOf(counts[purpose], numberOfModes);
+            }
+        }
+        return counts;
+    }
+
+    private static int[][] add(int[][] left, int[][] right) {
+        int modes = Math.max(left[0].length, right[0].length);
+        widen(left, modes);
+        for(int purpose = 0; purpose < left.length; purpose++) {
+            for(int mode = 0; mode < right[purpose].length; mode++) {
+                left[purpose][mode] += right[purpose][mode];
+            }
+        }
+        return left;
+    }
+
+    private final class DeltaTask extends RecursiveTask<int[][]> {
+        private final int from;
+        private final int to;
+
+        DeltaTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[][] compute() {
+            if(to - from <= SLICE_SIZE) {
+                return deltaSlice(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            DeltaTask right = new DeltaTask(middle, to);
+            right.fork();
+            int[][] left = new DeltaTask(from, middle).compute();
+            return add(left, right.join());
+        }
+    }
+
+    private final class ScanTask extends RecursiveTask<int[][]> {
+        private final Person[] persons;
+        private final int from;
+        private final int to;
+
+        ScanTask(Person[] persons, int from, int to) {
+            this.persons = persons;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[][] compute() {
+            if(to - from <= SLICE_SIZE) {
+                return countSlice(persons, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask right = new ScanTask(persons, middle, to);
+            right.fork();
+            int[][] left = new ScanTask(persons, from, middle).compute();
+            return add(left, right.join());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Population;
+
+import java.util.*;
+
+/**
+ * Stratified samples of a population for calibration runs at lower fidelity.
+ *
+ * The strata are the subpopulation and the set of leg modes of the selected plan, so every mode keeps its share in
+ * the sample. Every person gets a random key from the seed and their id; a sample takes the persons with the lowest
+ * keys of each stratum, <code>floor(n * fraction + u)</code> of them with a random offset <code>u</code> per stratum,
+ * so small strata are kept in expectation. With the same seed, a sample of a smaller fraction is contained in every
+ * sample of a larger one.
+ */
+public final class PopulationSample {
+
+    private PopulationSample() {
+    }
+
+    /**
+     * @param population
+     * @param subpopulationAttribute the person attribute holding the subpopulation
+     * @param fraction the share of the persons to keep
+     * @param seed
+     * @return the ids of the sampled persons
+     */
+    public static Set<Id<Person>> draw(Population population, String subpopulationAttribute, double fraction,
+                                       long seed) {
+        Set<Id<Person>> sample = new HashSet<>();
+        if(fraction >= 1.0) {
+            sample.addAll(population.getPersons().keySet());
+            return sample;
+        }
+        Map<String, List<Person>> strata = new HashMap<>();
+        for(Person person : population.getPersons().values()) {
+            Object subpopulation = population.getPersonAttributes().getAttribute(person.getId().toString(),
+                    subpopulationAttribute);
+            String stratum = subpopulation + "|" + modes(person.getSelectedPlan());
+            strata.computeIfAbsent(stratum, key -> new ArrayList<>()).add(person);
+        }
+        for(Map.Entry<String, List<Person>> stratum : strata.entrySet()) {
+            List<Person> persons = stratum.getValue();
+            persons.sort(Comparator.comparingLong(person -> key(seed, person.getId().toString())));
+            double offset = (key(seed, stratum.getKey()) >>> 11) * 0x1.0p-53;
+            int size = (int) Math.min(persons.size(), Math.floor(persons.size() * fraction + offset));
+            for(int p = 0; p < size; p++) {
+                sample.add(persons.get(p).getId());
+            }
+        }
+        return sample;
+    }
+
+    private static String modes(Plan plan) {
+        if(plan == null) return "";
+        SortedSet<String> modes = new TreeSet<>();
+        for(PlanElement element : plan.getPlanElements()) {
+            if(element instanceof Leg) modes.add(((Leg) element).getMode());
+        }
+        return String.join(",", modes);
+    }
+
+    /**
+     * A 64 bit mix of the seed and a string, uniform enough to order persons at random.
+     */
+    private static long key(long seed, String value) {
+        long h = seed * 0x9E3779B97F4A7C15L + value.hashCode();
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Remove the persons that are not in a sample.
+     * @param population
+     * @param sample
+     */
+    public static void retain(Population population, Set<Id<Person>> sample) {
+        List<Id<Person>> removed = new ArrayList<>();
+        for(Id<Person> person : population.getPersons().keySet()) {
+            if(!sample.contains(person)) removed.add(person);
+        }
+        for(Id<Person> person : removed) {
+            population.removePerson(person);
+        }
+    }
+}
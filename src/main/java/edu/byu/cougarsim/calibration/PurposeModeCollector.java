@@ -0,0 +1,91 @@
+package edu.byu.cougarsim.calibration;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Counts completed trips by trip purpose and main mode.
+ */
+public class PurposeModeCollector implements TripCollector {
+
+    private final TripPurposeClassifier classifier;
+    private int[][] purposeModeCounts;
+
+    public PurposeModeCollector(TripPurposeClassifier classifier) {
+        this.classifier = classifier;
+        this.purposeModeCounts = new int[classifier.getNumberOfPurposes()][classifier.getNumberOfModes()];
+    }
+
+    /**
+     * Increment the purpose-mode bin of the trip.
+     * @param trip
+     */
+    @Override
+    public void handleTrip(TripRecord trip) {
+        int purpose = trip.getPurpose();
+        int mode = trip.getMode();
+
+        // modes that were not known at startup get a new code, so the count rows may need to grow
+        if(mode >= purposeModeCounts[purpose].length) {
+            growModes(classifier.getNumberOfModes());
+        }
+        purposeModeCounts[purpose][mode]++;
+    }
+
+    @Override
+    public TripCollector newShard() {
+        return new PurposeModeCollector(classifier);
+    }
+
+    @Override
+    public void merge(TripCollector shard) {
+        int[][] shardCounts = ((PurposeModeCollector) shard).purposeModeCounts;
+        growModes(classifier.getNumberOfModes());
+        for(int purpose = 0; purpose < purposeModeCounts.length; purpose++) {
+            for(int mode = 0; mode < shardCounts[purpose].length; mode++) {
+                purposeModeCounts[purpose][mode] += shardCounts[purpose][mode];
+            }
+        }
+    }
+
+    private void growModes(int numberOfModes) {
+        for(int purpose = 0; purpose < purposeModeCounts.length; purpose++) {
+            purposeModeCounts[purpose] = Arrays.copyOf(purposeModeCounts[purpose], numberOfModes);
+        }
+    }
+
+    /**
+     * @return trip counts indexed by the classifier's purpose and mode codes
+     */
+    public int[][] getPurposeModeCounts() {
+        return purposeModeCounts;
+    }
+
+    public void writePurposeModeCounts(File file) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        growModes(classifier.getNumberOfModes());
+        writer.write("Purpose, " + String.join(", ", classifier.getModes()) + "\n");
+        for(int purpose = 0; purpose < purposeModeCounts.length; purpose++) {
+            writer.write(classifier.getPurposeName(purpose));
+            for(int count : purposeModeCounts[purpose]) {
+                writer.write(", " + count);
+            }
+            writer.write("\n");
+        }
+        writer.close();
+    }
+
+    /**
+     * Reinitialize the counts to zero.
+     * @param iteration
+     */
+    @Override
+    public void reset(int iteration) {
+        for(int[] modeCounts : purposeModeCounts) {
+            Arrays.fill(modeCounts, 0);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.core.scoring.SumScoringFunction;
+
+/**
+ * Scoring term that adds the purpose-specific constant of the trip's main mode to the score of every trip.
+ *
+ * Trips are assembled the same way as in the {@link TripTracker}: from one real activity to the next, with the
+ * main mode accumulated over the legs in between and stage activities skipped.
+ */
+public class PurposeModeConstantScoring implements SumScoringFunction.ActivityScoring, SumScoringFunction.LegScoring {
+
+    private final TripPurposeClassifier classifier;
+    private final double[][] constants;
+
+    private int originType = -1;
+    private int mainMode = -1;
+    private double score = 0.0;
+
+    /**
+     * @param classifier
+     * @param constants indexed by purpose and mode code, see {@link PurposeModeConstants}
+     */
+    public PurposeModeConstantScoring(TripPurposeClassifier classifier, double[][] constants) {
+        this.classifier = classifier;
+        this.constants = constants;
+    }
+
+    @Override
+    public void handleFirstActivity(Activity act) {
+        arrive(act);
+    }
+
+    @Override
+    public void handleActivity(Activity act) {
+        arrive(act);
+    }
+
+    @Override
+    public void handleLastActivity(Activity act) {
+        arrive(act);
+    }
+
+    @Override
+    public void handleLeg(Leg leg) {
+        if(originType < 0) return;
+        mainMode = classifier.getMainMode(mainMode, classifier.getModeCode(leg.getMode()));
+    }
+
+    private void arrive(Activity act) {
+        int type = classifier.getActivityTypeCode(act.getType());
+        if(classifier.isStageActivity(type)) return;
+        if(originType >= 0 && mainMode >= 0) {
+            score += PurposeModeConstants.get(constants, classifier.getPurpose(originType, type),
+                    classifier.getTripMode(mainMode));
+        }
+        originType = type;
+        mainMode = -1;
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public double getScore() {
+        return score;
+    }
+}
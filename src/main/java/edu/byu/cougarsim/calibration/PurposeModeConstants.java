@@ -0,0 +1,36 @@
+package edu.byu.cougarsim.calibration;
+
+import javax.inject.Singleton;
+
+/**
+ * The purpose-specific mode constants found by the {@link ModeConstantSolver}, shared between the controler
+ * listener that updates them and the scoring functions that add them to the score of every trip.
+ *
+ * The constants are replaced as a whole, so a scoring function created during an update sees either the old or
+ * the new table.
+ */
+@Singleton
+public class PurposeModeConstants {
+
+    private volatile double[][] constants = new double[0][];
+
+    /**
+     * @return the constants indexed by purpose and mode code; do not modify
+     */
+    public double[][] getConstants() {
+        return constants;
+    }
+
+    public void setConstants(double[][] constants) {
+        this.constants = constants;
+    }
+
+    public boolean isEmpty() {
+        return constants.length == 0;
+    }
+
+    static double get(double[][] constants, int purpose, int mode) {
+        if(purpose >= constants.length || mode >= constants[purpose].length) return 0.0;
+        return constants[purpose][mode];
+    }
+}
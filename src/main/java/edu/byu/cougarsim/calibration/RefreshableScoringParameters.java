@@ -0,0 +1,43 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.scoring.functions.ScoringParameters;
+import org.matsim.core.scoring.functions.ScoringParametersForPerson;
+import org.matsim.core.scoring.functions.SubpopulationScoringParameters;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Scoring parameters that can be rebuilt from the config during a run.
+ *
+ * {@link SubpopulationScoringParameters} caches the parameters of every subpopulation the first time they are
+ * asked for, so changes to the <code>planCalcScore</code> mode constants after the first iteration would never
+ * reach the scoring functions. The scoring functions are created anew every iteration; after {@link #refresh()}
+ * they are created from the current config.
+ */
+@Singleton
+public class RefreshableScoringParameters implements ScoringParametersForPerson {
+
+    private final Scenario scenario;
+    private volatile ScoringParametersForPerson delegate;
+
+    @Inject
+    public RefreshableScoringParameters(Scenario scenario) {
+        this.scenario = scenario;
+        this.delegate = new SubpopulationScoringParameters(scenario);
+    }
+
+    /**
+     * Drop the cached parameters, the next scoring functions read the current <code>planCalcScore</code> config.
+     */
+    public void refresh() {
+        this.delegate = new SubpopulationScoringParameters(scenario);
+    }
+
+    @Override
+    public ScoringParameters getScoringParameters(Person person) {
+        return delegate.getScoringParameters(person);
+    }
+}
@@ -1,97 +1,295 @@
 package edu.byu.cougarsim.calibration;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.inject.Inject;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
 import org.matsim.api.core.v01.events.handler.PersonEntersVehicleEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonLeavesVehicleEventHandler;
 import org.matsim.api.core.v01.population.Person;
-import org.matsim.core.controler.events.IterationEndsEvent;
-import org.matsim.core.router.Transit;
-import org.matsim.pt.transitSchedule.api.Departure;
-import org.matsim.pt.transitSchedule.api.TransitLine;
-import org.matsim.pt.transitSchedule.api.TransitRoute;
-import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.core.api.experimental.events.TransitDriverStartsEvent;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+import org.matsim.core.api.experimental.events.handler.TransitDriverStartsEventHandler;
+import org.matsim.core.api.experimental.events.handler.VehicleArrivesAtFacilityEventHandler;
 import org.matsim.vehicles.Vehicle;
-import org.matsim.vehicles.Vehicles;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
 
-public class TransitBoardingsEventHandler implements PersonEntersVehicleEventHandler {
+/**
+ * Counts transit boardings by line, route, departure and stop, and alightings by stop.
+ *
+ * All lookups go through a {@link TransitIndex} built at construction: a boarding costs one vehicle index lookup,
+ * a comparison with the vehicle's current driver and a few array increments. The driver, route, departure and
+ * current stop of every vehicle are taken from the <code>TransitDriverStartsEvent</code>s and
+ * <code>VehicleArrivesAtFacilityEvent</code>s; for event streams without driver events, the schedule's vehicle
+ * assignment is used and drivers are recognized by their <code>pt_</code> id prefix as before.
+ *
+ * For parallel event handling the handler can be split into shards with {@link #newShard(int, int)}; each shard
+ * counts the boardings of one partition of the persons and the shards are merged back with
+ * {@link #merge(TransitBoardingsEventHandler)}.
+ *
+ * The written counts are multiplied by the scale factor (see {@link #setScaleFactor(double)}), so a run on a
+ * population sample reports boardings at the scale of the full population.
+ */
+public class TransitBoardingsEventHandler implements PersonEntersVehicleEventHandler, PersonLeavesVehicleEventHandler,
+        TransitDriverStartsEventHandler, VehicleArrivesAtFacilityEventHandler {
 
-    TransitSchedule transitSchedule;
-    Vehicles transitVehicles;
-    Integer totalBoardings = 0;
+    private final TransitIndex transitIndex;
+    long totalBoardings = 0;
 
-    private Map<Id<Vehicle>, Id<TransitLine>> vehicleLineMap = new HashMap<>();
-    private Map<Id<TransitRoute>, Id<TransitLine>> routeLineMap = new HashMap<>();
-    private Map<Id<TransitLine>, Integer> transitLineBoardings = new HashMap<>();
+    private int partition = 0;
+    private int partitions = 1;
+    private double scaleFactor = 1.0;
 
-    private Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    // state of the vehicles, updated by every shard
+    private final Id<Person>[] vehicleDrivers;
+    private final int[] vehicleRoutes;
+    private final int[] vehicleDepartures;
+    private final int[] vehicleStops;
+
+    private final long[] lineBoardings;
+    private final long[] routeBoardings;
+    private final long[] departureBoardings;
+    private final long[] stopBoardings;
+    private final long[] stopAlightings;
 
     /**
-     * The class constructor initializes the lookup maps and counter.
+     * The class constructor initializes the lookup tables and counters.
      * @param scenario
      */
     @Inject
     public TransitBoardingsEventHandler(Scenario scenario) {
-        this.transitSchedule = scenario.getTransitSchedule();
-        this.transitVehicles = scenario.getTransitVehicles();
-
-        // Loop through all the transit lines, initializing the boardings file
-        for(Map.Entry<Id<TransitLine>, TransitLine> line:transitSchedule.getTransitLines().entrySet()){
-           //Loop through all of the routes on the line, and fill the route-line lookup table
-           for(Map.Entry<Id<TransitRoute>, TransitRoute> route:line.getValue().getRoutes().entrySet()) {
-               routeLineMap.putIfAbsent(route.getKey(), line.getKey());
-               TransitRoute transitRoute = route.getValue();
-
-               for(Map.Entry<Id<Departure>, Departure> departure : transitRoute.getDepartures().entrySet()) {
-                   vehicleLineMap.put(departure.getValue().getVehicleId(), line.getKey());
-               }
-           }
+        this(new TransitIndex(scenario));
+    }
+
+    public TransitBoardingsEventHandler(TransitIndex transitIndex) {
+        this(transitIndex, 0, 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    TransitBoardingsEventHandler(TransitIndex transitIndex, int partition, int partitions) {
+        this.transitIndex = transitIndex;
+        this.partition = partition;
+        this.partitions = partitions;
+
+        int vehicles = transitIndex.getNumberOfVehicles();
+        this.vehicleDrivers = new Id[vehicles];
+        this.vehicleRoutes = new int[vehicles];
+        this.vehicleDepartures = new int[vehicles];
+        this.vehicleStops = new int[vehicles];
+
+        this.lineBoardings = new long[transitIndex.getNumberOfLines()];
+        this.routeBoardings = new long[transitIndex.getNumberOfRoutes()];
+        this.departureBoardings = new long[transitIndex.getNumberOfDepartures()];
+        this.stopBoardings = new long[transitIndex.getNumberOfStops()];
+        this.stopAlightings = new long[transitIndex.getNumberOfStops()];
+        resetVehicles();
+    }
+
+    /**
+     * @param partition
+     * @param partitions
+     * @return an empty handler sharing this handler's lookup tables that only counts one partition of the persons
+     */
+    public TransitBoardingsEventHandler newShard(int partition, int partitions) {
+        return new TransitBoardingsEventHandler(transitIndex, partition, partitions);
+    }
+
+    /**
+     * Add the boardings of a shard to this handler.
+     * @param shard
+     */
+    public void merge(TransitBoardingsEventHandler shard) {
+        totalBoardings += shard.totalBoardings;
+        add(lineBoardings, shard.lineBoardings);
+        add(routeBoardings, shard.routeBoardings);
+        add(departureBoardings, shard.departureBoardings);
+        add(stopBoardings, shard.stopBoardings);
+        add(stopAlightings, shard.stopAlightings);
+    }
+
+    private static void add(long[] counts, long[] shardCounts) {
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] += shardCounts[i];
         }
     }
 
+    public long getTotalBoardings() {
+        return totalBoardings;
+    }
+
+    /**
+     * @param scaleFactor the factor from simulated to real boardings, e.g. 10 for a 10% sample
+     */
+    public void setScaleFactor(double scaleFactor) {
+        this.scaleFactor = scaleFactor;
+    }
+
+    /**
+     * @param count
+     * @return a simulated count at the scale of the full population
+     */
+    public long expand(long count) {
+        return scaleFactor == 1.0 ? count : Math.round(count * scaleFactor);
+    }
+
+    public TransitIndex getTransitIndex() {
+        return transitIndex;
+    }
+
+    /**
+     * @return boardings indexed by the line index of the {@link TransitIndex}
+     */
+    public long[] getLineBoardings() {
+        return lineBoardings;
+    }
+
+    public long[] getRouteBoardings() {
+        return routeBoardings;
+    }
+
+    public long[] getDepartureBoardings() {
+        return departureBoardings;
+    }
+
+    public long[] getStopBoardings() {
+        return stopBoardings;
+    }
+
+    public long[] getStopAlightings() {
+        return stopAlightings;
+    }
+
     /**
-     * When a person enters a vehicle, lookup to see if the vehicle is a transit vehicle. If it is,
-     * then add a boarding to that transit line.
+     * Remember who drives the vehicle and which departure it serves.
+     * @param event
+     */
+    @Override
+    public void handleEvent(TransitDriverStartsEvent event) {
+        int vehicle = transitIndex.getVehicleIndex(event.getVehicleId());
+        if(vehicle < 0) return;
+        int route = transitIndex.getRouteIndex(event.getTransitLineId(), event.getTransitRouteId());
+        vehicleDrivers[vehicle] = event.getDriverId();
+        vehicleRoutes[vehicle] = route;
+        vehicleDepartures[vehicle] = route < 0 ? -1 : transitIndex.getDepartureIndex(route, event.getDepartureId());
+        vehicleStops[vehicle] = -1;
+    }
+
+    @Override
+    public void handleEvent(VehicleArrivesAtFacilityEvent event) {
+        int vehicle = transitIndex.getVehicleIndex(event.getVehicleId());
+        if(vehicle < 0) return;
+        vehicleStops[vehicle] = transitIndex.getStopIndex(event.getFacilityId());
+    }
+
+    /**
+     * When a person enters a vehicle, lookup to see if the vehicle is a transit vehicle. If it is, and the
+     * person is not its driver, then add a boarding to the line, route, departure and stop.
      * @param event
      */
     @Override
     public void handleEvent(PersonEntersVehicleEvent event) {
-        Id<Vehicle> vehicleId = event.getVehicleId();
-        Id<Person> personId = event.getPersonId();
-        if(transitVehicles.getVehicles().containsKey(vehicleId) & // are they boarding transit
-                !personId.toString().contains("pt_") ){ // and are they not a transit driver?
-            Id<TransitLine> lineId = vehicleLineMap.get(vehicleId);
-            transitLineBoardings.merge(lineId, 1, Integer::sum);
-            totalBoardings++;
+        int vehicle = passengerVehicle(event.getPersonId(), event.getVehicleId());
+        if(vehicle < 0) return;
+
+        totalBoardings++;
+        int route = vehicleRoutes[vehicle];
+        if(route >= 0) {
+            routeBoardings[route]++;
+            lineBoardings[transitIndex.getRouteLine(route)]++;
+        }
+        if(vehicleDepartures[vehicle] >= 0) departureBoardings[vehicleDepartures[vehicle]]++;
+        if(vehicleStops[vehicle] >= 0) stopBoardings[vehicleStops[vehicle]]++;
+    }
+
+    @Override
+    public void handleEvent(PersonLeavesVehicleEvent event) {
+        int vehicle = passengerVehicle(event.getPersonId(), event.getVehicleId());
+        if(vehicle < 0) return;
+        if(vehicleStops[vehicle] >= 0) stopAlightings[vehicleStops[vehicle]]++;
+    }
+
+    /**
+     * @param personId
+     * @param vehicleId
+     * @return the index of the transit vehicle if the person is a passenger counted by this shard, -1 otherwise
+     */
+    private int passengerVehicle(Id<Person> personId, Id<Vehicle> vehicleId) {
+        int vehicle = transitIndex.getVehicleIndex(vehicleId);
+        if(vehicle < 0) return -1;
+        Id<Person> driver = vehicleDrivers[vehicle];
+        if(driver != null ? driver.equals(personId) : personId.toString().startsWith("pt_")) return -1;
+        if(partitions > 1 && OpenTripStore.partitionOf(personId, partitions) != partition) return -1;
+        return vehicle;
+    }
+
+    private void resetVehicles() {
+        Arrays.fill(vehicleDrivers, null);
+        Arrays.fill(vehicleStops, -1);
+        for(int vehicle = 0; vehicle < vehicleRoutes.length; vehicle++) {
+            vehicleRoutes[vehicle] = transitIndex.getScheduledRoute(vehicle);
+            vehicleDepartures[vehicle] = transitIndex.getScheduledDeparture(vehicle);
         }
     }
 
     @Override
     public void reset(int iteration) {
         totalBoardings = 0;
-        transitLineBoardings.clear();
+        Arrays.fill(lineBoardings, 0);
+        Arrays.fill(routeBoardings, 0);
+        Arrays.fill(departureBoardings, 0);
+        Arrays.fill(stopBoardings, 0);
+        Arrays.fill(stopAlightings, 0);
+        resetVehicles();
     }
 
 
     public void writeLineBoardings(File boardingsFile) throws IOException {
         BufferedWriter writer = new BufferedWriter(new FileWriter(boardingsFile));
         writer.write("TransitLine, Boardings\n");
-        transitLineBoardings.forEach((key, value) -> {
-            try {
-                writer.write(key + ", " + value + "\n");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+        for(int line = 0; line < lineBoardings.length; line++) {
+            if(lineBoardings[line] == 0) continue;
+            writer.write(transitIndex.getLineId(line) + ", " + expand(lineBoardings[line]) + "\n");
+        }
+        writer.close();
+    }
+
+    public void writeRouteBoardings(File boardingsFile) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(boardingsFile));
+        writer.write("TransitLine, TransitRoute, Boardings\n");
+        for(int route = 0; route < routeBoardings.length; route++) {
+            if(routeBoardings[route] == 0) continue;
+            writer.write(transitIndex.getLineId(transitIndex.getRouteLine(route)) + ", " +
+                    transitIndex.getRouteId(route) + ", " + expand(routeBoardings[route]) + "\n");
+        }
+        writer.close();
+    }
+
+    public void writeDepartureBoardings(File boardingsFile) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(boardingsFile));
+        writer.write("TransitLine, TransitRoute, Departure, Boardings\n");
+        for(int departure = 0; departure < departureBoardings.length; departure++) {
+            if(departureBoardings[departure] == 0) continue;
+            int route = transitIndex.getDepartureRoute(departure);
+            writer.write(transitIndex.getLineId(transitIndex.getRouteLine(route)) + ", " + transitIndex.getRouteId(route) +
+                    ", " + transitIndex.getDepartureId(departure) + ", " + expand(departureBoardings[departure]) + "\n");
+        }
+        writer.close();
+    }
+
+    public void writeStopRidership(File ridershipFile) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(ridershipFile));
+        writer.write("TransitStop, Boardings, Alightings\n");
+        for(int stop = 0; stop < stopBoardings.length; stop++) {
+            if(stopBoardings[stop] == 0 && stopAlightings[stop] == 0) continue;
+            writer.write(transitIndex.getStopId(stop) + ", " + expand(stopBoardings[stop]) + ", " +
+                    expand(stopAlightings[stop]) + "\n");
+        }
         writer.close();
     }
 
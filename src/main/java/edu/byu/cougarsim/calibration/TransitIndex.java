@@ -0,0 +1,213 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.*;
+
+/**
+ * Dense indices of the transit lines, routes, departures, stops and vehicles of a scenario, built once from the
+ * {@link TransitSchedule}, so transit handlers can count in primitive arrays.
+ *
+ * Route ids are only unique within a line and departure ids only within a route, so routes are looked up by line
+ * with {@link #getRouteIndex(Id, Id)}, and departures are numbered route by route and looked up with
+ * {@link #getDepartureIndex(int, Id)}. The line and departure a vehicle serves according to the schedule are
+ * available as defaults for event streams without <code>TransitDriverStartsEvent</code>s.
+ *
+ * The index is only read after construction and can be shared between threads.
+ */
+public class TransitIndex {
+
+    private final IdIndex<TransitLine> lines;
+    private final List<Id<TransitRoute>> routeIds = new ArrayList<>();
+    // route id -> route index, by line index
+    private final List<Map<Id<TransitRoute>, Integer>> lineRoutes = new ArrayList<>();
+    private final IdIndex<TransitStopFacility> stops;
+    private final IdIndex<Vehicle> vehicles;
+
+    private final int[] routeLine;
+    private final int[] routeFirstDeparture;
+    // departure id -> position in the route's departures, by route index
+    private final List<Map<Id<Departure>, Integer>> routeDepartures = new ArrayList<>();
+    private final int numberOfDepartures;
+    private final List<Id<Departure>> departureIds = new ArrayList<>();
+
+    private final int[] scheduledVehicleRoute;
+    private final int[] scheduledVehicleDeparture;
+
+    public TransitIndex(Scenario scenario) {
+        TransitSchedule schedule = scenario.getTransitSchedule();
+        this.lines = new IdIndex<>(schedule.getTransitLines().keySet(), schedule.getTransitLines().size());
+        this.stops = new IdIndex<>(schedule.getFacilities().keySet(), schedule.getFacilities().size());
+        this.vehicles = new IdIndex<>(scenario.getTransitVehicles().getVehicles().keySet(),
+                scenario.getTransitVehicles().getVehicles().size());
+
+        for(int line = 0; line < lines.size(); line++) {
+            lineRoutes.add(new HashMap<>());
+        }
+        int routeCount = 0;
+        for(TransitLine line : schedule.getTransitLines().values()) {
+            routeCount += line.getRoutes().size();
+        }
+        this.routeLine = new int[routeCount];
+        this.routeFirstDeparture = new int[routeCount + 1];
+
+        Map<Id<Vehicle>, int[]> vehicleDepartures = new HashMap<>();
+        int departure = 0;
+        for(TransitLine line : schedule.getTransitLines().values()) {
+            int lineIndex = lines.get(line.getId());
+            Map<Id<TransitRoute>, Integer> routesOfLine = lineRoutes.get(lineIndex);
+            for(TransitRoute route : line.getRoutes().values()) {
+                int routeIndex = routeIds.size();
+                routeIds.add(route.getId());
+                routesOfLine.put(route.getId(), routeIndex);
+                routeLine[routeIndex] = lineIndex;
+                routeFirstDeparture[routeIndex] = departure;
+
+                Map<Id<Departure>, Integer> departures = new HashMap<>();
+                for(Departure routeDeparture : route.getDepartures().values()) {
+                    departures.put(routeDeparture.getId(), departure - routeFirstDeparture[routeIndex]);
+                    departureIds.add(routeDeparture.getId());
+                    if(routeDeparture.getVehicleId() != null) {
+                        vehicles.add(routeDeparture.getVehicleId());
+                        vehicleDepartures.put(routeDeparture.getVehicleId(), new int[]{routeIndex, departure});
+                    }
+                    departure++;
+                }
+                routeDepartures.add(departures);
+            }
+        }
+        routeFirstDeparture[routeCount] = departure;
+        this.numberOfDepartures = departure;
+
+        this.scheduledVehicleRoute = new int[vehicles.size()];
+        this.scheduledVehicleDeparture = new int[vehicles.size()];
+        Arrays.fill(scheduledVehicleRoute, -1);
+        Arrays.fill(scheduledVehicleDeparture, -1);
+        for(Map.Entry<Id<Vehicle>, int[]> entry : vehicleDepartures.entrySet()) {
+            int vehicle = vehicles.get(entry.getKey());
+            scheduledVehicleRoute[vehicle] = entry.getValue()[0];
+            scheduledVehicleDeparture[vehicle] = entry.getValue()[1];
+        }
+    }
+
+    /**
+     * @param vehicleId
+     * @return the index of the transit vehicle, or -1 for any other vehicle
+     */
+    public int getVehicleIndex(Id<Vehicle> vehicleId) {
+        return vehicles.get(vehicleId);
+    }
+
+    /**
+     * @param lineId
+     * @param routeId
+     * @return the index of the route of the line, or -1 if the line has no such route
+     */
+    public int getRouteIndex(Id<TransitLine> lineId, Id<TransitRoute> routeId) {
+        int line = lines.get(lineId);
+        return line < 0 ? -1 : getRouteIndex(line, routeId);
+    }
+
+    /**
+     * @param line the line index
+     * @param routeId
+     * @return the index of the route of the line, or -1 if the line has no such route
+     */
+    public int getRouteIndex(int line, Id<TransitRoute> routeId) {
+        Integer route = lineRoutes.get(line).get(routeId);
+        return route == null ? -1 : route;
+    }
+
+    public int getStopIndex(Id<TransitStopFacility> stopId) {
+        return stops.get(stopId);
+    }
+
+    public int getLineIndex(Id<TransitLine> lineId) {
+        return lines.get(lineId);
+    }
+
+    /**
+     * @param route
+     * @param departureId
+     * @return the index of the departure over all routes, or -1 if the route has no such departure
+     */
+    public int getDepartureIndex(int route, Id<Departure> departureId) {
+        Integer departure = routeDepartures.get(route).get(departureId);
+        return departure == null ? -1 : routeFirstDeparture[route] + departure;
+    }
+
+    public int getRouteLine(int route) {
+        return routeLine[route];
+    }
+
+    /**
+     * @param vehicle
+     * @return the route the schedule assigns to the vehicle, or -1
+     */
+    public int getScheduledRoute(int vehicle) {
+        return scheduledVehicleRoute[vehicle];
+    }
+
+    /**
+     * @param vehicle
+     * @return the (last) departure the schedule assigns to the vehicle, or -1
+     */
+    public int getScheduledDeparture(int vehicle) {
+        return scheduledVehicleDeparture[vehicle];
+    }
+
+    /**
+     * @param departure
+     * @return the route of a departure index
+     */
+    public int getDepartureRoute(int departure) {
+        int route = Arrays.binarySearch(routeFirstDeparture, departure);
+        if(route < 0) return -route - 2;
+        // routes without departures share their first index with the next route, take the last one
+        while(route + 1 < routeLine.length && routeFirstDeparture[route + 1] == departure) route++;
+        return route;
+    }
+
+    public Id<TransitLine> getLineId(int line) {
+        return lines.getId(line);
+    }
+
+    public Id<TransitRoute> getRouteId(int route) {
+        return routeIds.get(route);
+    }
+
+    public Id<TransitStopFacility> getStopId(int stop) {
+        return stops.getId(stop);
+    }
+
+    public Id<Vehicle> getVehicleId(int vehicle) {
+        return vehicles.getId(vehicle);
+    }
+
+    public Id<Departure> getDepartureId(int departure) {
+        return departureIds.get(departure);
+    }
+
+    public int getNumberOfLines() {
+        return lines.size();
+    }
+
+    public int getNumberOfRoutes() {
+        return routeIds.size();
+    }
+
+    public int getNumberOfStops() {
+        return stops.size();
+    }
+
+    public int getNumberOfVehicles() {
+        return vehicles.size();
+    }
+
+    public int getNumberOfDepartures() {
+        return numberOfDepartures;
+    }
+}
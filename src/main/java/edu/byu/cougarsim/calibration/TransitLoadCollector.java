@@ -0,0 +1,322 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.handler.PersonEntersVehicleEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonLeavesVehicleEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.TransitDriverStartsEvent;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+import org.matsim.core.api.experimental.events.handler.TransitDriverStartsEventHandler;
+import org.matsim.core.api.experimental.events.handler.VehicleArrivesAtFacilityEventHandler;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * On-board loads of the transit vehicles by route segment and hour: the departures over every pair of consecutive
+ * stops of a route, the passenger-kilometers travelled on it and its peak load, by the hour the vehicle served the
+ * first stop of the pair.
+ *
+ * The stop sequences of the routes and the lengths of their segments, along the network route or as the crow flies
+ * where a stop is not on it, are built from the {@link TransitSchedule} at construction, and segments are numbered
+ * route by route. Every vehicle keeps its passenger count and its position in the stop sequence of its route in
+ * primitive arrays. When it arrives at a stop, the stop is matched against the next stops of the sequence, so an
+ * event costs the vehicle index lookup of the {@link TransitIndex} and a few array updates.
+ *
+ * Loads need all passengers of a vehicle, so the collector is not split into partitions like the trip collectors,
+ * and is registered with the events manager on its own.
+ */
+public class TransitLoadCollector implements PersonEntersVehicleEventHandler, PersonLeavesVehicleEventHandler,
+        TransitDriverStartsEventHandler, VehicleArrivesAtFacilityEventHandler {
+
+    public static final int HOURS = 30;
+
+    private final TransitIndex transitIndex;
+    private final double scaleFactor;
+
+    // stop sequences of the routes, indexed routeFirstStop[route] + position
+    private final int[] routeFirstStop;
+    private final Id<TransitStopFacility>[] stopIds;
+    // distance from the stop at a position to the next one, in meters
+    private final double[] segmentLength;
+
+    // state of the vehicles
+    private final Id<Person>[] vehicleDrivers;
+    private final int[] vehicleRoutes;
+    private final int[] vehiclePositions;
+    private final int[] vehicleHours;
+    private final int[] vehicleLoads;
+
+    // by segment and hour, indexed segment * HOURS + hour
+    private final int[] departures;
+    private final double[] passengerKilometers;
+    private final int[] peakLoads;
+
+    /**
+     * @param scenario
+     * @param transitIndex
+     * @param scaleFactor the factor from simulated to real passengers, e.g. 10 for a 10% sample
+     */
+    @SuppressWarnings("unchecked")
+    public TransitLoadCollector(Scenario scenario, TransitIndex transitIndex, double scaleFactor) {
+        this.transitIndex = transitIndex;
+        this.scaleFactor = scaleFactor;
+        Network network = scenario.getNetwork();
+
+        int routes = transitIndex.getNumberOfRoutes();
+        TransitRoute[] routeById = new TransitRoute[routes];
+        for(TransitLine line : scenario.getTransitSchedule().getTransitLines().values()) {
+            for(TransitRoute route : line.getRoutes().values()) {
+                routeById[transitIndex.getRouteIndex(line.getId(), route.getId())] = route;
+            }
+        }
+        this.routeFirstStop = new int[routes + 1];
+        for(int route = 0; route < routes; route++) {
+            routeFirstStop[route + 1] = routeFirstStop[route] + routeById[route].getStops().size();
+        }
+        this.stopIds = new Id[routeFirstStop[routes]];
+        this.segmentLength = new double[routeFirstStop[routes]];
+        for(int route = 0; route < routes; route++) {
+            List<TransitRouteStop> stops = routeById[route].getStops();
+            double[] distances = stopDistances(network, routeById[route].getRoute(), stops);
+            for(int position = 0; position < stops.size(); position++) {
+                int stop = routeFirstStop[route] + position;
+                stopIds[stop] = stops.get(position).getStopFacility().getId();
+                segmentLength[stop] = position + 1 < stops.size() ? distances[position + 1] - distances[position] : 0.0;
+            }
+        }
+
+        int vehicles = transitIndex.getNumberOfVehicles();
+        this.vehicleDrivers = new Id[vehicles];
+        this.vehicleRoutes = new int[vehicles];
+        this.vehiclePositions = new int[vehicles];
+        this.vehicleHours = new int[vehicles];
+        this.vehicleLoads = new int[vehicles];
+
+        this.departures = new int[segmentLength.length * HOURS];
+        this.passengerKilometers = new double[segmentLength.length * HOURS];
+        this.peakLoads = new int[segmentLength.length * HOURS];
+        resetVehicles();
+    }
+
+    /**
+     * @return the distance of every stop from the start of the route, to the end of its link along the network
+     * route, or from the stop before as the crow flies if its link is not on the rest of the route
+     */
+    private static double[] stopDistances(Network network, NetworkRoute networkRoute, List<TransitRouteStop> stops) {
+        List<Id<Link>> links = new ArrayList<>();
+        if(networkRoute != null) {
+            links.add(networkRoute.getStartLinkId());
+            links.addAll(networkRoute.getLinkIds());
+            links.add(networkRoute.getEndLinkId());
+        }
+        double[] distances = new double[stops.size()];
+        int link = 0;
+        double distance = 0.0;
+        for(int position = 0; position < stops.size(); position++) {
+            TransitStopFacility stop = stops.get(position).getStopFacility();
+            int stopLink = links.subList(link, links.size()).indexOf(stop.getLinkId());
+            if(stopLink >= 0) {
+                for(int l = link; l <= link + stopLink; l++) {
+                    Link networkLink = network.getLinks().get(links.get(l));
+                    // the start link of a route is not travelled
+                    if(networkLink != null && l > 0) distance += networkLink.getLength();
+                }
+                link += stopLink + 1;
+                distances[position] = distance;
+            } else {
+                distances[position] = position == 0 ? distance : distances[position - 1] +
+                        CoordUtils.calcEuclideanDistance(stops.get(position - 1).getStopFacility().getCoord(),
+                                stop.getCoord());
+                distance = distances[position];
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * Remember who drives the vehicle and which route it serves.
+     * @param event
+     */
+    @Override
+    public void handleEvent(TransitDriverStartsEvent event) {
+        int vehicle = transitIndex.getVehicleIndex(event.getVehicleId());
+        if(vehicle < 0) return;
+        vehicleDrivers[vehicle] = event.getDriverId();
+        vehicleRoutes[vehicle] = transitIndex.getRouteIndex(event.getTransitLineId(), event.getTransitRouteId());
+        vehiclePositions[vehicle] = -1;
+        vehicleLoads[vehicle] = 0;
+    }
+
+    /**
+     * Add the load the vehicle carried since its last stop to the segments it travelled, and move it to the stop.
+     * @param event
+     */
+    @Override
+    public void handleEvent(VehicleArrivesAtFacilityEvent event) {
+        int vehicle = transitIndex.getVehicleIndex(event.getVehicleId());
+        if(vehicle < 0) return;
+        int route = vehicleRoutes[vehicle];
+        if(route < 0) return;
+
+        int from = vehiclePositions[vehicle];
+        int first = routeFirstStop[route];
+        int to = -1;
+        for(int stop = first + from + 1; stop < routeFirstStop[route + 1]; stop++) {
+            if(stopIds[stop].equals(event.getFacilityId())) {
+                to = stop - first;
+                break;
+            }
+        }
+        // without driver events, a vehicle starts its next departure at the first stop of its route
+        if(to < 0 && from >= 0 && stopIds[first].equals(event.getFacilityId())) {
+            from = -1;
+            to = 0;
+        }
+        // a stop off the route, the vehicle keeps its position
+        if(to < 0) return;
+
+        if(from >= 0) {
+            int load = vehicleLoads[vehicle];
+            for(int segment = first + from; segment < first + to; segment++) {
+                int cell = segment * HOURS + vehicleHours[vehicle];
+                departures[cell]++;
+                passengerKilometers[cell] += load * segmentLength[segment] / 1000.0;
+                if(load > peakLoads[cell]) peakLoads[cell] = load;
+            }
+        }
+        vehiclePositions[vehicle] = to;
+        vehicleHours[vehicle] = Math.min(HOURS - 1, (int) (event.getTime() / 3600));
+    }
+
+    @Override
+    public void handleEvent(PersonEntersVehicleEvent event) {
+        int vehicle = passengerVehicle(event.getPersonId(), event.getVehicleId());
+        if(vehicle >= 0) vehicleLoads[vehicle]++;
+    }
+
+    @Override
+    public void handleEvent(PersonLeavesVehicleEvent event) {
+        int vehicle = passengerVehicle(event.getPersonId(), event.getVehicleId());
+        if(vehicle >= 0 && vehicleLoads[vehicle] > 0) vehicleLoads[vehicle]--;
+    }
+
+    /**
+     * @return the index of the transit vehicle if the person is one of its passengers, -1 otherwise; a vehicle
+     * whose driver has not started is not in service and carries no passengers
+     */
+    private int passengerVehicle(Id<Person> personId, Id<Vehicle> vehicleId) {
+        int vehicle = transitIndex.getVehicleIndex(vehicleId);
+        if(vehicle < 0) return -1;
+        Id<Person> driver = vehicleDrivers[vehicle];
+        if(driver == null || driver.equals(personId)) return -1;
+        return vehicle;
+    }
+
+    private void resetVehicles() {
+        Arrays.fill(vehicleDrivers, null);
+        Arrays.fill(vehiclePositions, -1);
+        Arrays.fill(vehicleHours, 0);
+        Arrays.fill(vehicleLoads, 0);
+        for(int vehicle = 0; vehicle < vehicleRoutes.length; vehicle++) {
+            vehicleRoutes[vehicle] = transitIndex.getScheduledRoute(vehicle);
+        }
+    }
+
+    @Override
+    public void reset(int iteration) {
+        Arrays.fill(departures, 0);
+        Arrays.fill(passengerKilometers, 0.0);
+        Arrays.fill(peakLoads, 0);
+        resetVehicles();
+    }
+
+    /**
+     * @return the passenger-kilometers of every line, at the scale of the full population
+     */
+    public double[] getLinePassengerKilometers() {
+        double[] lines = new double[transitIndex.getNumberOfLines()];
+        for(int route = 0; route < transitIndex.getNumberOfRoutes(); route++) {
+            int line = transitIndex.getRouteLine(route);
+            for(int cell = routeFirstStop[route] * HOURS; cell < routeFirstStop[route + 1] * HOURS; cell++) {
+                lines[line] += passengerKilometers[cell] * scaleFactor;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the departures over every segment, indexed <code>segment * HOURS + hour</code>
+     */
+    public int[] getDepartures() {
+        return departures;
+    }
+
+    /**
+     * @return the simulated passenger-kilometers of every segment, indexed <code>segment * HOURS + hour</code>
+     */
+    public double[] getPassengerKilometers() {
+        return passengerKilometers;
+    }
+
+    /**
+     * @return the simulated peak load of every segment, indexed <code>segment * HOURS + hour</code>
+     */
+    public int[] getPeakLoads() {
+        return peakLoads;
+    }
+
+    /**
+     * @param route
+     * @param position
+     * @return the segment from the stop at a position of the route's stop sequence to the next stop
+     */
+    public int getSegment(int route, int position) {
+        return routeFirstStop[route] + position;
+    }
+
+    /**
+     * Write the departures, passenger-kilometers and peak loads of the segments and hours that had departures.
+     * Passenger-kilometers and loads are at the scale of the full population.
+     * @param file
+     * @throws IOException
+     */
+    public void writeLoadProfiles(File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("TransitLine, TransitRoute, FromStop, ToStop, Hour, Length, Departures, PassengerKm, " +
+                    "PeakLoad\n");
+            for(int route = 0; route < transitIndex.getNumberOfRoutes(); route++) {
+                String prefix = transitIndex.getLineId(transitIndex.getRouteLine(route)) + ", " +
+                        transitIndex.getRouteId(route) + ", ";
+                for(int segment = routeFirstStop[route]; segment < routeFirstStop[route + 1] - 1; segment++) {
+                    for(int hour = 0; hour < HOURS; hour++) {
+                        int cell = segment * HOURS + hour;
+                        if(departures[cell] == 0) continue;
+                        writer.write(prefix + stopIds[segment] + ", " + stopIds[segment + 1] + ", " + hour +
+                                ", " + segmentLength[segment] + ", " + departures[cell] + ", " +
+                                passengerKilometers[cell] * scaleFactor + ", " +
+                                Math.round(peakLoads[cell] * scaleFactor) + "\n");
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package edu.byu.cougarsim.calibration;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Counts completed trips in travel time bins (in minutes) by trip purpose.
+ */
+public class TravelTimeCollector implements TripCollector {
+
+    private final TripPurposeClassifier classifier;
+    private final CountBin[] travelTimeBins;
+
+    /**
+     * Collect travel times in the default 20 bins of 5 minutes each.
+     * @param classifier
+     */
+    public TravelTimeCollector(TripPurposeClassifier classifier) {
+        this(classifier, CountBin.uniform(20, 5));
+    }
+
+    /**
+     * @param classifier
+     * @param bins template for the travel time bins of every purpose, in minutes
+     */
+    public TravelTimeCollector(TripPurposeClassifier classifier, CountBin bins) {
+        this.classifier = classifier;
+        this.travelTimeBins = new CountBin[classifier.getNumberOfPurposes()];
+        for(int purpose = 0; purpose < travelTimeBins.length; purpose++) {
+            travelTimeBins[purpose] = bins.emptyCopy();
+        }
+    }
+
+    @Override
+    public void handleTrip(TripRecord trip) {
+        // the bins top-code trips longer than the last edge into the last bin
+        travelTimeBins[trip.getPurpose()].add(trip.getTravelTime() / 60.);
+    }
+
+    @Override
+    public TripCollector newShard() {
+        return new TravelTimeCollector(classifier, travelTimeBins[0]);
+    }
+
+    @Override
+    public void merge(TripCollector shard) {
+        CountBin[] shardBins = ((TravelTimeCollector) shard).travelTimeBins;
+        for(int purpose = 0; purpose < travelTimeBins.length; purpose++) {
+            travelTimeBins[purpose].merge(shardBins[purpose]);
+        }
+    }
+
+    /**
+     * @return a copy of the bin counts, indexed by purpose code and bin
+     */
+    public long[][] getTimeBins() {
+        long[][] counts = new long[travelTimeBins.length][];
+        for(int purpose = 0; purpose < travelTimeBins.length; purpose++) {
+            counts[purpose] = travelTimeBins[purpose].getBins();
+        }
+        return counts;
+    }
+
+    /**
+     * @return the lower edges of the bins, in minutes
+     */
+    public double[] getLowerEdges() {
+        return travelTimeBins[0].getLowerEdges();
+    }
+
+    public void writeTimeBins(File timeBinFile) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(timeBinFile));
+        writer.write("Purpose");
+
+        for(double edge : travelTimeBins[0].getLowerEdges()) {
+           writer.write(", " + (edge == Math.rint(edge) ? Long.toString((long) edge) : Double.toString(edge)));
+        }
+        writer.write("\n");
+
+        for(int purpose = 0; purpose < travelTimeBins.length; purpose++){
+            writer.write(classifier.getPurposeName(purpose));
+            travelTimeBins[purpose].writeBins(writer);
+        }
+        writer.close();
+
+    }
+
+    @Override
+    public void reset(int iteration) {
+        for(CountBin bins : travelTimeBins){
+           bins.clearBins();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package edu.byu.cougarsim.calibration;
+
+/**
+ * A metric computed from the completed trips of the {@link TripTracker}. New metrics are added as collectors,
+ * so the event stream is still read only once no matter how many metrics are computed.
+ *
+ * For parallel event handling every tracker partition gets its own shard of each collector (see
+ * {@link #newShard()}), and the shards are merged into the original collector at the end of the iteration.
+ */
+public interface TripCollector {
+
+    /**
+     * Called once for every completed trip. The record is re-used by the tracker and must not be kept.
+     * @param trip
+     */
+    void handleTrip(TripRecord trip);
+
+    /**
+     * Clear the accumulated values before a new iteration.
+     * @param iteration
+     */
+    void reset(int iteration);
+
+    /**
+     * @return an empty collector with the same settings, for one partition of the trips
+     */
+    TripCollector newShard();
+
+    /**
+     * Add the values of a shard created with {@link #newShard()} to this collector. Shards are merged in
+     * partition order, so the merged values do not depend on thread scheduling.
+     * @param shard
+     */
+    void merge(TripCollector shard);
+}
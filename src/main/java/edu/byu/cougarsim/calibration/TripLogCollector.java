@@ -0,0 +1,214 @@
+package edu.byu.cougarsim.calibration;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the completed trips of an iteration in primitive columns and writes them as a compact binary trip log,
+ * to be read back with {@link TripLogReader}.
+ *
+ * The file starts with a header and the names of the purposes, modes, transit lines and routes the codes refer
+ * to. The trips follow in blocks of {@link #BLOCK_SIZE} records; within a block every column is stored
+ * contiguously (person index, departure, arrival, route and line as little-endian ints, purpose and mode as
+ * bytes), so a reader can map a block and scan single columns. Times are whole seconds.
+ *
+ * The person index is the one of {@link TripRecord#getPersonIndex()}. Shards are appended in partition order, so
+ * the trips of a partitioned run are grouped by partition rather than sorted by time.
+ *
+ * Trip logs are only written every few iterations, so the collector can be switched off with
+ * {@link #setLogged(boolean)} for the iterations in between; its shards then drop the trips as they come.
+ */
+public class TripLogCollector implements TripCollector {
+
+    static final int MAGIC = 0x4C505254;
+    static final int VERSION = 1;
+    static final int BLOCK_SIZE = 1 << 16;
+    static final int RECORD_BYTES = 5 * 4 + 2;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final TripPurposeClassifier classifier;
+    private final TransitIndex transitIndex;
+    // shared with the shards
+    private final AtomicBoolean logged;
+
+    private int size = 0;
+    private int[] persons = new int[INITIAL_CAPACITY];
+    private int[] departures = new int[INITIAL_CAPACITY];
+    private int[] arrivals = new int[INITIAL_CAPACITY];
+    private int[] routes = new int[INITIAL_CAPACITY];
+    private int[] lines = new int[INITIAL_CAPACITY];
+    private byte[] purposes = new byte[INITIAL_CAPACITY];
+    private byte[] modes = new byte[INITIAL_CAPACITY];
+
+    public TripLogCollector(TripPurposeClassifier classifier, TransitIndex transitIndex) {
+        this(classifier, transitIndex, new AtomicBoolean(true));
+    }
+
+    private TripLogCollector(TripPurposeClassifier classifier, TransitIndex transitIndex, AtomicBoolean logged) {
+        this.classifier = classifier;
+        this.transitIndex = transitIndex;
+        this.logged = logged;
+    }
+
+    /**
+     * Switch the collection of trips on or off, for this collector and all its shards. Call this before the events
+     * of an iteration are processed.
+     * @param logged
+     */
+    public void setLogged(boolean logged) {
+        this.logged.set(logged);
+    }
+
+    public boolean isLogged() {
+        return logged.get();
+    }
+
+    @Override
+    public void handleTrip(TripRecord trip) {
+        if(!logged.get()) return;
+        ensureCapacity(size + 1);
+        persons[size] = trip.getPersonIndex();
+        departures[size] = (int) Math.round(trip.getDepartureTime());
+        arrivals[size] = (int) Math.round(trip.getArrivalTime());
+        routes[size] = trip.getRoute();
+        lines[size] = trip.getLine();
+        purposes[size] = (byte) trip.getPurpose();
+        modes[size] = (byte) trip.getMode();
+        size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity <= persons.length) return;
+        int newCapacity = Math.max(capacity, persons.length + (persons.length >> 1));
+        persons = Arrays.copyOf(persons, newCapacity);
+        departures = Arrays.copyOf(departures, newCapacity);
+        arrivals = Arrays.copyOf(arrivals, newCapacity);
+        routes = Arrays.copyOf(routes, newCapacity);
+        lines = Arrays.copyOf(lines, newCapacity);
+        purposes = Arrays.copyOf(purposes, newCapacity);
+        modes = Arrays.copyOf(modes, newCapacity);
+    }
+
+    @Override
+    public TripCollector newShard() {
+        return new TripLogCollector(classifier, transitIndex, logged);
+    }
+
+    /**
+     * Append the trips of a shard.
+     * @param shard
+     */
+    @Override
+    public void merge(TripCollector shard) {
+        if(!logged.get()) return;
+        TripLogCollector other = (TripLogCollector) shard;
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.persons, 0, persons, size, other.size);
+        System.arraycopy(other.departures, 0, departures, size, other.size);
+        System.arraycopy(other.arrivals, 0, arrivals, size, other.size);
+        System.arraycopy(other.routes, 0, routes, size, other.size);
+        System.arraycopy(other.lines, 0, lines, size, other.size);
+        System.arraycopy(other.purposes, 0, purposes, size, other.size);
+        System.arraycopy(other.modes, 0, modes, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * @return a collector with a copy of the trips collected so far, which can be written while this one collects
+     * the next iteration
+     */
+    public TripLogCollector copy() {
+        TripLogCollector copy = new TripLogCollector(classifier, transitIndex);
+        copy.merge(this);
+        return copy;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void reset(int iteration) {
+        size = 0;
+    }
+
+    /**
+     * Write the trips collected since the last reset.
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header());
+
+            ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for(int from = 0; from < size; from += BLOCK_SIZE) {
+                int n = Math.min(BLOCK_SIZE, size - from);
+                block.clear();
+                block.asIntBuffer().put(persons, from, n);
+                block.position(4 * n);
+                block.asIntBuffer().put(departures, from, n);
+                block.position(8 * n);
+                block.asIntBuffer().put(arrivals, from, n);
+                block.position(12 * n);
+                block.asIntBuffer().put(routes, from, n);
+                block.position(16 * n);
+                block.asIntBuffer().put(lines, from, n);
+                block.position(20 * n);
+                block.put(purposes, from, n);
+                block.put(modes, from, n);
+                block.flip();
+                writeFully(channel, block);
+            }
+        }
+    }
+
+    /**
+     * The header: magic number, version, number of trips, block size and length of the header, followed by the
+     * purpose, mode, line and route names. The header is padded to a multiple of 8 bytes.
+     */
+    private ByteBuffer header() throws IOException {
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(names);
+        writeNames(out, classifier.getPurposes());
+        writeNames(out, classifier.getModes());
+        out.writeInt(transitIndex.getNumberOfLines());
+        for(int line = 0; line < transitIndex.getNumberOfLines(); line++) {
+            out.writeUTF(transitIndex.getLineId(line).toString());
+        }
+        out.writeInt(transitIndex.getNumberOfRoutes());
+        for(int route = 0; route < transitIndex.getNumberOfRoutes(); route++) {
+            out.writeUTF(transitIndex.getRouteId(route).toString());
+        }
+        out.flush();
+
+        int length = (4 + 4 + 8 + 4 + 4 + names.size() + 7) & ~7;
+        ByteBuffer header = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(size).putInt(BLOCK_SIZE).putInt(length);
+        header.put(names.toByteArray());
+        header.position(length);
+        header.flip();
+        return header;
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for(String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
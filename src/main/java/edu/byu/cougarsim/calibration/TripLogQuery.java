@@ -0,0 +1,117 @@
+package edu.byu.cougarsim.calibration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Group-by trip counts over a trip log, e.g.
+ * <code>TripLogQuery output/ITERS/it.50/50.trips.bin purpose mode</code> prints the trips by purpose and mode as
+ * CSV. Columns are <code>purpose</code>, <code>mode</code>, <code>line</code>, <code>route</code> and
+ * <code>hour</code> (of departure).
+ */
+public class TripLogQuery {
+
+    private static final int MAX_HOURS = 100;
+    private static final long MAX_DENSE_GROUPS = 1 << 22;
+
+    public enum Column {purpose, mode, line, route, hour}
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: TripLogQuery tripLog column [column...], columns: " +
+                    Arrays.toString(Column.values()));
+            System.exit(1);
+        }
+        Column[] columns = new Column[args.length - 1];
+        for(int c = 1; c < args.length; c++) {
+            columns[c - 1] = Column.valueOf(args[c]);
+        }
+        try (TripLogReader reader = new TripLogReader(new File(args[0]))) {
+            StringBuilder header = new StringBuilder();
+            for(Column column : columns) header.append(column).append(", ");
+            System.out.println(header + "Trips");
+            for(Map.Entry<String, Long> group : count(reader, columns).entrySet()) {
+                System.out.println(group.getKey() + ", " + group.getValue());
+            }
+        }
+    }
+
+    /**
+     * Count the trips of a log by the values of some columns.
+     * @param reader
+     * @param columns
+     * @return trip counts keyed by the comma-separated column values, in the order of the codes
+     */
+    public static Map<String, Long> count(TripLogReader reader, Column... columns) {
+        long[] radix = new long[columns.length];
+        long groups = 1;
+        for(int c = 0; c < columns.length; c++) {
+            radix[c] = cardinality(reader, columns[c]);
+            groups *= radix[c];
+        }
+
+        // small group spaces are counted in an array, large ones in a map
+        long[] dense = groups <= MAX_DENSE_GROUPS ? new long[(int) groups] : null;
+        Map<Long, Long> sparse = dense == null ? new HashMap<>() : null;
+        for(long trip = 0; trip < reader.size(); trip++) {
+            long key = 0;
+            for(int c = 0; c < columns.length; c++) {
+                key = key * radix[c] + value(reader, columns[c], trip);
+            }
+            if(dense != null) dense[(int) key]++;
+            else sparse.merge(key, 1L, Long::sum);
+        }
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+        if(dense != null) {
+            for(int key = 0; key < dense.length; key++) {
+                if(dense[key] > 0) counts.put(label(reader, columns, radix, key), dense[key]);
+            }
+        } else {
+            for(Map.Entry<Long, Long> group : new TreeMap<>(sparse).entrySet()) {
+                counts.put(label(reader, columns, radix, group.getKey()), group.getValue());
+            }
+        }
+        return counts;
+    }
+
+    private static long cardinality(TripLogReader reader, Column column) {
+        switch(column) {
+            case purpose: return reader.getPurposes().size();
+            case mode: return reader.getModes().size();
+            case line: return reader.getLines().size() + 1;
+            case route: return reader.getRoutes().size() + 1;
+            default: return MAX_HOURS;
+        }
+    }
+
+    /**
+     * @return the code of the column, shifted so trips without a line or route get 0
+     */
+    private static int value(TripLogReader reader, Column column, long trip) {
+        switch(column) {
+            case purpose: return reader.getPurpose(trip);
+            case mode: return reader.getMode(trip);
+            case line: return reader.getLine(trip) + 1;
+            case route: return reader.getRoute(trip) + 1;
+            default: return Math.min(MAX_HOURS - 1, Math.max(0, reader.getDepartureTime(trip) / 3600));
+        }
+    }
+
+    private static String label(TripLogReader reader, Column[] columns, long[] radix, long key) {
+        String[] values = new String[columns.length];
+        for(int c = columns.length - 1; c >= 0; c--) {
+            int value = (int) (key % radix[c]);
+            key /= radix[c];
+            switch(columns[c]) {
+                case purpose: values[c] = reader.getPurposes().get(value); break;
+                case mode: values[c] = reader.getModes().get(value); break;
+                case line: values[c] = value == 0 ? "" : reader.getLines().get(value - 1); break;
+                case route: values[c] = value == 0 ? "" : reader.getRoutes().get(value - 1); break;
+                default: values[c] = Integer.toString(value);
+            }
+        }
+        return String.join(", ", values);
+    }
+}
@@ -0,0 +1,163 @@
+package edu.byu.cougarsim.calibration;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a trip log written by {@link TripLogCollector}. The blocks of the file are memory-mapped, so opening a log
+ * only reads its header and the trips are paged in as they are accessed.
+ *
+ * Trips are addressed by their position in the file, from 0 to {@link #size()}. The reader can be shared between
+ * threads.
+ */
+public class TripLogReader implements Closeable {
+
+    private final FileChannel channel;
+    private final long size;
+    private final int blockSize;
+    private final List<String> purposes;
+    private final List<String> modes;
+    private final List<String> lines;
+    private final List<String> routes;
+
+    private final IntBuffer[][] intColumns;
+    private final ByteBuffer[] purposeColumns;
+    private final ByteBuffer[] modeColumns;
+
+    private static final int PERSON = 0;
+    private static final int DEPARTURE = 1;
+    private static final int ARRIVAL = 2;
+    private static final int ROUTE = 3;
+    private static final int LINE = 4;
+
+    public TripLogReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        ByteBuffer fixed = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        while(fixed.hasRemaining() && channel.read(fixed) >= 0) ;
+        fixed.flip();
+        if(fixed.remaining() < 24 || fixed.getInt() != TripLogCollector.MAGIC) {
+            throw new IOException("Not a trip log: " + file);
+        }
+        int version = fixed.getInt();
+        if(version != TripLogCollector.VERSION) {
+            throw new IOException("Unsupported trip log version " + version + ": " + file);
+        }
+        this.size = fixed.getLong();
+        this.blockSize = fixed.getInt();
+        int headerLength = fixed.getInt();
+
+        ByteBuffer nameBytes = ByteBuffer.allocate(headerLength - 24);
+        while(nameBytes.hasRemaining() && channel.read(nameBytes) >= 0) ;
+        DataInputStream names = new DataInputStream(new ByteArrayInputStream(nameBytes.array()));
+        this.purposes = readNames(names);
+        this.modes = readNames(names);
+        this.lines = readNames(names);
+        this.routes = readNames(names);
+
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        this.intColumns = new IntBuffer[5][blocks];
+        this.purposeColumns = new ByteBuffer[blocks];
+        this.modeColumns = new ByteBuffer[blocks];
+        long offset = headerLength;
+        for(int block = 0; block < blocks; block++) {
+            int n = (int) Math.min(blockSize, size - (long) block * blockSize);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    (long) n * TripLogCollector.RECORD_BYTES);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            for(int column = 0; column < 5; column++) {
+                intColumns[column][block] = slice(mapped, column * 4 * n, 4 * n).asIntBuffer();
+            }
+            purposeColumns[block] = slice(mapped, 20 * n, n);
+            modeColumns[block] = slice(mapped, 21 * n, n);
+            offset += (long) n * TripLogCollector.RECORD_BYTES;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position).limit(position + length);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return the number of trips in the log
+     */
+    public long size() {
+        return size;
+    }
+
+    private int intValue(int column, long trip) {
+        return intColumns[column][(int) (trip / blockSize)].get((int) (trip % blockSize));
+    }
+
+    public int getPersonIndex(long trip) {
+        return intValue(PERSON, trip);
+    }
+
+    public int getDepartureTime(long trip) {
+        return intValue(DEPARTURE, trip);
+    }
+
+    public int getArrivalTime(long trip) {
+        return intValue(ARRIVAL, trip);
+    }
+
+    /**
+     * @param trip
+     * @return the route index, see {@link #getRoutes()}, or -1 for trips without transit
+     */
+    public int getRoute(long trip) {
+        return intValue(ROUTE, trip);
+    }
+
+    public int getLine(long trip) {
+        return intValue(LINE, trip);
+    }
+
+    public int getPurpose(long trip) {
+        return purposeColumns[(int) (trip / blockSize)].get((int) (trip % blockSize)) & 0xFF;
+    }
+
+    public int getMode(long trip) {
+        return modeColumns[(int) (trip / blockSize)].get((int) (trip % blockSize)) & 0xFF;
+    }
+
+    public List<String> getPurposes() {
+        return purposes;
+    }
+
+    public List<String> getModes() {
+        return modes;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    public List<String> getRoutes() {
+        return routes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
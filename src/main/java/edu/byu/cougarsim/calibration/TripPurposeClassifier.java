@@ -0,0 +1,280 @@
+package edu.byu.cougarsim.calibration;
+
+import com.google.inject.Inject;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared classifier that turns activity types and leg modes into dense integer codes.
+ *
+ * Activity types are interned once (at construction for the types known to the scoring config, lazily for
+ * anything else) and the trip purpose of every origin-destination type pair is pre-computed into a lookup table.
+ * Classifying a trip is then one map lookup per activity type plus one array read, and the handlers can keep
+ * their counts in primitive arrays indexed by <code>[purpose][mode]</code>.
+ *
+ * Leg modes are coded the same way. Access, egress and transit walk legs are auxiliary: they only become the main
+ * mode of a trip that has no other leg, in which case transit walk counts as <code>pt</code>, as in
+ * {@link org.matsim.core.router.MainModeIdentifierImpl}.
+ *
+ * Lookups are safe to call from several event handling threads; interning a new type or mode is synchronized.
+ */
+public class TripPurposeClassifier {
+
+    private static final Set<String> AUXILIARY_MODES = new HashSet<>(Arrays.asList(TransportMode.transit_walk,
+            TransportMode.access_walk, TransportMode.egress_walk));
+    private static final String STAGE_ACTIVITY_SUFFIX = "interaction";
+
+    private final List<PurposeRule> rules = new ArrayList<>();
+    private final List<String> purposes = new ArrayList<>();
+    private final int defaultPurpose;
+
+    private final Map<String, Integer> activityTypeCodes = new ConcurrentHashMap<>();
+    private final List<String> activityTypes = new ArrayList<>();
+    private volatile PurposeTable purposeTable = new PurposeTable(0);
+
+    private final Map<String, Integer> modeCodes = new ConcurrentHashMap<>();
+    private volatile ModeTable modeTable = new ModeTable(new String[0], new int[0], new int[0]);
+
+    @Inject
+    public TripPurposeClassifier(Config config) {
+        this(ConfigUtils.addOrGetModule(config, CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class),
+                config.planCalcScore().getActivityTypes(), config.planCalcScore().getAllModes());
+    }
+
+    public TripPurposeClassifier(CalibrationConfigGroup calibrationConfig, Collection<String> activityTypes,
+                                 Collection<String> modes) {
+        parseRules(calibrationConfig.getTripPurposeRules());
+        this.defaultPurpose = purposeCode(calibrationConfig.getDefaultTripPurpose());
+
+        for(String type : activityTypes) {
+            getActivityTypeCode(type);
+        }
+        for(String mode : modes) {
+            getModeCode(mode);
+        }
+    }
+
+    /**
+     * Parse rules of the form <code>purpose:origin-destination,origin-destination;purpose:...</code>
+     * @param ruleString
+     */
+    private void parseRules(String ruleString) {
+        for(String purposeRules : ruleString.split(";")) {
+            if(purposeRules.trim().isEmpty()) continue;
+            String[] purposeAndPairs = purposeRules.split(":");
+            if(purposeAndPairs.length != 2) {
+                throw new IllegalArgumentException("Malformed trip purpose rule: " + purposeRules);
+            }
+            int purpose = purposeCode(purposeAndPairs[0].trim());
+            for(String pair : purposeAndPairs[1].split(",")) {
+                String[] originAndDestination = pair.split("-");
+                if(originAndDestination.length != 2) {
+                    throw new IllegalArgumentException("Malformed activity pair in trip purpose rule: " + pair);
+                }
+                rules.add(new PurposeRule(originAndDestination[0].trim(), originAndDestination[1].trim(), purpose));
+            }
+        }
+    }
+
+    private int purposeCode(String purpose) {
+        int code = purposes.indexOf(purpose);
+        if(code < 0) {
+            purposes.add(purpose);
+            code = purposes.size() - 1;
+        }
+        return code;
+    }
+
+    /**
+     * Get the integer code of an activity type, interning the type if it has not been seen before.
+     * @param type
+     * @return
+     */
+    public int getActivityTypeCode(String type) {
+        Integer code = activityTypeCodes.get(type);
+        if(code != null) return code;
+        return internActivityType(type);
+    }
+
+    private synchronized int internActivityType(String type) {
+        Integer code = activityTypeCodes.get(type);
+        if(code != null) return code;
+
+        activityTypes.add(type);
+        int size = activityTypes.size();
+        PurposeTable table = new PurposeTable(size);
+        for(int origin = 0; origin < size; origin++) {
+            table.stage[origin] = activityTypes.get(origin).endsWith(STAGE_ACTIVITY_SUFFIX);
+            for(int destination = 0; destination < size; destination++) {
+                table.codes[origin * size + destination] =
+                        classify(activityTypes.get(origin), activityTypes.get(destination));
+            }
+        }
+        // publish the table before the code, so a reader holding the code always finds a large enough table
+        this.purposeTable = table;
+        activityTypeCodes.put(type, size - 1);
+        return size - 1;
+    }
+
+    private int classify(String origin, String destination) {
+        for(PurposeRule rule : rules) {
+            if(rule.matches(origin, destination)) return rule.purpose;
+        }
+        return defaultPurpose;
+    }
+
+    /**
+     * Look up the trip purpose for a pair of interned activity types.
+     * @param originType
+     * @param destinationType
+     * @return the purpose code
+     */
+    public int getPurpose(int originType, int destinationType) {
+        PurposeTable table = this.purposeTable;
+        return table.codes[originType * table.size + destinationType];
+    }
+
+    /**
+     * @param type an interned activity type
+     * @return true for stage activities such as <code>pt interaction</code>, which do not end a trip
+     */
+    public boolean isStageActivity(int type) {
+        return this.purposeTable.stage[type];
+    }
+
+    public int getPurpose(String originType, String destinationType) {
+        int origin = getActivityTypeCode(originType);
+        int destination = getActivityTypeCode(destinationType);
+        return getPurpose(origin, destination);
+    }
+
+    /**
+     * Get the integer code of a leg mode, interning the mode if it has not been seen before.
+     * @param mode
+     * @return
+     */
+    public int getModeCode(String mode) {
+        Integer code = modeCodes.get(mode);
+        if(code != null) return code;
+        return internMode(mode);
+    }
+
+    private synchronized int internMode(String mode) {
+        Integer code = modeCodes.get(mode);
+        if(code != null) return code;
+
+        // intern the fallback first so the table below is built in one step
+        int fallback = mode.equals(TransportMode.transit_walk) ? getModeCode(TransportMode.pt) : -1;
+
+        ModeTable table = this.modeTable;
+        int newCode = table.names.length;
+        String[] names = Arrays.copyOf(table.names, newCode + 1);
+        int[] ranks = Arrays.copyOf(table.ranks, newCode + 1);
+        int[] fallbacks = Arrays.copyOf(table.fallbacks, newCode + 1);
+        names[newCode] = mode;
+        ranks[newCode] = AUXILIARY_MODES.contains(mode) ? 0 : 1;
+        fallbacks[newCode] = fallback < 0 ? newCode : fallback;
+
+        this.modeTable = new ModeTable(names, ranks, fallbacks);
+        modeCodes.put(mode, newCode);
+        return newCode;
+    }
+
+    /**
+     * Combine the main mode of a trip so far with the mode of its next leg.
+     * @param currentMode the main mode so far, or -1 if the trip has no legs yet
+     * @param legMode
+     * @return the new main mode; pass it through {@link #getTripMode(int)} once the trip is complete
+     */
+    public int getMainMode(int currentMode, int legMode) {
+        if(currentMode < 0) return legMode;
+        int[] ranks = this.modeTable.ranks;
+        return ranks[legMode] > ranks[currentMode] ? legMode : currentMode;
+    }
+
+    /**
+     * @param mainMode the main mode accumulated with {@link #getMainMode(int, int)}
+     * @return the mode the trip is counted under
+     */
+    public int getTripMode(int mainMode) {
+        return this.modeTable.fallbacks[mainMode];
+    }
+
+    public int getPurposeCode(String purpose) {
+        return purposes.indexOf(purpose);
+    }
+
+    public String getPurposeName(int purpose) {
+        return purposes.get(purpose);
+    }
+
+    public String getModeName(int mode) {
+        return modeTable.names[mode];
+    }
+
+    public int getNumberOfPurposes() {
+        return purposes.size();
+    }
+
+    public int getNumberOfModes() {
+        return modeTable.names.length;
+    }
+
+    public List<String> getPurposes() {
+        return Collections.unmodifiableList(purposes);
+    }
+
+    public List<String> getModes() {
+        return Collections.unmodifiableList(Arrays.asList(modeTable.names));
+    }
+
+    private static final class PurposeTable {
+        final int size;
+        final int[] codes;
+        final boolean[] stage;
+
+        PurposeTable(int size) {
+            this.size = size;
+            this.codes = new int[size * size];
+            this.stage = new boolean[size];
+        }
+    }
+
+    private static final class ModeTable {
+        final String[] names;
+        final int[] ranks;
+        final int[] fallbacks;
+
+        ModeTable(String[] names, int[] ranks, int[] fallbacks) {
+            this.names = names;
+            this.ranks = ranks;
+            this.fallbacks = fallbacks;
+        }
+    }
+
+    private static final class PurposeRule {
+        final String origin;
+        final String destination;
+        final int purpose;
+
+        PurposeRule(String origin, String destination, int purpose) {
+            this.origin = origin;
+            this.destination = destination;
+            this.purpose = purpose;
+        }
+
+        boolean matches(String originType, String destinationType) {
+            return matchesType(origin, originType) && matchesType(destination, destinationType);
+        }
+
+        private static boolean matchesType(String pattern, String type) {
+            if(pattern.equals("*")) return true;
+            if(pattern.endsWith("*")) return type.startsWith(pattern.substring(0, pattern.length() - 1));
+            return pattern.equals(type);
+        }
+    }
+}
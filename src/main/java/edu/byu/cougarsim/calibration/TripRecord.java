@@ -0,0 +1,97 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+
+/**
+ * A completed trip as assembled by the {@link TripTracker}. The tracker re-uses one instance for every trip it
+ * emits, so collectors must copy whatever they need and never keep a reference to the record.
+ */
+public final class TripRecord {
+
+    Id<Person> personId;
+    int personIndex;
+    int purpose;
+    int mode;
+    double departureTime;
+    double arrivalTime;
+    double distance;
+    Id<Link> originLink;
+    Id<Link> destinationLink;
+    int route = -1;
+    int line = -1;
+
+    public Id<Person> getPersonId() {
+        return personId;
+    }
+
+    /**
+     * @return the dense person index of the tracker's {@link OpenTripStore}, unique across partitions
+     */
+    public int getPersonIndex() {
+        return personIndex;
+    }
+
+    /**
+     * @return the trip purpose code of the {@link TripPurposeClassifier}
+     */
+    public int getPurpose() {
+        return purpose;
+    }
+
+    /**
+     * @return the main mode code of the {@link TripPurposeClassifier}
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the link of the activity the trip started from
+     */
+    public Id<Link> getOriginLink() {
+        return originLink;
+    }
+
+    /**
+     * @return the link of the activity the trip ended at
+     */
+    public Id<Link> getDestinationLink() {
+        return destinationLink;
+    }
+
+    public double getDepartureTime() {
+        return departureTime;
+    }
+
+    public double getArrivalTime() {
+        return arrivalTime;
+    }
+
+    /**
+     * @return the index of the first transit route of the trip in the {@link TransitIndex}, or -1
+     */
+    public int getRoute() {
+        return route;
+    }
+
+    /**
+     * @return the index of the transit line of {@link #getRoute()}, or -1
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return the distance of the trip in meters, over the network for vehicle legs and as teleported otherwise;
+     * 0 if distances are not tracked
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    public double getTravelTime() {
+        return arrivalTime - departureTime;
+    }
+}
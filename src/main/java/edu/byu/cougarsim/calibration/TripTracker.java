@@ -0,0 +1,209 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.events.ActivityEndEvent;
+import org.matsim.api.core.v01.events.ActivityStartEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.handler.ActivityEndEventHandler;
+import org.matsim.api.core.v01.events.handler.ActivityStartEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonDepartureEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonEntersVehicleEventHandler;
+import org.matsim.api.core.v01.events.handler.PersonLeavesVehicleEventHandler;
+import org.matsim.core.api.experimental.events.TeleportationArrivalEvent;
+import org.matsim.core.api.experimental.events.TransitDriverStartsEvent;
+import org.matsim.core.api.experimental.events.handler.TeleportationArrivalEventHandler;
+import org.matsim.core.api.experimental.events.handler.TransitDriverStartsEventHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single event handler that assembles trips from the activity and departure events and hands every completed
+ * trip to a list of {@link TripCollector}s. A trip runs from the end of one real activity to the start of the
+ * next one; stage activities such as <code>pt interaction</code> are skipped, so a transit trip with its walk
+ * legs is one trip with main mode <code>pt</code>.
+ *
+ * The open trips live in an {@link OpenTripStore}, so handling an event costs one index lookup and a few
+ * array writes and allocates nothing.
+ *
+ * With a {@link TransitIndex} the tracker also follows the route every transit vehicle serves and records the
+ * first transit route a trip boards, so collectors can tell the line and route of transit trips.
+ *
+ * With a {@link VehicleOdometer} the tracker also measures the distance of every trip: the distance the vehicles
+ * drove while the person was in them plus the distance of teleported legs. The odometer counts the links from the
+ * <code>LinkEnterEvent</code>s, the most frequent events of a run, so only the {@link OdometerTripTracker} subclass
+ * subscribes to them.
+ */
+public class TripTracker implements ActivityEndEventHandler, PersonDepartureEventHandler, ActivityStartEventHandler,
+        PersonEntersVehicleEventHandler, TransitDriverStartsEventHandler, PersonLeavesVehicleEventHandler,
+        TeleportationArrivalEventHandler {
+
+    private final TripPurposeClassifier classifier;
+    private final List<TripCollector> collectors = new ArrayList<>();
+    private final OpenTripStore openTrips;
+    private final TripRecord record = new TripRecord();
+
+    private final TransitIndex transitIndex;
+    private final int[] vehicleRoutes;
+    private final VehicleOdometer odometer;
+
+    public TripTracker(TripPurposeClassifier classifier, OpenTripStore openTrips) {
+        this(classifier, openTrips, null);
+    }
+
+    /**
+     * @param classifier
+     * @param openTrips
+     * @param transitIndex the transit index to resolve boarded routes with, or null to not record routes
+     */
+    public TripTracker(TripPurposeClassifier classifier, OpenTripStore openTrips, TransitIndex transitIndex) {
+        this(classifier, openTrips, transitIndex, null);
+    }
+
+    /**
+     * @param classifier
+     * @param openTrips
+     * @param transitIndex the transit index to resolve boarded routes with, or null to not record routes
+     * @param odometer the odometer of this tracker's partition, fed with the link events by a subclass such as
+     * {@link OdometerTripTracker}, or null to not measure distances
+     */
+    public TripTracker(TripPurposeClassifier classifier, OpenTripStore openTrips, TransitIndex transitIndex,
+                       VehicleOdometer odometer) {
+        this.classifier = classifier;
+        this.odometer = odometer;
+        this.openTrips = openTrips;
+        this.transitIndex = transitIndex;
+        this.vehicleRoutes = new int[transitIndex == null ? 0 : transitIndex.getNumberOfVehicles()];
+        resetVehicles();
+    }
+
+    VehicleOdometer getOdometer() {
+        return odometer;
+    }
+
+    public void addCollector(TripCollector collector) {
+        this.collectors.add(collector);
+    }
+
+    public OpenTripStore getOpenTrips() {
+        return openTrips;
+    }
+
+    /**
+     * When the person ends a real activity, open a new trip.
+     * @param event
+     */
+    @Override
+    public void handleEvent(ActivityEndEvent event) {
+        int type = classifier.getActivityTypeCode(event.getActType());
+        if(classifier.isStageActivity(type)) return;
+
+        int slot = openTrips.getOrCreateSlot(event.getPersonId());
+        if(slot < 0) return;
+        openTrips.open(slot, type, event.getLinkId(), event.getTime());
+    }
+
+    /**
+     * Every leg of the trip may change its main mode.
+     * @param event
+     */
+    @Override
+    public void handleEvent(PersonDepartureEvent event) {
+        int slot = openTrips.getSlot(event.getPersonId());
+        if(slot < 0 || !openTrips.isOpen(slot)) return;
+        openTrips.setMode(slot, classifier.getMainMode(openTrips.getMode(slot), classifier.getModeCode(event.getLegMode())));
+    }
+
+    @Override
+    public void handleEvent(TransitDriverStartsEvent event) {
+        if(transitIndex == null) return;
+        int vehicle = transitIndex.getVehicleIndex(event.getVehicleId());
+        if(vehicle >= 0) {
+            vehicleRoutes[vehicle] = transitIndex.getRouteIndex(event.getTransitLineId(), event.getTransitRouteId());
+        }
+    }
+
+    /**
+     * Read the odometer of the vehicle, and remember the route of the first transit vehicle the trip boards.
+     * Transit drivers have no open trip.
+     * @param event
+     */
+    @Override
+    public void handleEvent(PersonEntersVehicleEvent event) {
+        int slot = openTrips.getSlot(event.getPersonId());
+        if(slot < 0 || !openTrips.isOpen(slot)) return;
+        if(odometer != null) {
+            openTrips.setBoardedOdometer(slot, odometer.getDistance(odometer.addVehicle(event.getVehicleId())));
+        }
+        if(transitIndex == null || openTrips.getRoute(slot) >= 0) return;
+        int vehicle = transitIndex.getVehicleIndex(event.getVehicleId());
+        if(vehicle >= 0) openTrips.setRoute(slot, vehicleRoutes[vehicle]);
+    }
+
+    /**
+     * Add the distance the vehicle drove since the person entered it.
+     * @param event
+     */
+    @Override
+    public void handleEvent(PersonLeavesVehicleEvent event) {
+        if(odometer == null) return;
+        int slot = openTrips.getSlot(event.getPersonId());
+        if(slot < 0 || !openTrips.isOpen(slot)) return;
+        double reading = odometer.getDistance(odometer.addVehicle(event.getVehicleId()));
+        openTrips.addDistance(slot, reading - openTrips.getBoardedOdometer(slot));
+    }
+
+    @Override
+    public void handleEvent(TeleportationArrivalEvent event) {
+        if(odometer == null) return;
+        int slot = openTrips.getSlot(event.getPersonId());
+        if(slot < 0 || !openTrips.isOpen(slot)) return;
+        openTrips.addDistance(slot, event.getDistance());
+    }
+
+    /**
+     * When the person starts the next real activity, close the trip and pass it to the collectors.
+     * @param event
+     */
+    @Override
+    public void handleEvent(ActivityStartEvent event) {
+        int type = classifier.getActivityTypeCode(event.getActType());
+        if(classifier.isStageActivity(type)) return;
+
+        int slot = openTrips.getSlot(event.getPersonId());
+        if(slot < 0 || !openTrips.isOpen(slot) || openTrips.getMode(slot) < 0) return;
+        openTrips.close(slot);
+
+        record.personId = event.getPersonId();
+        record.personIndex = openTrips.getPersonIndex(slot);
+        record.purpose = classifier.getPurpose(openTrips.getOriginType(slot), type);
+        record.mode = classifier.getTripMode(openTrips.getMode(slot));
+        record.originLink = openTrips.getOriginLink(slot);
+        record.destinationLink = event.getLinkId();
+        record.departureTime = openTrips.getDepartureTime(slot);
+        record.arrivalTime = event.getTime();
+        record.distance = openTrips.getDistance(slot);
+        record.route = openTrips.getRoute(slot);
+        record.line = record.route >= 0 ? transitIndex.getRouteLine(record.route) : -1;
+        for(TripCollector collector : collectors) {
+            collector.handleTrip(record);
+        }
+    }
+
+    private void resetVehicles() {
+        for(int vehicle = 0; vehicle < vehicleRoutes.length; vehicle++) {
+            vehicleRoutes[vehicle] = transitIndex.getScheduledRoute(vehicle);
+        }
+    }
+
+    @Override
+    public void reset(int iteration) {
+        openTrips.clear();
+        resetVehicles();
+        if(odometer != null) odometer.reset();
+        for(TripCollector collector : collectors) {
+            collector.reset(iteration);
+        }
+    }
+}
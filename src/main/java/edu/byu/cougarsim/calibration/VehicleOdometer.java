@@ -0,0 +1,86 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+
+/**
+ * Distance driven by vehicles, from the <code>LinkEnterEvent</code>s: a vehicle entering a link adds the link's
+ * length. The distance a person travels in a vehicle is the difference of the vehicle's odometer between entering
+ * and leaving it.
+ *
+ * The link lengths are a double array indexed by a dense link index, built once from the network and shared by
+ * the odometers of all partitions. An odometer only follows the vehicles added to it, those that persons of its
+ * partition entered, so other vehicles cost one failed lookup. Vehicles stay indexed across iterations, so once
+ * every vehicle has been seen counting a link allocates nothing.
+ */
+public class VehicleOdometer {
+
+    private final IdIndex<Link> links;
+    private final double[] linkLengths;
+    private final IdIndex<Vehicle> vehicles = new IdIndex<>();
+    private double[] distances = new double[16];
+
+    public VehicleOdometer(Network network) {
+        this.links = new IdIndex<>(network.getLinks().keySet(), network.getLinks().size());
+        this.linkLengths = new double[links.size()];
+        for(Link link : network.getLinks().values()) {
+            linkLengths[links.get(link.getId())] = link.getLength();
+        }
+    }
+
+    private VehicleOdometer(IdIndex<Link> links, double[] linkLengths) {
+        this.links = links;
+        this.linkLengths = linkLengths;
+    }
+
+    /**
+     * @return an odometer without vehicles that shares the link lengths of this one
+     */
+    public VehicleOdometer newShard() {
+        return new VehicleOdometer(links, linkLengths);
+    }
+
+    /**
+     * Start following a vehicle, if it is not followed yet.
+     * @param vehicleId
+     * @return the index of the vehicle
+     */
+    public int addVehicle(Id<Vehicle> vehicleId) {
+        int vehicle = vehicles.add(vehicleId);
+        if(vehicle >= distances.length) {
+            distances = Arrays.copyOf(distances, distances.length + (distances.length >> 1));
+        }
+        return vehicle;
+    }
+
+    /**
+     * Add the length of a link to the odometer of a followed vehicle.
+     * @param vehicleId
+     * @param linkId
+     */
+    public void enterLink(Id<Vehicle> vehicleId, Id<Link> linkId) {
+        int vehicle = vehicles.get(vehicleId);
+        if(vehicle < 0) return;
+        int link = links.get(linkId);
+        if(link >= 0) distances[vehicle] += linkLengths[link];
+    }
+
+    /**
+     * @param vehicle
+     * @return the distance the vehicle drove since the last {@link #reset()}, in meters
+     */
+    public double getDistance(int vehicle) {
+        return distances[vehicle];
+    }
+
+    /**
+     * Set all odometers to zero, keeping the vehicles.
+     */
+    public void reset() {
+        Arrays.fill(distances, 0.0);
+    }
+}
@@ -0,0 +1,105 @@
+package edu.byu.cougarsim.calibration;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * The zone of every network link, looked up once at startup and kept in an int array indexed by link, so
+ * collectors can assign trips to zones without geometry.
+ *
+ * Zones come from a square grid (<code>grid:size</code>, by the coordinate of the link) or from a CSV file with a
+ * <code>link,zone</code> row per link, e.g. the links of the survey districts precomputed in a GIS. Links without a
+ * zone get -1.
+ */
+public class ZoneMap {
+
+    private static final String GRID_PREFIX = "grid:";
+
+    private final IdIndex<Link> links;
+    private final int[] linkZones;
+    private final List<String> zones = new ArrayList<>();
+    private final Map<String, Integer> zoneCodes = new HashMap<>();
+
+    private ZoneMap(Network network) {
+        this.links = new IdIndex<>(network.getLinks().keySet(), network.getLinks().size());
+        this.linkZones = new int[links.size()];
+        Arrays.fill(linkZones, -1);
+    }
+
+    /**
+     * @param definition <code>grid:size</code> or the name of a zone file
+     * @param network
+     * @param context the URL file names are relative to, usually the config context
+     * @return
+     */
+    public static ZoneMap create(String definition, Network network, URL context) {
+        ZoneMap map = new ZoneMap(network);
+        if(definition.startsWith(GRID_PREFIX)) {
+            map.assignGrid(network, Double.parseDouble(definition.substring(GRID_PREFIX.length())));
+        } else {
+            map.readZones(ConfigGroup.getInputFileURL(context, definition));
+        }
+        return map;
+    }
+
+    private void assignGrid(Network network, double size) {
+        for(Link link : network.getLinks().values()) {
+            Coord coord = link.getCoord();
+            long column = (long) Math.floor(coord.getX() / size);
+            long row = (long) Math.floor(coord.getY() / size);
+            linkZones[links.get(link.getId())] = zoneCode(column + "_" + row);
+        }
+    }
+
+    private void readZones(URL url) {
+        try (BufferedReader reader = IOUtils.getBufferedReader(url)) {
+            String line = reader.readLine();
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if(fields.length < 2) continue;
+                int link = links.get(Id.createLinkId(fields[0].trim()));
+                if(link >= 0) linkZones[link] = zoneCode(fields[1].trim());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read zones from " + url, e);
+        }
+    }
+
+    private int zoneCode(String zone) {
+        Integer code = zoneCodes.get(zone);
+        if(code == null) {
+            code = zones.size();
+            zones.add(zone);
+            zoneCodes.put(zone, code);
+        }
+        return code;
+    }
+
+    /**
+     * @param link
+     * @return the zone code of the link, or -1
+     */
+    public int getZone(Id<Link> link) {
+        if(link == null) return -1;
+        int index = links.get(link);
+        return index < 0 ? -1 : linkZones[index];
+    }
+
+    public String getZoneName(int zone) {
+        return zones.get(zone);
+    }
+
+    public int getNumberOfZones() {
+        return zones.size();
+    }
+}
@@ -0,0 +1,306 @@
+package org.matsim.run;
+
+import edu.byu.cougarsim.calibration.CalibrationConfigGroup;
+import edu.byu.cougarsim.calibration.CalibrationControlerListener;
+import edu.byu.cougarsim.calibration.ConstantSearch;
+import edu.byu.cougarsim.calibration.ModeShareTargets;
+import org.apache.log4j.Logger;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.ConfigWriter;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+import org.matsim.core.gbl.Gbl;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Calibrates the mode constants with batches of scenario variants that are simulated side by side, each by
+ * {@link RunMatsim} in its own JVM.
+ *
+ * Every batch is proposed by a {@link ConstantSearch} from the target shares of one purpose in the calibration group
+ * (<code>modeShareTargets</code>). A variant gets its own directory with a config holding its constants and its run
+ * output; the listener of the variant does not update the constants itself. The runs share a budget of cores and
+ * heap: as many run at once as the budget allows, each with an equal part of it. When a batch is done the shares of
+ * the purpose and the transit boardings of every run are read from its output and appended to
+ * <code>orchestrator_runs.csv</code>, and the search proposes the next batch.
+ *
+ * Usage: <code>CalibrationOrchestrator config.xml outputDirectory variants batches [cores] [heapMB] [purpose]</code>.
+ * Cores default to the available processors, heap to 4 GB per core and the purpose to hbw.
+ */
+public class CalibrationOrchestrator {
+	private static final Logger log = Logger.getLogger(CalibrationOrchestrator.class);
+
+	private static final String FILENAME_RUNS = "orchestrator_runs.csv";
+	private static final int MIN_HEAP_MB = 1024;
+	private static final double PERTURBATION = 0.25;
+
+	private final String configFile;
+	private final File outputDirectory;
+	private final String purpose;
+	private final int cores;
+	private final int heapMB;
+	private final List<String> modes;
+	private final Set<Process> running = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Gbl.assertIf(args.length >= 4);
+		int cores = args.length >= 5 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+		int heapMB = args.length >= 6 ? Integer.parseInt(args[5]) : 4096 * cores;
+		String purpose = args.length >= 7 ? args[6] : "hbw";
+		new CalibrationOrchestrator(args[0], new File(args[1]), purpose, cores, heapMB)
+				.run(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+	}
+
+	CalibrationOrchestrator(String configFile, File outputDirectory, String purpose, int cores, int heapMB) {
+		this.configFile = configFile;
+		this.outputDirectory = outputDirectory;
+		this.purpose = purpose;
+		this.cores = cores;
+		this.heapMB = heapMB;
+		Config config = ConfigUtils.loadConfig(configFile, new CalibrationConfigGroup());
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(config,
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		this.modes = new ArrayList<>(ModeShareTargets.parse(calibrationConfig.getModeShareTargets())
+				.getShares(purpose).keySet());
+		if(modes.isEmpty()) {
+			throw new IllegalArgumentException("The calibration group has no mode share targets for " + purpose);
+		}
+	}
+
+	/**
+	 * @param variants the number of runs per batch
+	 * @param batches
+	 * @return the constants of the batch centre closest to the targets, in the order of the target modes
+	 */
+	double[] run(int variants, int batches) throws IOException, InterruptedException {
+		outputDirectory.mkdirs();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			// do not leave simulations running when the orchestrator is stopped
+			for(Process process : running) process.destroyForcibly();
+		}));
+
+		Config config = ConfigUtils.loadConfig(configFile, new CalibrationConfigGroup());
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(config,
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		Map<String, Double> targetShares = ModeShareTargets.parse(calibrationConfig.getModeShareTargets())
+				.getShares(purpose);
+		double[] targets = new double[modes.size()];
+		double[] start = new double[modes.size()];
+		for(int mode = 0; mode < modes.size(); mode++) {
+			targets[mode] = targetShares.get(modes.get(mode));
+			start[mode] = config.planCalcScore().getOrCreateModeParams(modes.get(mode)).getConstant();
+		}
+		ConstantSearch search = new ConstantSearch(targets, start, config.planCalcScore().getBrainExpBeta(),
+				PERTURBATION, calibrationConfig.getMaxConstantStep());
+
+		for(int batch = 0; batch < batches; batch++) {
+			double[][] constants = search.proposeBatch(variants);
+			double[][] shares = runBatch(batch, constants);
+			if(shares[0] == null) {
+				log.error("The centre run of batch " + batch + " failed, stopping; see its run.log");
+				break;
+			}
+			double residual = search.update(constants, shares);
+			log.info("Batch " + batch + ": largest share difference at the centre " + residual);
+		}
+
+		double[] best = search.getBestCenter();
+		if(best != null) {
+			StringBuilder message = new StringBuilder("Best constants (largest share difference ")
+					.append(search.getBestResidual()).append("):");
+			for(int mode = 0; mode < modes.size(); mode++) {
+				message.append(" ").append(modes.get(mode)).append("=").append(best[mode]);
+			}
+			log.info(message);
+		}
+		return best;
+	}
+
+	/**
+	 * Run the variants of a batch within the core and heap budget and wait for all of them.
+	 * @return the shares of every variant in the order of the target modes, null for failed runs
+	 */
+	private double[][] runBatch(int batch, double[][] constants) throws IOException, InterruptedException {
+		int parallel = Math.max(1, Math.min(constants.length, Math.min(cores, heapMB / MIN_HEAP_MB)));
+		int threads = Math.max(1, cores / parallel);
+		int heap = Math.max(MIN_HEAP_MB, heapMB / parallel);
+		log.info("Batch " + batch + ": " + constants.length + " variants, " + parallel + " at once with " + threads +
+				" cores and " + heap + " MB each");
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallel);
+		List<Future<double[]>> results = new ArrayList<>();
+		for(int variant = 0; variant < constants.length; variant++) {
+			File directory = new File(outputDirectory, "batch" + batch + "/variant" + variant);
+			File variantConfig = writeVariantConfig(directory, constants[variant], threads);
+			results.add(executor.submit(() -> runVariant(directory, variantConfig, heap)));
+		}
+		executor.shutdown();
+
+		double[][] shares = new double[constants.length][];
+		long[] boardings = new long[constants.length];
+		for(int variant = 0; variant < constants.length; variant++) {
+			try {
+				shares[variant] = results.get(variant).get();
+				boardings[variant] = readBoardings(new File(outputDirectory,
+						"batch" + batch + "/variant" + variant + "/output"));
+			} catch (ExecutionException e) {
+				log.warn("Variant " + variant + " of batch " + batch + " failed: " + e.getCause().getMessage());
+			}
+		}
+		writeRuns(batch, constants, shares, boardings);
+		return shares;
+	}
+
+	/**
+	 * Write the config of a variant: the base config with the constants of the variant, its own output directory,
+	 * checkpoint directory and thread count, input files resolved against the base config, and no constant updates
+	 * during the run. The variant runs in its own directory, so the directories of the calibration group, which are
+	 * relative to the working directory, are made absolute.
+	 */
+	private File writeVariantConfig(File directory, double[] constants, int threads) {
+		directory.mkdirs();
+		Config config = ConfigUtils.loadConfig(configFile, new CalibrationConfigGroup());
+		URL context = config.getContext();
+		config.network().setInputFile(resolve(context, config.network().getInputFile()));
+		config.network().setChangeEventsInputFile(resolve(context, config.network().getChangeEventsInputFile()));
+		config.network().setLaneDefinitionsFile(resolve(context, config.network().getLaneDefinitionsFile()));
+		config.plans().setInputFile(resolve(context, config.plans().getInputFile()));
+		config.plans().setInputPersonAttributeFile(resolve(context, config.plans().getInputPersonAttributeFile()));
+		config.facilities().setInputFile(resolve(context, config.facilities().getInputFile()));
+		config.facilities().setInputFacilitiesAttributesFile(resolve(context,
+				config.facilities().getInputFacilitiesAttributesFile()));
+		config.households().setInputFile(resolve(context, config.households().getInputFile()));
+		config.households().setInputHouseholdAttributesFile(resolve(context,
+				config.households().getInputHouseholdAttributesFile()));
+		config.transit().setTransitScheduleFile(resolve(context, config.transit().getTransitScheduleFile()));
+		config.transit().setVehiclesFile(resolve(context, config.transit().getVehiclesFile()));
+		config.transit().setTransitLinesAttributesFile(resolve(context,
+				config.transit().getTransitLinesAttributesFile()));
+		config.transit().setTransitStopsAttributesFile(resolve(context,
+				config.transit().getTransitStopsAttributesFile()));
+		config.vehicles().setVehiclesFile(resolve(context, config.vehicles().getVehiclesFile()));
+		config.counts().setCountsFileName(resolve(context, config.counts().getCountsFileName()));
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(config,
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		calibrationConfig.setCountsFile(resolve(context, calibrationConfig.getCountsFile()));
+		if(!calibrationConfig.getOdZones().startsWith("grid:")) {
+			calibrationConfig.setOdZones(resolve(context, calibrationConfig.getOdZones()));
+		}
+		if(!calibrationConfig.getScenarioSnapshotDirectory().isEmpty()) {
+			calibrationConfig.setScenarioSnapshotDirectory(
+					new File(calibrationConfig.getScenarioSnapshotDirectory()).getAbsolutePath());
+		}
+		if(!calibrationConfig.getCheckpointDirectory().isEmpty()) {
+			// the variants run side by side, every one needs its own checkpoints
+			String variantPath = outputDirectory.toPath().relativize(directory.toPath()).toString();
+			calibrationConfig.setCheckpointDirectory(
+					new File(calibrationConfig.getCheckpointDirectory(), variantPath).getAbsolutePath());
+		}
+		calibrationConfig.setConstantUpdateInterval(0);
+
+		for(int mode = 0; mode < modes.size(); mode++) {
+			for(PlanCalcScoreConfigGroup.ScoringParameterSet parameterSet :
+					config.planCalcScore().getScoringParametersPerSubpopulation().values()) {
+				parameterSet.getOrCreateModeParams(modes.get(mode)).setConstant(constants[mode]);
+			}
+		}
+		config.controler().setOutputDirectory(new File(directory, "output").getAbsolutePath());
+		config.global().setNumberOfThreads(threads);
+		config.qsim().setNumberOfThreads(threads);
+
+		File file = new File(directory, "config.xml");
+		new ConfigWriter(config).write(file.getPath());
+		return file;
+	}
+
+	private static String resolve(URL context, String file) {
+		if(file == null || file.isEmpty()) return file;
+		return ConfigGroup.getInputFileURL(context, file).toString();
+	}
+
+	/**
+	 * Simulate one variant in a new JVM with the class path of this one and read its shares.
+	 */
+	private double[] runVariant(File directory, File variantConfig, int heap) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-Xmx" + heap + "m", "-cp",
+				System.getProperty("java.class.path"), RunMatsim.class.getName(), variantConfig.getAbsolutePath())
+				.directory(directory)
+				.redirectErrorStream(true)
+				.redirectOutput(new File(directory, "run.log"));
+		Process process = builder.start();
+		running.add(process);
+		try {
+			int exitCode = process.waitFor();
+			if(exitCode != 0) {
+				throw new IOException("RunMatsim exited with " + exitCode + " in " + directory);
+			}
+		} finally {
+			running.remove(process);
+		}
+		return readShares(new File(directory, "output"));
+	}
+
+	/**
+	 * @return the shares of the target modes among all trips of the purpose in the last iteration of a run
+	 */
+	private double[] readShares(File runOutput) throws IOException {
+		File file = new File(runOutput, CalibrationControlerListener.FILENAME_PURPOSEMODES);
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			List<String> header = Arrays.asList(reader.readLine().split(",\\s*"));
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] fields = line.split(",\\s*");
+				if(!fields[0].equals(purpose)) continue;
+				double total = 0;
+				for(int column = 1; column < fields.length; column++) {
+					total += Double.parseDouble(fields[column]);
+				}
+				double[] shares = new double[modes.size()];
+				for(int mode = 0; mode < modes.size(); mode++) {
+					int column = header.indexOf(modes.get(mode));
+					shares[mode] = column < 0 || total == 0 ? 0.0 : Double.parseDouble(fields[column]) / total;
+				}
+				return shares;
+			}
+		}
+		throw new IOException("No trips of purpose " + purpose + " in " + file);
+	}
+
+	private static long readBoardings(File runOutput) throws IOException {
+		long boardings = 0;
+		File file = new File(runOutput, CalibrationControlerListener.FILENAME_BOARDINGS);
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line = reader.readLine();
+			while((line = reader.readLine()) != null) {
+				boardings += Long.parseLong(line.substring(line.lastIndexOf(',') + 1).trim());
+			}
+		}
+		return boardings;
+	}
+
+	private void writeRuns(int batch, double[][] constants, double[][] shares, long[] boardings) throws IOException {
+		File file = new File(outputDirectory, FILENAME_RUNS);
+		boolean header = !file.exists();
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+			if(header) {
+				writer.write("Batch, Variant");
+				for(String mode : modes) writer.write(", Constant_" + mode);
+				for(String mode : modes) writer.write(", Share_" + mode);
+				writer.write(", Boardings\n");
+			}
+			for(int variant = 0; variant < constants.length; variant++) {
+				writer.write(batch + ", " + variant);
+				for(double constant : constants[variant]) writer.write(", " + constant);
+				for(int mode = 0; mode < modes.size(); mode++) {
+					writer.write(", " + (shares[variant] == null ? "NA" : Double.toString(shares[variant][mode])));
+				}
+				writer.write(", " + (shares[variant] == null ? "NA" : Long.toString(boardings[variant])) + "\n");
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package org.matsim.run;
+
+import edu.byu.cougarsim.calibration.*;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsReaderXMLv1;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.gbl.Gbl;
+import org.matsim.core.scenario.ScenarioUtils;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Computes the event-based calibration metrics of an earlier run from its events file, without simulating again.
+ *
+ * The events are streamed through the same handlers as in {@link RunMatsim}, so the travel time bins, the trips by
+ * purpose and mode and the transit boardings files are the same as those of the run. The population is not loaded;
+ * open trips are kept in dynamic storage. Gzipped files are decompressed on a separate thread while the events are
+ * parsed, and memory use does not depend on the size of the file.
+ *
+ * Usage: <code>RunEventsReplay config.xml output_events.xml.gz [outputDirectory]</code>. The config provides the
+ * network, transit schedule and vehicles and the calibration group, so a changed trip purpose definition can be
+ * tried on archived events.
+ */
+public class RunEventsReplay {
+	private static final Logger log = Logger.getLogger(RunEventsReplay.class);
+
+	private static final int PIPE_BUFFER_SIZE = 1 << 20;
+
+	public static void main(String[] args) throws IOException {
+		Gbl.assertIf(args.length >= 2);
+		String outputDirectory = args.length >= 3 ? args[2] : new File(args[1]).getAbsoluteFile().getParent();
+		run(ConfigUtils.loadConfig(args[0]), args[1], outputDirectory);
+	}
+
+	static void run(Config config, String eventsFile, String outputDirectory) throws IOException {
+		// the handlers only need the transit schedule, the persons are taken from the events
+		config.plans().setInputFile(null);
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(config,
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		calibrationConfig.setOpenTripStorage(CalibrationConfigGroup.OpenTripStorage.dynamic);
+		Scenario scenario = ScenarioUtils.loadScenario(config);
+
+		TripPurposeClassifier classifier = new TripPurposeClassifier(config);
+		TravelTimeCollector travelTimeCollector = new TravelTimeCollector(classifier,
+				CountBin.parse(calibrationConfig.getTravelTimeBins()));
+		PurposeModeCollector purposeModeCollector = new PurposeModeCollector(classifier);
+		CalibrationEventHandlers handlers = new CalibrationEventHandlers(scenario, classifier,
+				calibrationConfig.getEventHandlerPartitions());
+		handlers.addCollector(travelTimeCollector);
+		handlers.addCollector(purposeModeCollector);
+
+		EventsManager events = EventsUtils.createEventsManager(config);
+		handlers.addTo(events);
+
+		long start = System.currentTimeMillis();
+		events.resetHandlers(0);
+		events.initProcessing();
+		try (InputStream stream = openPipelined(eventsFile)) {
+			new EventsReaderXMLv1(events).parse(stream);
+		}
+		events.finishProcessing();
+		handlers.merge(0);
+		log.info("Replayed " + eventsFile + " in " + (System.currentTimeMillis() - start) / 1000 + " s");
+
+		TransitBoardingsEventHandler boardings = handlers.getBoardings();
+		log.info("Total transit boardings: " + boardings.getTotalBoardings());
+		new File(outputDirectory).mkdirs();
+		boardings.writeLineBoardings(new File(outputDirectory, CalibrationControlerListener.FILENAME_BOARDINGS));
+		boardings.writeRouteBoardings(new File(outputDirectory, CalibrationControlerListener.FILENAME_ROUTE_BOARDINGS));
+		boardings.writeDepartureBoardings(new File(outputDirectory, CalibrationControlerListener.FILENAME_DEPARTURE_BOARDINGS));
+		boardings.writeStopRidership(new File(outputDirectory, CalibrationControlerListener.FILENAME_STOP_RIDERSHIP));
+		travelTimeCollector.writeTimeBins(new File(outputDirectory, CalibrationControlerListener.FILENAME_TIMEBINS));
+		purposeModeCollector.writePurposeModeCounts(new File(outputDirectory, CalibrationControlerListener.FILENAME_PURPOSEMODES));
+	}
+
+	/**
+	 * Open an events file. A gzipped file is decompressed by a separate thread into a bounded pipe, so inflating
+	 * and parsing run at the same time.
+	 * @param fileName
+	 * @return a stream of the uncompressed file
+	 */
+	static InputStream openPipelined(String fileName) throws IOException {
+		if(!fileName.endsWith(".gz")) {
+			return new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+		}
+		final InputStream compressed = new GZIPInputStream(new FileInputStream(fileName), 1 << 16);
+		final PipedOutputStream pipe = new PipedOutputStream();
+		final PipedInputStream uncompressed = new PipedInputStream(pipe, PIPE_BUFFER_SIZE);
+
+		Thread inflater = new Thread(() -> {
+			byte[] buffer = new byte[1 << 16];
+			try (InputStream in = compressed; OutputStream out = pipe) {
+				int read;
+				while((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+			} catch (IOException e) {
+				// the parser sees a truncated file and fails; log the cause
+				log.error("Could not decompress " + fileName, e);
+			}
+		}, "events-inflater");
+		inflater.setDaemon(true);
+		inflater.start();
+		return new BufferedInputStream(uncompressed, 1 << 16);
+	}
+
+}
@@ -20,10 +20,13 @@ package org.matsim.run;
 
 import ch.sbb.matsim.mobsim.qsim.SBBQSimModule;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorModule;
+import edu.byu.cougarsim.calibration.CalibrationCheckpoint;
+import edu.byu.cougarsim.calibration.CalibrationConfigGroup;
 import edu.byu.cougarsim.calibration.CalibrationControlerListener;
-import edu.byu.cougarsim.calibration.ModePurposeEventHandler;
-import edu.byu.cougarsim.calibration.TransitBoardingsEventHandler;
-import edu.byu.cougarsim.calibration.TravelTimeEventHandler;
+import edu.byu.cougarsim.calibration.CalibrationScoringFunctionFactory;
+import edu.byu.cougarsim.calibration.ConvergenceMonitor;
+import edu.byu.cougarsim.calibration.RefreshableScoringParameters;
+import edu.byu.cougarsim.calibration.TripPurposeClassifier;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
@@ -32,6 +35,10 @@ import org.matsim.core.controler.Controler;
 import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
 import org.matsim.core.gbl.Gbl;
 import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.scoring.functions.ScoringParametersForPerson;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * This runner includes the calibration controler listener
@@ -40,26 +47,99 @@ import org.matsim.core.scenario.ScenarioUtils;
  */
 public class RunMatsim {
 
-	public static void main(String[] args) {
+	/**
+	 * Usage: <code>RunMatsim config.xml [checkpoint]</code>. With a checkpoint, or a directory of checkpoints of which
+	 * the latest is used, the run starts from its plans and constants instead of the input plans. With
+	 * <code>calibrationStages</code> in the calibration group the run is a {@link StagedCalibration}.
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
 		Gbl.assertIf(args.length >=1 && args[0]!="" );
-		run(ConfigUtils.loadConfig(args[0]));
+		Config config = ConfigUtils.loadConfig(args[0]);
+		// read the checkpoint before the controler can delete the output directory it may be in
+		CalibrationCheckpoint checkpoint = args.length >= 2 ? CalibrationCheckpoint.readLatest(new File(args[1])) : null;
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(config,
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		if(calibrationConfig.getCalibrationStages().isEmpty()) {
+			prepareControler(config, checkpoint).run();
+		} else {
+			StagedCalibration.run(config, checkpoint);
+		}
 		// makes some sense to not modify the config here but in the run method to help  with regression testing.
 	}
 	
 	static void run(Config config) {
+		prepareControler(config).run();
+	}
+
+	/**
+	 * Load the scenario and set up a controler with the calibration listener, so callers can add to it before running
+	 * @param config
+	 * @return
+	 */
+	static Controler prepareControler(Config config) {
+		return prepareControler(config, null);
+	}
+
+	/**
+	 * @param config
+	 * @param checkpoint the checkpoint to start from, or null to start from the input plans
+	 * @return
+	 */
+	static Controler prepareControler(Config config, CalibrationCheckpoint checkpoint) {
 		
 		// possibly modify config here
 		config.controler().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+		if(checkpoint != null) {
+			checkpoint.applyTo(config);
+		}
 		
 		// ---
 		
-		Scenario scenario = ScenarioUtils.loadScenario(config) ;
+		// parses the input files, or loads the snapshot of an earlier run on the same inputs
+		Scenario scenario = loadScenario(config, checkpoint) ;
 		
 		// possibly modify scenario here
 		
 		// ---
 		
+		return prepareControler(scenario, checkpoint);
+	}
+
+	/**
+	 * Load the scenario of a config, through a {@link ScenarioSnapshot} unless the plans come from a checkpoint. A
+	 * snapshot keeps only the selected plans, which would drop the plans and scores the checkpoint restores, and
+	 * every checkpoint would add a snapshot of its own to the snapshot directory.
+	 * @param config
+	 * @param checkpoint the checkpoint applied to the config, or null
+	 * @return
+	 */
+	static Scenario loadScenario(Config config, CalibrationCheckpoint checkpoint) {
+		if(checkpoint != null) return ScenarioUtils.loadScenario(config);
+		return ScenarioSnapshot.loadScenario(config);
+	}
+
+	/**
+	 * Set up a controler with the calibration listener for a loaded scenario
+	 * @param scenario
+	 * @param checkpoint the checkpoint the scenario was loaded from, or null
+	 * @return
+	 */
+	static Controler prepareControler(Scenario scenario, CalibrationCheckpoint checkpoint) {
 		Controler controler = new Controler( scenario ) ;
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(scenario.getConfig(),
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		final ConvergenceMonitor convergence;
+		if(calibrationConfig.getConvergenceWindow() > 0) {
+			convergence = new ConvergenceMonitor(calibrationConfig.getConvergenceWindow(),
+					calibrationConfig.getConvergenceShareTolerance(), calibrationConfig.getConvergenceBoardingsTolerance(),
+					calibrationConfig.getConvergenceObjectiveTolerance(), scenario.getConfig().controler().getLastIteration());
+			// the listener tells the monitor when the run converged, the monitor then stops the iterations
+			controler.setTerminationCriterion(convergence);
+		} else {
+			convergence = null;
+		}
 
 		// Add events handler and calibration adjustment listener
 		controler.addOverridingModule(new AbstractModule() {
@@ -69,14 +149,23 @@ public class RunMatsim {
 				//install(new SwissRailRaptorModule());
 				//add an instance of this class as ControlerListener
 				this.addControlerListenerBinding().to(CalibrationControlerListener.class);
-				this.bind(TransitBoardingsEventHandler.class);
-				this.bind(TravelTimeEventHandler.class);
-				this.bind(ModePurposeEventHandler.class);
+				this.bind(TripPurposeClassifier.class).asEagerSingleton();
+				// lets the listener hand updated mode constants to the scoring during the run
+				this.bind(ScoringParametersForPerson.class).to(RefreshableScoringParameters.class);
+				// adds the purpose-specific mode constants of the broyden solver to the scores
+				this.bindScoringFunctionFactory().to(CalibrationScoringFunctionFactory.class);
+				// hands the purpose-specific mode constants of the checkpoint to the listener
+				if(checkpoint != null) {
+					this.bind(CalibrationCheckpoint.class).toInstance(checkpoint);
+				}
+				if(convergence != null) {
+					this.bind(ConvergenceMonitor.class).toInstance(convergence);
+				}
 			}
 		});
 		// ---
 
-		controler.run();
+		return controler;
 	}
 	
 }
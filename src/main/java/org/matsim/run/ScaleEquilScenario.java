@@ -0,0 +1,243 @@
+package org.matsim.run;
+
+import edu.byu.cougarsim.calibration.CalibrationConfigGroup;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.NetworkWriter;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.ConfigWriter;
+import org.matsim.core.gbl.Gbl;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.*;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Expands the equil scenario to a population of production size, for scaling tests of the calibration layer.
+ *
+ * The equil network is copied once per {@link #AGENTS_PER_TILE} agents; the copies (tiles) are laid out on a grid
+ * and are not connected, and their link capacities are scaled so a tile carries its agents as equil carries its 100
+ * persons. Every tile gets the persons of equil, cloned with jittered activity end times, and a transit line from
+ * home to work and back; a share of the cloned legs is switched to pt. Routes are dropped, so the plans are routed
+ * when the scenario is prepared for the simulation.
+ *
+ * Usage: <code>ScaleEquilScenario scenarios/equil/config.xml agents outputDirectory [transitShare]</code>. The
+ * output directory receives the network, plans, transit schedule and vehicles and a <code>config.xml</code> that
+ * uses them.
+ */
+public class ScaleEquilScenario {
+	private static final Logger log = Logger.getLogger(ScaleEquilScenario.class);
+
+	static final int AGENTS_PER_TILE = 10000;
+	private static final double TILE_SPACING = 50000;
+	private static final double MAX_JITTER = 1800;
+	private static final double DEFAULT_TRANSIT_SHARE = 0.2;
+
+	// the equil links of the transit routes, from the home link to the work link and back
+	private static final String[] OUTBOUND_LINKS = {"1", "6", "15", "20"};
+	private static final String[] INBOUND_LINKS = {"20", "21", "22", "23", "1"};
+	private static final double OUTBOUND_TRAVEL_TIME = 1200;
+	private static final double INBOUND_TRAVEL_TIME = 3000;
+	private static final double FIRST_DEPARTURE = 5 * 3600;
+	private static final double LAST_DEPARTURE = 20 * 3600;
+	private static final double HEADWAY = 600;
+
+	public static void main(String[] args) {
+		Gbl.assertIf(args.length >= 3);
+		double transitShare = args.length >= 4 ? Double.parseDouble(args[3]) : DEFAULT_TRANSIT_SHARE;
+		generate(ConfigUtils.loadConfig(args[0]), Integer.parseInt(args[1]), new File(args[2]), transitShare);
+	}
+
+	/**
+	 * Write a scaled copy of a scenario.
+	 * @param equilConfig the config of the scenario to copy, equil or one with the same link ids
+	 * @param agents the number of agents of the scaled scenario
+	 * @param outputDirectory
+	 * @param transitShare the share of legs switched to pt
+	 * @return the config file of the scaled scenario
+	 */
+	public static File generate(Config equilConfig, int agents, File outputDirectory, double transitShare) {
+		Scenario equil = ScenarioUtils.loadScenario(equilConfig);
+		List<Person> templates = new ArrayList<>(equil.getPopulation().getPersons().values());
+		int tiles = (agents + AGENTS_PER_TILE - 1) / AGENTS_PER_TILE;
+		int columns = (int) Math.ceil(Math.sqrt(tiles));
+		double capacityFactor = (double) AGENTS_PER_TILE / templates.size();
+
+		Config config = ConfigUtils.createConfig();
+		config.transit().setUseTransit(true);
+		Scenario scaled = ScenarioUtils.createScenario(config);
+		VehicleType bus = createBusType(scaled.getTransitVehicles());
+		Random random = new Random(equilConfig.global().getRandomSeed());
+
+		for(int tile = 0; tile < tiles; tile++) {
+			Coord offset = new Coord((tile % columns) * TILE_SPACING, (tile / columns) * TILE_SPACING);
+			copyNetwork(equil.getNetwork(), scaled.getNetwork(), tile, offset, capacityFactor);
+			createTransitLine(scaled, bus, tile);
+			int tileAgents = Math.min(AGENTS_PER_TILE, agents - tile * AGENTS_PER_TILE);
+			for(int agent = 0; agent < tileAgents; agent++) {
+				Person template = templates.get(agent % templates.size());
+				Id<Person> id = Id.createPersonId(tile + "_" + template.getId() + "_" + agent / templates.size());
+				clonePerson(template, id, scaled.getPopulation(), tile, offset, transitShare, random);
+			}
+			if((tile + 1) % 10 == 0) log.info("Generated " + (tile + 1) + " of " + tiles + " tiles");
+		}
+
+		outputDirectory.mkdirs();
+		new NetworkWriter(scaled.getNetwork()).write(new File(outputDirectory, "network.xml.gz").getPath());
+		new PopulationWriter(scaled.getPopulation()).write(new File(outputDirectory, "plans.xml.gz").getPath());
+		new TransitScheduleWriter(scaled.getTransitSchedule()).writeFile(
+				new File(outputDirectory, "transitschedule.xml.gz").getPath());
+		new VehicleWriterV1(scaled.getTransitVehicles()).writeFile(
+				new File(outputDirectory, "transitvehicles.xml.gz").getPath());
+
+		// the scaled config is the equil config with the generated input files, relative to the config file
+		equilConfig.network().setInputFile("network.xml.gz");
+		equilConfig.plans().setInputFile("plans.xml.gz");
+		equilConfig.transit().setUseTransit(true);
+		equilConfig.transit().setTransitScheduleFile("transitschedule.xml.gz");
+		equilConfig.transit().setVehiclesFile("transitvehicles.xml.gz");
+		equilConfig.transit().setTransitModes(Collections.singleton(TransportMode.pt));
+		// the counts are those of the equil links, which the tiles rename
+		ConfigUtils.addOrGetModule(equilConfig, CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class)
+				.setCountsFile("");
+		File configFile = new File(outputDirectory, "config.xml");
+		new ConfigWriter(equilConfig).write(configFile.getPath());
+		log.info("Wrote " + scaled.getPopulation().getPersons().size() + " agents on " + tiles + " tiles to " +
+				outputDirectory);
+		return configFile;
+	}
+
+	private static Id<Link> linkId(int tile, String equilId) {
+		return Id.createLinkId(tile + "_" + equilId);
+	}
+
+	private static Coord shift(Coord coord, Coord offset) {
+		return new Coord(coord.getX() + offset.getX(), coord.getY() + offset.getY());
+	}
+
+	private static void copyNetwork(Network equil, Network scaled, int tile, Coord offset, double capacityFactor) {
+		NetworkFactory factory = scaled.getFactory();
+		for(Node node : equil.getNodes().values()) {
+			scaled.addNode(factory.createNode(Id.createNodeId(tile + "_" + node.getId()),
+					shift(node.getCoord(), offset)));
+		}
+		for(Link link : equil.getLinks().values()) {
+			Link copy = factory.createLink(linkId(tile, link.getId().toString()),
+					scaled.getNodes().get(Id.createNodeId(tile + "_" + link.getFromNode().getId())),
+					scaled.getNodes().get(Id.createNodeId(tile + "_" + link.getToNode().getId())));
+			copy.setLength(link.getLength());
+			copy.setFreespeed(link.getFreespeed());
+			copy.setCapacity(link.getCapacity() * capacityFactor);
+			copy.setNumberOfLanes(link.getNumberOfLanes());
+			copy.setAllowedModes(link.getAllowedModes());
+			scaled.addLink(copy);
+		}
+	}
+
+	private static void clonePerson(Person template, Id<Person> id, Population population, int tile, Coord offset,
+									double transitShare, Random random) {
+		PopulationFactory factory = population.getFactory();
+		Person person = factory.createPerson(id);
+		Plan plan = factory.createPlan();
+		double jitter = (2 * random.nextDouble() - 1) * MAX_JITTER;
+		for(PlanElement element : template.getSelectedPlan().getPlanElements()) {
+			if(element instanceof Activity) {
+				Activity activity = (Activity) element;
+				Activity copy = factory.createActivityFromLinkId(activity.getType(),
+						linkId(tile, activity.getLinkId().toString()));
+				if(activity.getCoord() != null) copy.setCoord(shift(activity.getCoord(), offset));
+				if(activity.getEndTime() != Time.UNDEFINED_TIME) copy.setEndTime(activity.getEndTime() + jitter);
+				if(activity.getMaximumDuration() != Time.UNDEFINED_TIME) {
+					copy.setMaximumDuration(activity.getMaximumDuration());
+				}
+				plan.addActivity(copy);
+			} else {
+				String mode = random.nextDouble() < transitShare ? TransportMode.pt : ((Leg) element).getMode();
+				plan.addLeg(factory.createLeg(mode));
+			}
+		}
+		person.addPlan(plan);
+		population.addPerson(person);
+	}
+
+	private static VehicleType createBusType(Vehicles vehicles) {
+		VehicleType bus = vehicles.getFactory().createVehicleType(Id.create("bus", VehicleType.class));
+		VehicleCapacity capacity = vehicles.getFactory().createVehicleCapacity();
+		capacity.setSeats(60);
+		capacity.setStandingRoom(40);
+		bus.setCapacity(capacity);
+		vehicles.addVehicleType(bus);
+		return bus;
+	}
+
+	/**
+	 * One line per tile with a route from the home link to the work link and one back, every departure with its
+	 * own vehicle.
+	 */
+	private static void createTransitLine(Scenario scenario, VehicleType bus, int tile) {
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitLine line = schedule.getFactory().createTransitLine(Id.create("line_" + tile, TransitLine.class));
+		line.addRoute(createRoute(scenario, bus, tile, "outbound", OUTBOUND_LINKS, OUTBOUND_TRAVEL_TIME));
+		line.addRoute(createRoute(scenario, bus, tile, "inbound", INBOUND_LINKS, INBOUND_TRAVEL_TIME));
+		schedule.addTransitLine(line);
+	}
+
+	private static TransitRoute createRoute(Scenario scenario, VehicleType bus, int tile, String name, String[] links,
+											double travelTime) {
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		TransitScheduleFactory factory = schedule.getFactory();
+		Vehicles vehicles = scenario.getTransitVehicles();
+
+		List<Id<Link>> linkIds = new ArrayList<>();
+		for(String link : links) linkIds.add(linkId(tile, link));
+		NetworkRoute networkRoute = RouteUtils.createLinkNetworkRouteImpl(linkIds.get(0), linkIds.get(linkIds.size() - 1));
+		networkRoute.setLinkIds(linkIds.get(0), linkIds.subList(1, linkIds.size() - 1), linkIds.get(linkIds.size() - 1));
+
+		List<TransitRouteStop> stops = new ArrayList<>();
+		stops.add(factory.createTransitRouteStop(stop(scenario, linkIds.get(0)), 0, 0));
+		stops.add(factory.createTransitRouteStop(stop(scenario, linkIds.get(linkIds.size() - 1)), travelTime, travelTime));
+		TransitRoute route = factory.createTransitRoute(Id.create(tile + "_" + name, TransitRoute.class),
+				networkRoute, stops, "bus");
+
+		int departure = 0;
+		for(double time = FIRST_DEPARTURE; time <= LAST_DEPARTURE; time += HEADWAY, departure++) {
+			Vehicle vehicle = vehicles.getFactory().createVehicle(
+					Id.createVehicleId("bus_" + tile + "_" + name + "_" + departure), bus);
+			vehicles.addVehicle(vehicle);
+			Departure scheduled = factory.createDeparture(Id.create(departure, Departure.class), time);
+			scheduled.setVehicleId(vehicle.getId());
+			route.addDeparture(scheduled);
+		}
+		return route;
+	}
+
+	/**
+	 * @return the stop on a link, created on first use
+	 */
+	private static TransitStopFacility stop(Scenario scenario, Id<Link> link) {
+		TransitSchedule schedule = scenario.getTransitSchedule();
+		Id<TransitStopFacility> id = Id.create("stop_" + link, TransitStopFacility.class);
+		TransitStopFacility stop = schedule.getFacilities().get(id);
+		if(stop == null) {
+			Link networkLink = scenario.getNetwork().getLinks().get(link);
+			stop = schedule.getFactory().createTransitStopFacility(id, networkLink.getToNode().getCoord(), false);
+			stop.setLinkId(link);
+			schedule.addStopFacility(stop);
+		}
+		return stop;
+	}
+}
@@ -0,0 +1,680 @@
+package org.matsim.run;
+
+import edu.byu.cougarsim.calibration.CalibrationConfigGroup;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.*;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteFactories;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.*;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Binary snapshots of a loaded scenario, so repeated runs on the same inputs skip parsing the XML files.
+ *
+ * A snapshot holds the network, the persons with their selected plan and subpopulation, and the transit schedule
+ * and vehicles. It is named by the SHA-256 of the contents of these input files and of the config settings that
+ * change how they are loaded, so a changed input writes a new snapshot instead of loading a stale one. Strings (ids,
+ * activity types, modes) are stored once and referenced by number afterwards. Snapshots are read through
+ * memory-mapped regions of the file, so loading costs no copies through stream buffers.
+ *
+ * Only the selected plan of every person is kept, and custom attributes of links, persons and plans other than the
+ * subpopulation are not. Scenarios with facilities, households, lanes or network change events are always loaded
+ * from their files.
+ */
+public class ScenarioSnapshot {
+	private static final Logger log = Logger.getLogger(ScenarioSnapshot.class);
+
+	private static final int MAGIC = 0x43534E50;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".snapshot";
+
+	private static final byte ACTIVITY = 0;
+	private static final byte LEG = 1;
+
+	/**
+	 * Load the scenario of a config, from a snapshot if the calibration group sets a snapshot directory and one
+	 * exists for the inputs. A scenario loaded from its files is written to a new snapshot.
+	 * @param config
+	 * @return
+	 */
+	public static Scenario loadScenario(Config config) {
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(config,
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		String directory = calibrationConfig.getScenarioSnapshotDirectory();
+		if(directory.isEmpty()) return ScenarioUtils.loadScenario(config);
+		String unsupported = unsupportedInput(config);
+		if(unsupported != null) {
+			log.warn("Not using scenario snapshots, the config has " + unsupported);
+			return ScenarioUtils.loadScenario(config);
+		}
+
+		long start = System.currentTimeMillis();
+		File file;
+		try {
+			file = new File(directory, key(config) + SUFFIX);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not hash the scenario inputs", e);
+		}
+		log.info("Hashed the scenario inputs in " + (System.currentTimeMillis() - start) + " ms");
+		if(file.exists()) {
+			try {
+				start = System.currentTimeMillis();
+				Scenario scenario = read(config, file);
+				log.info("Loaded scenario snapshot " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+				return scenario;
+			} catch (IOException | RuntimeException e) {
+				log.warn("Could not read scenario snapshot " + file + ", loading the input files", e);
+			}
+		}
+
+		Scenario scenario = ScenarioUtils.loadScenario(config);
+		try {
+			write(scenario, file);
+			log.info("Wrote scenario snapshot " + file);
+		} catch (IOException e) {
+			log.warn("Could not write scenario snapshot " + file, e);
+		}
+		return scenario;
+	}
+
+	private static String unsupportedInput(Config config) {
+		if(isSet(config.facilities().getInputFile())) return "a facilities file";
+		if(isSet(config.households().getInputFile())) return "a households file";
+		if(isSet(config.network().getLaneDefinitionsFile())) return "a lane definitions file";
+		if(config.network().isTimeVariantNetwork()) return "a time variant network";
+		return null;
+	}
+
+	private static boolean isSet(String file) {
+		return file != null && !file.isEmpty();
+	}
+
+	private static List<String> inputFiles(Config config) {
+		List<String> files = new ArrayList<>();
+		files.add(config.network().getInputFile());
+		files.add(config.plans().getInputFile());
+		files.add(config.plans().getInputPersonAttributeFile());
+		if(config.transit().isUseTransit()) {
+			files.add(config.transit().getTransitScheduleFile());
+			files.add(config.transit().getVehiclesFile());
+		}
+		return files;
+	}
+
+	/**
+	 * @return the hex SHA-256 of the snapshot format, the settings that change loading and the input files
+	 */
+	static String key(Config config) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		String settings = VERSION + ";" + config.global().getCoordinateSystem() + ";" +
+				config.plans().getSubpopulationAttributeName() + ";" + config.transit().isUseTransit();
+		digest.update(settings.getBytes(StandardCharsets.UTF_8));
+		byte[] buffer = new byte[1 << 16];
+		for(String file : inputFiles(config)) {
+			digest.update((byte) 0);
+			if(!isSet(file)) continue;
+			try (InputStream in = ConfigGroup.getInputFileURL(config.getContext(), file).openStream()) {
+				int read;
+				while((read = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, read);
+				}
+			}
+		}
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Write a snapshot of a scenario. The file is written under a temporary name and then moved into place, so
+	 * concurrent runs never read a partial snapshot.
+	 * @param scenario
+	 * @param file
+	 * @throws IOException
+	 */
+	static void write(Scenario scenario, File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File temporary = File.createTempFile(file.getName(), ".tmp", parent);
+		try (SnapshotOutput out = new SnapshotOutput(temporary)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeNetwork(scenario.getNetwork(), out);
+			writePopulation(scenario, out);
+			boolean transit = scenario.getConfig().transit().isUseTransit();
+			out.writeBoolean(transit);
+			if(transit) {
+				writeSchedule(scenario.getTransitSchedule(), out);
+				writeVehicles(scenario.getTransitVehicles(), out);
+			}
+		} catch (IOException e) {
+			temporary.delete();
+			throw e;
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read a snapshot into a new scenario of a config.
+	 * @param config
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static Scenario read(Config config, File file) throws IOException {
+		Scenario scenario = ScenarioUtils.createScenario(config);
+		try (SnapshotInput in = new SnapshotInput(file)) {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a scenario snapshot of version " + VERSION + ": " + file);
+			}
+			readNetwork(scenario.getNetwork(), in);
+			readPopulation(scenario, in);
+			if(in.readBoolean()) {
+				readSchedule(scenario.getTransitSchedule(), in);
+				readVehicles(scenario.getTransitVehicles(), in);
+			}
+		}
+		return scenario;
+	}
+
+	private static void writeNetwork(Network network, SnapshotOutput out) throws IOException {
+		out.writeDouble(network.getCapacityPeriod());
+		out.writeInt(network.getNodes().size());
+		for(Node node : network.getNodes().values()) {
+			out.writeString(node.getId().toString());
+			out.writeCoord(node.getCoord());
+		}
+		out.writeInt(network.getLinks().size());
+		for(Link link : network.getLinks().values()) {
+			out.writeString(link.getId().toString());
+			out.writeString(link.getFromNode().getId().toString());
+			out.writeString(link.getToNode().getId().toString());
+			out.writeDouble(link.getLength());
+			out.writeDouble(link.getFreespeed());
+			out.writeDouble(link.getCapacity());
+			out.writeDouble(link.getNumberOfLanes());
+			out.writeInt(link.getAllowedModes().size());
+			for(String mode : link.getAllowedModes()) {
+				out.writeString(mode);
+			}
+		}
+	}
+
+	private static void readNetwork(Network network, SnapshotInput in) throws IOException {
+		NetworkFactory factory = network.getFactory();
+		network.setCapacityPeriod(in.readDouble());
+		int nodes = in.readInt();
+		for(int n = 0; n < nodes; n++) {
+			network.addNode(factory.createNode(Id.createNodeId(in.readString()), in.readCoord()));
+		}
+		int links = in.readInt();
+		for(int l = 0; l < links; l++) {
+			Id<Link> id = Id.createLinkId(in.readString());
+			Node from = network.getNodes().get(Id.createNodeId(in.readString()));
+			Node to = network.getNodes().get(Id.createNodeId(in.readString()));
+			Link link = factory.createLink(id, from, to);
+			link.setLength(in.readDouble());
+			link.setFreespeed(in.readDouble());
+			link.setCapacity(in.readDouble());
+			link.setNumberOfLanes(in.readDouble());
+			int modes = in.readInt();
+			Set<String> allowedModes = new HashSet<>();
+			for(int m = 0; m < modes; m++) {
+				allowedModes.add(in.readString());
+			}
+			link.setAllowedModes(allowedModes);
+			network.addLink(link);
+		}
+	}
+
+	private static void writePopulation(Scenario scenario, SnapshotOutput out) throws IOException {
+		Population population = scenario.getPopulation();
+		String subpopulationAttribute = scenario.getConfig().plans().getSubpopulationAttributeName();
+		out.writeInt(population.getPersons().size());
+		for(Person person : population.getPersons().values()) {
+			out.writeString(person.getId().toString());
+			Object subpopulation = population.getPersonAttributes().getAttribute(person.getId().toString(),
+					subpopulationAttribute);
+			out.writeString(subpopulation == null ? null : subpopulation.toString());
+			Plan plan = person.getSelectedPlan();
+			out.writeBoolean(plan != null);
+			if(plan == null) continue;
+			out.writeDouble(plan.getScore() == null ? Double.NaN : plan.getScore());
+			out.writeInt(plan.getPlanElements().size());
+			for(PlanElement element : plan.getPlanElements()) {
+				if(element instanceof Activity) {
+					writeActivity((Activity) element, out);
+				} else {
+					writeLeg((Leg) element, out);
+				}
+			}
+		}
+	}
+
+	private static void writeActivity(Activity activity, SnapshotOutput out) throws IOException {
+		out.writeByte(ACTIVITY);
+		out.writeString(activity.getType());
+		out.writeString(activity.getLinkId() == null ? null : activity.getLinkId().toString());
+		out.writeString(activity.getFacilityId() == null ? null : activity.getFacilityId().toString());
+		out.writeCoord(activity.getCoord());
+		out.writeDouble(activity.getStartTime());
+		out.writeDouble(activity.getEndTime());
+		out.writeDouble(activity.getMaximumDuration());
+	}
+
+	private static void writeLeg(Leg leg, SnapshotOutput out) throws IOException {
+		out.writeByte(LEG);
+		out.writeString(leg.getMode());
+		out.writeDouble(leg.getDepartureTime());
+		out.writeDouble(leg.getTravelTime());
+		Route route = leg.getRoute();
+		out.writeBoolean(route != null);
+		if(route == null) return;
+		out.writeString(route.getRouteType());
+		out.writeString(route.getStartLinkId() == null ? null : route.getStartLinkId().toString());
+		out.writeString(route.getEndLinkId() == null ? null : route.getEndLinkId().toString());
+		out.writeText(route.getRouteDescription());
+		out.writeDouble(route.getDistance());
+		out.writeDouble(route.getTravelTime());
+	}
+
+	private static void readPopulation(Scenario scenario, SnapshotInput in) throws IOException {
+		Population population = scenario.getPopulation();
+		PopulationFactory factory = population.getFactory();
+		RouteFactories routeFactories = factory.getRouteFactories();
+		String subpopulationAttribute = scenario.getConfig().plans().getSubpopulationAttributeName();
+		int persons = in.readInt();
+		for(int p = 0; p < persons; p++) {
+			Person person = factory.createPerson(Id.createPersonId(in.readString()));
+			String subpopulation = in.readString();
+			if(subpopulation != null) {
+				population.getPersonAttributes().putAttribute(person.getId().toString(), subpopulationAttribute,
+						subpopulation);
+			}
+			population.addPerson(person);
+			if(!in.readBoolean()) continue;
+			Plan plan = factory.createPlan();
+			double score = in.readDouble();
+			if(!Double.isNaN(score)) plan.setScore(score);
+			int elements = in.readInt();
+			for(int e = 0; e < elements; e++) {
+				if(in.readByte() == ACTIVITY) {
+					plan.addActivity(readActivity(factory, in));
+				} else {
+					plan.addLeg(readLeg(factory, routeFactories, in));
+				}
+			}
+			person.addPlan(plan);
+			person.setSelectedPlan(plan);
+		}
+	}
+
+	private static Activity readActivity(PopulationFactory factory, SnapshotInput in) throws IOException {
+		String type = in.readString();
+		String link = in.readString();
+		String facility = in.readString();
+		Coord coord = in.readCoord();
+		Activity activity = link != null ? factory.createActivityFromLinkId(type, Id.createLinkId(link)) :
+				factory.createActivityFromCoord(type, coord);
+		if(coord != null) activity.setCoord(coord);
+		if(facility != null) activity.setFacilityId(Id.create(facility, ActivityFacility.class));
+		activity.setStartTime(in.readDouble());
+		activity.setEndTime(in.readDouble());
+		activity.setMaximumDuration(in.readDouble());
+		return activity;
+	}
+
+	private static Leg readLeg(PopulationFactory factory, RouteFactories routeFactories, SnapshotInput in)
+			throws IOException {
+		Leg leg = factory.createLeg(in.readString());
+		leg.setDepartureTime(in.readDouble());
+		leg.setTravelTime(in.readDouble());
+		if(!in.readBoolean()) return leg;
+		String type = in.readString();
+		String start = in.readString();
+		String end = in.readString();
+		Route route = routeFactories.createRoute(routeFactories.getRouteClassForType(type),
+				start == null ? null : Id.createLinkId(start), end == null ? null : Id.createLinkId(end));
+		String description = in.readText();
+		if(description != null) route.setRouteDescription(description);
+		route.setDistance(in.readDouble());
+		route.setTravelTime(in.readDouble());
+		leg.setRoute(route);
+		return leg;
+	}
+
+	private static void writeSchedule(TransitSchedule schedule, SnapshotOutput out) throws IOException {
+		out.writeInt(schedule.getFacilities().size());
+		for(TransitStopFacility stop : schedule.getFacilities().values()) {
+			out.writeString(stop.getId().toString());
+			out.writeCoord(stop.getCoord());
+			out.writeBoolean(stop.getIsBlockingLane());
+			out.writeString(stop.getLinkId() == null ? null : stop.getLinkId().toString());
+			out.writeString(stop.getName());
+		}
+		out.writeInt(schedule.getTransitLines().size());
+		for(TransitLine line : schedule.getTransitLines().values()) {
+			out.writeString(line.getId().toString());
+			out.writeString(line.getName());
+			out.writeInt(line.getRoutes().size());
+			for(TransitRoute route : line.getRoutes().values()) {
+				out.writeString(route.getId().toString());
+				out.writeString(route.getTransportMode());
+				out.writeString(route.getDescription());
+				NetworkRoute networkRoute = route.getRoute();
+				out.writeBoolean(networkRoute != null);
+				if(networkRoute != null) {
+					out.writeString(networkRoute.getStartLinkId().toString());
+					out.writeInt(networkRoute.getLinkIds().size());
+					for(Id<Link> link : networkRoute.getLinkIds()) {
+						out.writeString(link.toString());
+					}
+					out.writeString(networkRoute.getEndLinkId().toString());
+				}
+				out.writeInt(route.getStops().size());
+				for(TransitRouteStop stop : route.getStops()) {
+					out.writeString(stop.getStopFacility().getId().toString());
+					out.writeDouble(stop.getArrivalOffset());
+					out.writeDouble(stop.getDepartureOffset());
+					out.writeBoolean(stop.isAwaitDepartureTime());
+				}
+				out.writeInt(route.getDepartures().size());
+				for(Departure departure : route.getDepartures().values()) {
+					out.writeString(departure.getId().toString());
+					out.writeDouble(departure.getDepartureTime());
+					out.writeString(departure.getVehicleId() == null ? null : departure.getVehicleId().toString());
+				}
+			}
+		}
+	}
+
+	private static void readSchedule(TransitSchedule schedule, SnapshotInput in) throws IOException {
+		TransitScheduleFactory factory = schedule.getFactory();
+		int stops = in.readInt();
+		for(int s = 0; s < stops; s++) {
+			Id<TransitStopFacility> id = Id.create(in.readString(), TransitStopFacility.class);
+			Coord coord = in.readCoord();
+			TransitStopFacility stop = factory.createTransitStopFacility(id, coord, in.readBoolean());
+			String link = in.readString();
+			if(link != null) stop.setLinkId(Id.createLinkId(link));
+			stop.setName(in.readString());
+			schedule.addStopFacility(stop);
+		}
+		int lines = in.readInt();
+		for(int l = 0; l < lines; l++) {
+			TransitLine line = factory.createTransitLine(Id.create(in.readString(), TransitLine.class));
+			line.setName(in.readString());
+			int routes = in.readInt();
+			for(int r = 0; r < routes; r++) {
+				Id<TransitRoute> id = Id.create(in.readString(), TransitRoute.class);
+				String mode = in.readString();
+				String description = in.readString();
+				NetworkRoute networkRoute = null;
+				if(in.readBoolean()) {
+					Id<Link> start = Id.createLinkId(in.readString());
+					int size = in.readInt();
+					List<Id<Link>> links = new ArrayList<>(size);
+					for(int k = 0; k < size; k++) {
+						links.add(Id.createLinkId(in.readString()));
+					}
+					networkRoute = RouteUtils.createLinkNetworkRouteImpl(start, links, Id.createLinkId(in.readString()));
+				}
+				int routeStops = in.readInt();
+				List<TransitRouteStop> stopList = new ArrayList<>(routeStops);
+				for(int s = 0; s < routeStops; s++) {
+					TransitStopFacility facility = schedule.getFacilities().get(
+							Id.create(in.readString(), TransitStopFacility.class));
+					TransitRouteStop stop = factory.createTransitRouteStop(facility, in.readDouble(), in.readDouble());
+					stop.setAwaitDepartureTime(in.readBoolean());
+					stopList.add(stop);
+				}
+				TransitRoute route = factory.createTransitRoute(id, networkRoute, stopList, mode);
+				route.setDescription(description);
+				int departures = in.readInt();
+				for(int d = 0; d < departures; d++) {
+					Departure departure = factory.createDeparture(Id.create(in.readString(), Departure.class),
+							in.readDouble());
+					String vehicle = in.readString();
+					if(vehicle != null) departure.setVehicleId(Id.create(vehicle, Vehicle.class));
+					route.addDeparture(departure);
+				}
+				line.addRoute(route);
+			}
+			schedule.addTransitLine(line);
+		}
+	}
+
+	private static void writeVehicles(Vehicles vehicles, SnapshotOutput out) throws IOException {
+		out.writeInt(vehicles.getVehicleTypes().size());
+		for(VehicleType type : vehicles.getVehicleTypes().values()) {
+			out.writeString(type.getId().toString());
+			out.writeString(type.getDescription());
+			VehicleCapacity capacity = type.getCapacity();
+			out.writeInt(capacity == null || capacity.getSeats() == null ? -1 : capacity.getSeats());
+			out.writeInt(capacity == null || capacity.getStandingRoom() == null ? -1 : capacity.getStandingRoom());
+			out.writeDouble(type.getLength());
+			out.writeDouble(type.getWidth());
+			out.writeDouble(type.getMaximumVelocity());
+			out.writeDouble(type.getAccessTime());
+			out.writeDouble(type.getEgressTime());
+			out.writeDouble(type.getPcuEquivalents());
+			out.writeString(type.getDoorOperationMode().name());
+		}
+		out.writeInt(vehicles.getVehicles().size());
+		for(Vehicle vehicle : vehicles.getVehicles().values()) {
+			out.writeString(vehicle.getId().toString());
+			out.writeString(vehicle.getType().getId().toString());
+		}
+	}
+
+	private static void readVehicles(Vehicles vehicles, SnapshotInput in) throws IOException {
+		VehiclesFactory factory = vehicles.getFactory();
+		int types = in.readInt();
+		for(int t = 0; t < types; t++) {
+			VehicleType type = factory.createVehicleType(Id.create(in.readString(), VehicleType.class));
+			type.setDescription(in.readString());
+			VehicleCapacity capacity = factory.createVehicleCapacity();
+			int seats = in.readInt();
+			int standingRoom = in.readInt();
+			if(seats >= 0) capacity.setSeats(seats);
+			if(standingRoom >= 0) capacity.setStandingRoom(standingRoom);
+			type.setCapacity(capacity);
+			type.setLength(in.readDouble());
+			type.setWidth(in.readDouble());
+			type.setMaximumVelocity(in.readDouble());
+			type.setAccessTime(in.readDouble());
+			type.setEgressTime(in.readDouble());
+			type.setPcuEquivalents(in.readDouble());
+			type.setDoorOperationMode(VehicleType.DoorOperationMode.valueOf(in.readString()));
+			vehicles.addVehicleType(type);
+		}
+		int count = in.readInt();
+		for(int v = 0; v < count; v++) {
+			Id<Vehicle> id = Id.create(in.readString(), Vehicle.class);
+			VehicleType type = vehicles.getVehicleTypes().get(Id.create(in.readString(), VehicleType.class));
+			vehicles.addVehicle(factory.createVehicle(id, type));
+		}
+	}
+
+	/**
+	 * Writes primitives big-endian, strings as a number into a table of the strings written before, or as their
+	 * UTF-8 bytes when they first appear.
+	 */
+	private static final class SnapshotOutput implements Closeable {
+		private final DataOutputStream out;
+		private final Map<String, Integer> strings = new HashMap<>();
+
+		SnapshotOutput(File file) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		}
+
+		void writeInt(int value) throws IOException {
+			out.writeInt(value);
+		}
+
+		void writeDouble(double value) throws IOException {
+			out.writeDouble(value);
+		}
+
+		void writeByte(byte value) throws IOException {
+			out.writeByte(value);
+		}
+
+		void writeBoolean(boolean value) throws IOException {
+			out.writeBoolean(value);
+		}
+
+		void writeCoord(Coord coord) throws IOException {
+			out.writeDouble(coord == null ? Double.NaN : coord.getX());
+			out.writeDouble(coord == null ? Double.NaN : coord.getY());
+		}
+
+		/**
+		 * Write a string that is likely to repeat, like an id or a mode.
+		 */
+		void writeString(String value) throws IOException {
+			if(value == null) {
+				out.writeInt(-2);
+				return;
+			}
+			Integer code = strings.get(value);
+			if(code != null) {
+				out.writeInt(code);
+				return;
+			}
+			strings.put(value, strings.size());
+			out.writeInt(-1);
+			writeText(value);
+		}
+
+		/**
+		 * Write a string that is unlikely to repeat, like a route description, without keeping it in the table.
+		 */
+		void writeText(String value) throws IOException {
+			if(value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a snapshot through memory-mapped regions of at most {@link #REGION} bytes; a value that would cross the
+	 * end of a region is read from a new region that starts with it.
+	 */
+	private static final class SnapshotInput implements Closeable {
+		private static final long REGION = 1L << 30;
+
+		private final FileChannel channel;
+		private final long size;
+		private final List<String> strings = new ArrayList<>();
+		private long regionStart;
+		private MappedByteBuffer buffer;
+
+		SnapshotInput(File file) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.size = channel.size();
+			map(0);
+		}
+
+		private void map(long position) throws IOException {
+			regionStart = position;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION, size - position));
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if(buffer.remaining() >= bytes) return;
+			long position = regionStart + buffer.position();
+			if(size - position < bytes) throw new EOFException("Truncated scenario snapshot");
+			map(position);
+		}
+
+		int readInt() throws IOException {
+			ensure(4);
+			return buffer.getInt();
+		}
+
+		double readDouble() throws IOException {
+			ensure(8);
+			return buffer.getDouble();
+		}
+
+		byte readByte() throws IOException {
+			ensure(1);
+			return buffer.get();
+		}
+
+		boolean readBoolean() throws IOException {
+			return readByte() != 0;
+		}
+
+		Coord readCoord() throws IOException {
+			double x = readDouble();
+			double y = readDouble();
+			return Double.isNaN(x) ? null : new Coord(x, y);
+		}
+
+		String readString() throws IOException {
+			int code = readInt();
+			if(code == -2) return null;
+			if(code >= 0) return strings.get(code);
+			String value = readText();
+			strings.add(value);
+			return value;
+		}
+
+		String readText() throws IOException {
+			int length = readInt();
+			if(length < 0) return null;
+			ensure(length);
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.matsim.run;
+
+import edu.byu.cougarsim.calibration.CalibrationCheckpoint;
+import edu.byu.cougarsim.calibration.CalibrationConfigGroup;
+import edu.byu.cougarsim.calibration.PopulationSample;
+import edu.byu.cougarsim.calibration.PurposeModeConstants;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A calibration run in stages on growing population samples, so most of the search for the constants runs on a
+ * small sample and only the last iterations on the full population.
+ *
+ * Every stage draws a stratified {@link PopulationSample} of its fraction, scales the flow and storage capacity
+ * factors of the QSim down and the counts and boardings scale factors up by the fraction, and runs its iterations
+ * into <code>stageN</code> of the output directory. The mode constants updated by the listener are carried in the
+ * config from one stage to the next, and the purpose-specific constants of the solver in a
+ * {@link PurposeModeConstants} table bound for the next stage. The plans of every stage start from the input plans,
+ * or from the plans of the checkpoint when the run resumes from one. The constants have to be updated during the
+ * stages, so the calibration group needs a <code>constantUpdateInterval</code>.
+ */
+public class StagedCalibration {
+	private static final Logger log = Logger.getLogger(StagedCalibration.class);
+
+	static final class Stage {
+		final double fraction;
+		final int iterations;
+
+		Stage(double fraction, int iterations) {
+			this.fraction = fraction;
+			this.iterations = iterations;
+		}
+	}
+
+	/**
+	 * @param definition <code>fraction:iterations,...</code> with growing fractions of at most 1
+	 * @return
+	 */
+	static List<Stage> parseStages(String definition) {
+		List<Stage> stages = new ArrayList<>();
+		for(String stage : definition.split(",")) {
+			String[] fields = stage.trim().split(":");
+			if(fields.length != 2) {
+				throw new IllegalArgumentException("Malformed calibration stage: " + stage);
+			}
+			double fraction = Double.parseDouble(fields[0].trim());
+			int iterations = Integer.parseInt(fields[1].trim());
+			double previous = stages.isEmpty() ? 0.0 : stages.get(stages.size() - 1).fraction;
+			if(fraction <= previous || fraction > 1.0 || iterations < 1) {
+				throw new IllegalArgumentException("Calibration stages need growing fractions up to 1 and at least " +
+						"one iteration: " + definition);
+			}
+			stages.add(new Stage(fraction, iterations));
+		}
+		return stages;
+	}
+
+	/**
+	 * @param config
+	 * @param checkpoint the checkpoint the first stage starts from, or null
+	 */
+	static void run(Config config, CalibrationCheckpoint checkpoint) {
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(config,
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		List<Stage> stages = parseStages(calibrationConfig.getCalibrationStages());
+		int updateInterval = calibrationConfig.getConstantUpdateInterval();
+		if(updateInterval <= 0) {
+			throw new IllegalArgumentException("A staged calibration updates the constants during its stages, it " +
+					"needs a constantUpdateInterval of at least 1");
+		}
+		for(int s = 0; s < stages.size(); s++) {
+			// the last iteration of a stage does not update the constants
+			if(stages.get(s).iterations <= updateInterval) {
+				log.warn("Calibration stage " + s + " has " + stages.get(s).iterations + " iterations, too few to " +
+						"update the constants every " + updateInterval + " iterations");
+			}
+		}
+		if(checkpoint != null) {
+			checkpoint.applyTo(config);
+		}
+
+		String outputDirectory = config.controler().getOutputDirectory();
+		int firstIteration = config.controler().getFirstIteration();
+		double flowCapFactor = config.qsim().getFlowCapFactor();
+		double storageCapFactor = config.qsim().getStorageCapFactor();
+		double countsScaleFactor = calibrationConfig.getCountsScaleFactor();
+		double boardingsScaleFactor = calibrationConfig.getBoardingsScaleFactor();
+		config.controler().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+
+		double[][] purposeModeConstants = null;
+		for(int s = 0; s < stages.size(); s++) {
+			Stage stage = stages.get(s);
+			config.controler().setOutputDirectory(outputDirectory + "/stage" + s);
+			config.controler().setLastIteration(firstIteration + stage.iterations - 1);
+			config.qsim().setFlowCapFactor(flowCapFactor * stage.fraction);
+			config.qsim().setStorageCapFactor(storageCapFactor * stage.fraction);
+			calibrationConfig.setCountsScaleFactor(countsScaleFactor / stage.fraction);
+			calibrationConfig.setBoardingsScaleFactor(boardingsScaleFactor / stage.fraction);
+
+			// every stage reads the plans of the checkpoint, if there is one
+			Scenario scenario = RunMatsim.loadScenario(config, checkpoint);
+			Set<Id<Person>> sample = PopulationSample.draw(scenario.getPopulation(),
+					config.plans().getSubpopulationAttributeName(), stage.fraction, config.global().getRandomSeed());
+			PopulationSample.retain(scenario.getPopulation(), sample);
+			log.info("Calibration stage " + s + ": " + sample.size() + " persons (" + stage.fraction * 100 + "%), " +
+					stage.iterations + " iterations");
+
+			Controler controler = RunMatsim.prepareControler(scenario, s == 0 ? checkpoint : null);
+			if(purposeModeConstants != null) {
+				PurposeModeConstants constants = new PurposeModeConstants();
+				constants.setConstants(purposeModeConstants);
+				controler.addOverridingModule(new AbstractModule() {
+					@Override
+					public void install() {
+						this.bind(PurposeModeConstants.class).toInstance(constants);
+					}
+				});
+			}
+			controler.run();
+
+			purposeModeConstants = controler.getInjector().getInstance(PurposeModeConstants.class).getConstants();
+			StringBuilder message = new StringBuilder("Mode constants after stage " + s + ":");
+			for(PlanCalcScoreConfigGroup.ModeParams modeParams : config.planCalcScore().getModes().values()) {
+				message.append(" ").append(modeParams.getMode()).append("=").append(modeParams.getConstant());
+			}
+			log.info(message);
+		}
+	}
+}
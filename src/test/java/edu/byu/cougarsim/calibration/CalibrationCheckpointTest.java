@@ -0,0 +1,97 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.io.PopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Checks that a run resumes from the latest complete checkpoint with its plans and constants, and that an
+ * <code>it.N</code> directory without <code>checkpoint.properties</code> is ignored.
+ */
+public class CalibrationCheckpointTest {
+
+    @Rule public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Config config = ConfigUtils.createConfig();
+        Scenario scenario = ScenarioUtils.createScenario(config);
+        Population population = scenario.getPopulation();
+        PopulationFactory factory = population.getFactory();
+        Person person = factory.createPerson(Id.createPersonId("1"));
+        Plan plan = factory.createPlan();
+        plan.addActivity(factory.createActivityFromCoord("home", new Coord(0, 0)));
+        plan.setScore(42.0);
+        person.addPlan(plan);
+        population.addPerson(person);
+
+        TripPurposeClassifier classifier = new TripPurposeClassifier(config);
+        int car = classifier.getModeCode("car");
+        int pt = classifier.getModeCode("pt");
+        int last = classifier.getNumberOfPurposes() - 1;
+        double[][] purposeModeConstants = new double[classifier.getNumberOfPurposes()][classifier.getNumberOfModes()];
+        int[][] tripPurpose = new int[classifier.getNumberOfPurposes()][classifier.getNumberOfModes()];
+        tripPurpose[0][car] = 10;
+
+        File parent = new File(utils.getOutputDirectory(), "checkpoints");
+        config.planCalcScore().getOrCreateModeParams("car").setConstant(-1.0);
+        CalibrationCheckpoint.write(parent, 5, population, scenario.getNetwork(), config.planCalcScore(), classifier,
+                purposeModeConstants, tripPurpose);
+        config.planCalcScore().getOrCreateModeParams("car").setConstant(-1.5);
+        config.planCalcScore().getOrCreateModeParams("pt").setConstant(0.7);
+        purposeModeConstants[0][car] = 0.25;
+        purposeModeConstants[last][pt] = -0.5;
+        File written = CalibrationCheckpoint.write(parent, 10, population, scenario.getNetwork(),
+                config.planCalcScore(), classifier, purposeModeConstants, tripPurpose);
+        // a later checkpoint that was interrupted before its properties were written
+        File incomplete = new File(parent, "it.15");
+        Assert.assertTrue(incomplete.mkdirs());
+        Assert.assertTrue(new File(incomplete, "plans.xml.gz").createNewFile());
+
+        CalibrationCheckpoint checkpoint = CalibrationCheckpoint.readLatest(parent);
+        Assert.assertEquals(10, checkpoint.getIteration());
+        Assert.assertEquals(written, checkpoint.getDirectory());
+        Assert.assertEquals(10, CalibrationCheckpoint.readLatest(written).getIteration());
+
+        Config resumed = ConfigUtils.createConfig();
+        checkpoint.applyTo(resumed);
+        Assert.assertEquals(-1.5, resumed.planCalcScore().getOrCreateModeParams("car").getConstant(), 1e-12);
+        Assert.assertEquals(0.7, resumed.planCalcScore().getOrCreateModeParams("pt").getConstant(), 1e-12);
+
+        Scenario resumedScenario = ScenarioUtils.createScenario(resumed);
+        new PopulationReader(resumedScenario).readFile(resumed.plans().getInputFile());
+        Person resumedPerson = resumedScenario.getPopulation().getPersons().get(Id.createPersonId("1"));
+        Assert.assertEquals(42.0, resumedPerson.getSelectedPlan().getScore(), 1e-12);
+
+        Assert.assertTrue(checkpoint.hasPurposeModeConstants());
+        double[][] constants = checkpoint.getPurposeModeConstants(new TripPurposeClassifier(resumed));
+        Assert.assertEquals(0.25, constants[0][car], 1e-12);
+        Assert.assertEquals(-0.5, constants[last][pt], 1e-12);
+        Assert.assertEquals(0.0, constants[last][car], 1e-12);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testIncompleteCheckpointIsIgnored() throws IOException {
+        File parent = new File(utils.getOutputDirectory(), "checkpoints");
+        File incomplete = new File(parent, "it.3");
+        Assert.assertTrue(incomplete.mkdirs());
+        Assert.assertTrue(new File(incomplete, "plans.xml.gz").createNewFile());
+        CalibrationCheckpoint.readLatest(parent);
+    }
+}
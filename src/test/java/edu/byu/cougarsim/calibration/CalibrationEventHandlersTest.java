@@ -0,0 +1,172 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.*;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.ParallelEventsManagerImpl;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.*;
+
+/**
+ * Checks that the partitioned calibration handlers give exactly the same results under a parallel events manager
+ * as a single partition does under the default, single-threaded one.
+ */
+public class CalibrationEventHandlersTest {
+
+    private static final int PERSONS = 2000;
+    private static final int PARTITIONS = 4;
+
+    @Test
+    public void testParallelPartitionsMatchSingleThreaded() {
+        Scenario scenario = createScenario();
+        List<Event> events = createEvents(scenario);
+
+        Result single = run(scenario, events, 1, EventsUtils.createEventsManager());
+        Result parallel = run(scenario, events, PARTITIONS, new ParallelEventsManagerImpl(PARTITIONS));
+
+        Assert.assertEquals(PERSONS * 3, sum(single.purposeModeCounts));
+        Assert.assertEquals(single.purposeModeCounts, parallel.purposeModeCounts);
+        for(int purpose = 0; purpose < single.timeBins.length; purpose++) {
+            Assert.assertArrayEquals(single.timeBins[purpose], parallel.timeBins[purpose]);
+        }
+        Assert.assertTrue(single.boardings > 0);
+        Assert.assertEquals(single.boardings, parallel.boardings);
+    }
+
+    private Result run(Scenario scenario, List<Event> eventList, int partitions, EventsManager events) {
+        TripPurposeClassifier classifier = new TripPurposeClassifier(scenario.getConfig());
+        TravelTimeCollector travelTimes = new TravelTimeCollector(classifier);
+        PurposeModeCollector purposeModes = new PurposeModeCollector(classifier);
+        CalibrationEventHandlers handlers = new CalibrationEventHandlers(scenario, classifier, partitions);
+        handlers.addCollector(travelTimes);
+        handlers.addCollector(purposeModes);
+        handlers.addTo(events);
+
+        events.resetHandlers(0);
+        events.initProcessing();
+        for(Event event : eventList) {
+            events.processEvent(event);
+        }
+        events.finishProcessing();
+        handlers.merge(0);
+
+        Result result = new Result();
+        int[][] counts = purposeModes.getPurposeModeCounts();
+        for(int purpose = 0; purpose < counts.length; purpose++) {
+            // compare by name, modes that are not in the config may be interned in a different order
+            for(int mode = 0; mode < counts[purpose].length; mode++) {
+                if(counts[purpose][mode] > 0) {
+                    result.purposeModeCounts.put(classifier.getPurposeName(purpose) + "," + classifier.getModeName(mode),
+                            counts[purpose][mode]);
+                }
+            }
+        }
+        result.timeBins = travelTimes.getTimeBins();
+        result.boardings = handlers.getBoardings().getTotalBoardings();
+        return result;
+    }
+
+    private static Scenario createScenario() {
+        Config config = ConfigUtils.createConfig();
+        config.transit().setUseTransit(true);
+        Scenario scenario = ScenarioUtils.createScenario(config);
+
+        Population population = scenario.getPopulation();
+        for(int i = 0; i < PERSONS; i++) {
+            population.addPerson(population.getFactory().createPerson(Id.createPersonId(i)));
+        }
+
+        Vehicles vehicles = scenario.getTransitVehicles();
+        VehicleType busType = vehicles.getFactory().createVehicleType(Id.create("bus", VehicleType.class));
+        vehicles.addVehicleType(busType);
+        Vehicle bus = vehicles.getFactory().createVehicle(Id.createVehicleId("bus_1"), busType);
+        vehicles.addVehicle(bus);
+
+        TransitSchedule schedule = scenario.getTransitSchedule();
+        TransitScheduleFactory factory = schedule.getFactory();
+        Id<Link> link = Id.createLinkId("1");
+        TransitStopFacility stop = factory.createTransitStopFacility(Id.create("stop", TransitStopFacility.class),
+                new Coord(0, 0), false);
+        stop.setLinkId(link);
+        schedule.addStopFacility(stop);
+        TransitRoute route = factory.createTransitRoute(Id.create("route", TransitRoute.class),
+                RouteUtils.createLinkNetworkRouteImpl(link, link),
+                Collections.singletonList(factory.createTransitRouteStop(stop, 0, 0)), "bus");
+        Departure departure = factory.createDeparture(Id.create("dep", Departure.class), 0);
+        departure.setVehicleId(bus.getId());
+        route.addDeparture(departure);
+        TransitLine line = factory.createTransitLine(Id.create("line", TransitLine.class));
+        line.addRoute(route);
+        schedule.addTransitLine(line);
+        return scenario;
+    }
+
+    /**
+     * Every person makes a home-work, a work-shop and a shop-home trip. Transit trips have walk legs around a
+     * pt interaction, so the tracker has to skip stage activities.
+     */
+    private static List<Event> createEvents(Scenario scenario) {
+        Random random = new Random(4711);
+        Id<Link> link = Id.createLinkId("1");
+        Id<Vehicle> bus = Id.createVehicleId("bus_1");
+        String[] modes = {TransportMode.car, TransportMode.pt, TransportMode.walk, TransportMode.bike};
+        String[] activities = {"home", "work", "shop", "home"};
+
+        List<Event> events = new ArrayList<>();
+        for(Person person : scenario.getPopulation().getPersons().values()) {
+            Id<Person> personId = person.getId();
+            double time = 6 * 3600 + random.nextInt(3 * 3600);
+            for(int trip = 0; trip < activities.length - 1; trip++) {
+                String mode = modes[random.nextInt(modes.length)];
+                events.add(new ActivityEndEvent(time, personId, link, null, activities[trip]));
+                if(mode.equals(TransportMode.pt)) {
+                    events.add(new PersonDepartureEvent(time, personId, link, TransportMode.transit_walk));
+                    time += 60 + random.nextInt(600);
+                    events.add(new ActivityStartEvent(time, personId, link, null, "pt interaction"));
+                    events.add(new ActivityEndEvent(time, personId, link, null, "pt interaction"));
+                    events.add(new PersonDepartureEvent(time, personId, link, TransportMode.pt));
+                    events.add(new PersonEntersVehicleEvent(time, personId, bus));
+                    time += 300 + random.nextInt(3600);
+                } else {
+                    events.add(new PersonDepartureEvent(time, personId, link, mode));
+                    time += 60 + random.nextInt(5400);
+                }
+                events.add(new ActivityStartEvent(time, personId, link, null, activities[trip + 1]));
+                time += 600 + random.nextInt(4 * 3600);
+            }
+        }
+        events.sort((a, b) -> Double.compare(a.getTime(), b.getTime()));
+        return events;
+    }
+
+    private static int sum(Map<String, Integer> counts) {
+        int sum = 0;
+        for(int count : counts.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private static final class Result {
+        Map<String, Integer> purposeModeCounts = new TreeMap<>();
+        long[][] timeBins;
+        long boardings;
+    }
+}
@@ -0,0 +1,66 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that batches of variants reach the target shares of a synthetic logit model, with as many variants as
+ * needed for finite differences and with fewer.
+ */
+public class ConstantSearchTest {
+
+    private static final double SCALE = 1.3;
+    private static final double[] UTILITIES = {0.0, -1.0, -2.5};
+    private static final double[] TARGETS = {0.5, 0.3, 0.2};
+
+    @Test
+    public void testConvergesWithFullBatches() {
+        Assert.assertEquals(0.0, search(5, 6), 0.002);
+    }
+
+    @Test
+    public void testConvergesWithOneVariant() {
+        Assert.assertEquals(0.0, search(1, 10), 0.002);
+    }
+
+    @Test
+    public void testBatchSize() {
+        ConstantSearch search = new ConstantSearch(TARGETS, new double[3], 1.0, 0.2, 1.0);
+        double[][] batch = search.proposeBatch(64);
+        Assert.assertEquals(5, batch.length);
+        Assert.assertEquals(0.2, batch[1][1], 1e-12);
+        Assert.assertEquals(-0.2, batch[4][2], 1e-12);
+        Assert.assertEquals(0.0, batch[4][0], 0.0);
+    }
+
+    private static double search(int variants, int batches) {
+        ConstantSearch search = new ConstantSearch(TARGETS, new double[3], 1.0, 0.2, 2.0);
+        double residual = 1.0;
+        for(int b = 0; b < batches; b++) {
+            double[][] batch = search.proposeBatch(variants);
+            double[][] shares = new double[batch.length][];
+            for(int v = 0; v < batch.length; v++) {
+                shares[v] = simulate(batch[v]);
+            }
+            residual = search.update(batch, shares);
+        }
+        return residual;
+    }
+
+    /**
+     * Shares of a logit model in which the constant of mode 1 also makes mode 2 a little more attractive.
+     */
+    private static double[] simulate(double[] constants) {
+        double[] weights = new double[UTILITIES.length];
+        double sum = 0;
+        for(int mode = 0; mode < UTILITIES.length; mode++) {
+            double utility = UTILITIES[mode] + constants[mode] + (mode == 2 ? 0.1 * constants[1] : 0.0);
+            weights[mode] = Math.exp(SCALE * utility);
+            sum += weights[mode];
+        }
+        for(int mode = 0; mode < weights.length; mode++) {
+            weights[mode] /= sum;
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,46 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the monitor waits for a full window, converges once the figures settle and then stops the iterations.
+ */
+public class ConvergenceMonitorTest {
+
+    @Test
+    public void testConvergesWhenFiguresSettle() {
+        ConvergenceMonitor monitor = new ConvergenceMonitor(3, 0.01, 0.05, 0.01, 100);
+        double[] carShares = {0.5, 0.6, 0.7, 0.75, 0.752, 0.748, 0.751, 0.75};
+        int converged = -1;
+        for(int iteration = 0; iteration < carShares.length && converged < 0; iteration++) {
+            double[][] shares = {{carShares[iteration], 1.0 - carShares[iteration]}};
+            if(monitor.update(iteration, shares, 1000 + iteration, Math.abs(carShares[iteration] - 0.75))) {
+                converged = iteration;
+            }
+        }
+        Assert.assertEquals(6, converged);
+        Assert.assertEquals(6, monitor.getConvergedIteration());
+        Assert.assertTrue(monitor.continueIterations(6));
+        Assert.assertFalse(monitor.continueIterations(7));
+    }
+
+    @Test
+    public void testMovingBoardingsPreventConvergence() {
+        ConvergenceMonitor monitor = new ConvergenceMonitor(2, 0.01, 0.05, 0.01, 10);
+        for(int iteration = 0; iteration < 10; iteration++) {
+            double[][] shares = {{0.8, 0.2}};
+            Assert.assertFalse(monitor.update(iteration, shares, 1000 * (1 + iteration), Double.NaN));
+        }
+        Assert.assertTrue(monitor.continueIterations(10));
+        Assert.assertFalse(monitor.continueIterations(11));
+    }
+
+    @Test
+    public void testNewModesCountAsZeroShares() {
+        ConvergenceMonitor monitor = new ConvergenceMonitor(1, 0.01, 0.05, 0.01, 10);
+        Assert.assertFalse(monitor.update(0, new double[][] {{1.0}}, 0, Double.NaN));
+        Assert.assertFalse(monitor.update(1, new double[][] {{0.9, 0.1}}, 0, Double.NaN));
+        Assert.assertEquals(0.1, monitor.getShareChange(), 1e-12);
+    }
+}
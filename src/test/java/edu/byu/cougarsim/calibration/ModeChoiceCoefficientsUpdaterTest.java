@@ -0,0 +1,61 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks that damped log-share updates move the constants towards the target shares of a synthetic logit model.
+ */
+public class ModeChoiceCoefficientsUpdaterTest {
+
+    private static final double SCALE = 1.3;
+
+    @Test
+    public void testConvergesOnLogitModel() {
+        Map<String, Double> utilities = new LinkedHashMap<>();
+        utilities.put("car", 0.0);
+        utilities.put("pt", -1.0);
+        utilities.put("walk", -2.5);
+        Map<String, Double> targets = new HashMap<>();
+        targets.put("car", 0.6);
+        targets.put("pt", 0.3);
+        targets.put("walk", 0.1);
+        ModeChoiceCoefficientsUpdater updater = new ModeChoiceCoefficientsUpdater(targets);
+        for(String mode : utilities.keySet()) {
+            updater.setConstant(mode, 0.0);
+        }
+
+        // pt starts below its target, so its first update has to make it more attractive
+        Map<String, Double> shares = simulate(utilities, updater.getConstants());
+        Assert.assertTrue(shares.get("pt") < targets.get("pt"));
+        updater.updateConstants(shares, 0.5);
+        Assert.assertTrue(updater.getConstants().get("pt") > 0.0);
+
+        for(int iteration = 0; iteration < 30; iteration++) {
+            updater.updateConstants(simulate(utilities, updater.getConstants()), 0.5);
+        }
+        shares = simulate(utilities, updater.getConstants());
+        for(String mode : utilities.keySet()) {
+            Assert.assertEquals(targets.get(mode), shares.get(mode), 1e-4);
+        }
+    }
+
+    private static Map<String, Double> simulate(Map<String, Double> utilities, Map<String, Double> constants) {
+        Map<String, Double> weights = new HashMap<>();
+        double sum = 0;
+        for(Map.Entry<String, Double> entry : utilities.entrySet()) {
+            double weight = Math.exp(SCALE * (entry.getValue() + constants.get(entry.getKey())));
+            weights.put(entry.getKey(), weight);
+            sum += weight;
+        }
+        Map<String, Double> shares = new HashMap<>();
+        for(Map.Entry<String, Double> entry : weights.entrySet()) {
+            shares.put(entry.getKey(), entry.getValue() / sum);
+        }
+        return shares;
+    }
+}
@@ -0,0 +1,54 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the solver reaches the target shares of a synthetic logit model within a few updates.
+ */
+public class ModeConstantSolverTest {
+
+    private static final double SCALE = 1.3;
+    private static final int TRIPS = 100000;
+
+    @Test
+    public void testConvergesOnLogitModel() {
+        double[] utilities = {0.0, -1.0, -2.5};
+        ModeConstantSolver solver = new ModeConstantSolver(new int[]{0}, new int[][]{{0, 1, 2}},
+                new double[][]{{0.5, 0.3, 0.2}}, 1, 3, 1.0, 1.0, 2.0);
+
+        double residual = 1.0;
+        for(int iteration = 0; iteration < 8; iteration++) {
+            residual = solver.update(simulate(utilities, solver.getConstants()));
+        }
+        Assert.assertEquals(0.0, residual, 0.002);
+        Assert.assertEquals(0.0, solver.getConstants()[0][0], 0.0);
+    }
+
+    @Test
+    public void testStepLimit() {
+        ModeConstantSolver solver = new ModeConstantSolver(new int[]{0}, new int[][]{{0, 1}},
+                new double[][]{{0.5, 0.5}}, 1, 2, 1.0, 1.0, 0.25);
+        solver.update(new int[][]{{999, 1}});
+        Assert.assertEquals(0.25, solver.getConstants()[0][1], 1e-12);
+    }
+
+    /**
+     * Trip counts of a logit model in which the constant of mode 1 also makes mode 2 a little more attractive,
+     * so the modes are not independent.
+     */
+    private static int[][] simulate(double[] utilities, double[][] constants) {
+        double[] weights = new double[utilities.length];
+        double sum = 0;
+        for(int mode = 0; mode < utilities.length; mode++) {
+            double utility = utilities[mode] + constants[0][mode] + (mode == 2 ? 0.1 * constants[0][1] : 0.0);
+            weights[mode] = Math.exp(SCALE * utility);
+            sum += weights[mode];
+        }
+        int[][] counts = new int[1][utilities.length];
+        for(int mode = 0; mode < utilities.length; mode++) {
+            counts[0][mode] = (int) Math.round(TRIPS * weights[mode] / sum);
+        }
+        return counts;
+    }
+}
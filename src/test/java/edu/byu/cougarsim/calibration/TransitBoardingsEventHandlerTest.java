@@ -0,0 +1,105 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.TransitDriverStartsEvent;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.Collections;
+
+/**
+ * Checks that boardings are booked to the right route and departure when two lines have routes and departures with
+ * the same ids, which MATSim allows.
+ */
+public class TransitBoardingsEventHandlerTest {
+
+    private static final String[] LINES = {"red", "blue"};
+
+    @Test
+    public void testLinesSharingRouteIds() {
+        Scenario scenario = createScenario();
+        TransitIndex transitIndex = new TransitIndex(scenario);
+        Assert.assertEquals(2, transitIndex.getNumberOfRoutes());
+        Assert.assertEquals(2, transitIndex.getNumberOfDepartures());
+
+        int[] routes = new int[LINES.length];
+        for(int l = 0; l < LINES.length; l++) {
+            Id<TransitLine> line = Id.create(LINES[l], TransitLine.class);
+            routes[l] = transitIndex.getRouteIndex(line, Id.create("1", TransitRoute.class));
+            Assert.assertEquals(transitIndex.getLineIndex(line), transitIndex.getRouteLine(routes[l]));
+            int departure = transitIndex.getDepartureIndex(routes[l], Id.create("1", Departure.class));
+            Assert.assertEquals(routes[l], transitIndex.getDepartureRoute(departure));
+        }
+        Assert.assertNotEquals(routes[0], routes[1]);
+
+        TransitBoardingsEventHandler handler = new TransitBoardingsEventHandler(transitIndex);
+        handler.reset(0);
+        // one boarding on the red bus, two on the blue one
+        for(int l = 0; l < LINES.length; l++) {
+            Id<Vehicle> bus = Id.createVehicleId(LINES[l]);
+            handler.handleEvent(new TransitDriverStartsEvent(7 * 3600, Id.createPersonId("pt_" + LINES[l]), bus,
+                    Id.create(LINES[l], TransitLine.class), Id.create("1", TransitRoute.class),
+                    Id.create("1", Departure.class)));
+            handler.handleEvent(new VehicleArrivesAtFacilityEvent(7 * 3600, bus,
+                    Id.create("stop", TransitStopFacility.class), 0));
+            for(int p = 0; p <= l; p++) {
+                Id<Person> person = Id.createPersonId(LINES[l] + p);
+                handler.handleEvent(new PersonEntersVehicleEvent(7 * 3600 + 10, person, bus));
+            }
+        }
+
+        for(int l = 0; l < LINES.length; l++) {
+            int departure = transitIndex.getDepartureIndex(routes[l], Id.create("1", Departure.class));
+            Assert.assertEquals(l + 1, handler.getRouteBoardings()[routes[l]]);
+            Assert.assertEquals(l + 1, handler.getDepartureBoardings()[departure]);
+            Assert.assertEquals(l + 1, handler.getLineBoardings()[transitIndex.getRouteLine(routes[l])]);
+        }
+        Assert.assertEquals(3, handler.getTotalBoardings());
+    }
+
+    private static Scenario createScenario() {
+        Config config = ConfigUtils.createConfig();
+        config.transit().setUseTransit(true);
+        Scenario scenario = ScenarioUtils.createScenario(config);
+
+        Vehicles vehicles = scenario.getTransitVehicles();
+        VehicleType busType = vehicles.getFactory().createVehicleType(Id.create("bus", VehicleType.class));
+        vehicles.addVehicleType(busType);
+
+        TransitSchedule schedule = scenario.getTransitSchedule();
+        TransitScheduleFactory factory = schedule.getFactory();
+        Id<Link> link = Id.createLinkId("1");
+        TransitStopFacility stop = factory.createTransitStopFacility(Id.create("stop", TransitStopFacility.class),
+                new Coord(0, 0), false);
+        stop.setLinkId(link);
+        schedule.addStopFacility(stop);
+        for(String name : LINES) {
+            Vehicle bus = vehicles.getFactory().createVehicle(Id.createVehicleId(name), busType);
+            vehicles.addVehicle(bus);
+            TransitRoute route = factory.createTransitRoute(Id.create("1", TransitRoute.class),
+                    RouteUtils.createLinkNetworkRouteImpl(link, link),
+                    Collections.singletonList(factory.createTransitRouteStop(stop, 0, 0)), "bus");
+            Departure departure = factory.createDeparture(Id.create("1", Departure.class), 7 * 3600);
+            departure.setVehicleId(bus.getId());
+            route.addDeparture(departure);
+            TransitLine line = factory.createTransitLine(Id.create(name, TransitLine.class));
+            line.addRoute(route);
+            schedule.addTransitLine(line);
+        }
+        return scenario;
+    }
+}
@@ -0,0 +1,125 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.TransitDriverStartsEvent;
+import org.matsim.core.api.experimental.events.VehicleArrivesAtFacilityEvent;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the loads, passenger-kilometers and peak loads of a bus over the two segments of a three-stop route.
+ */
+public class TransitLoadCollectorTest {
+
+    @Test
+    public void testLoadsBySegment() {
+        Scenario scenario = createScenario();
+        TransitIndex transitIndex = new TransitIndex(scenario);
+        TransitLoadCollector collector = new TransitLoadCollector(scenario, transitIndex, 1.0);
+        collector.reset(0);
+
+        Id<Vehicle> bus = Id.createVehicleId("bus_1");
+        Id<Person> driver = Id.createPersonId("pt_bus_1");
+        Id<Person> first = Id.createPersonId("1");
+        Id<Person> second = Id.createPersonId("2");
+        Id<Person> third = Id.createPersonId("3");
+        collector.handleEvent(new TransitDriverStartsEvent(7 * 3600, driver, bus, Id.create("line", TransitLine.class),
+                Id.create("route", TransitRoute.class), Id.create("dep", Departure.class)));
+        collector.handleEvent(new PersonEntersVehicleEvent(7 * 3600, driver, bus));
+        collector.handleEvent(new VehicleArrivesAtFacilityEvent(7 * 3600 + 60, bus, stop("a"), 0));
+        collector.handleEvent(new PersonEntersVehicleEvent(7 * 3600 + 70, first, bus));
+        collector.handleEvent(new PersonEntersVehicleEvent(7 * 3600 + 80, second, bus));
+        collector.handleEvent(new VehicleArrivesAtFacilityEvent(7 * 3600 + 300, bus, stop("b"), 0));
+        collector.handleEvent(new PersonLeavesVehicleEvent(7 * 3600 + 310, first, bus));
+        collector.handleEvent(new PersonEntersVehicleEvent(7 * 3600 + 320, third, bus));
+        collector.handleEvent(new PersonLeavesVehicleEvent(7 * 3600 + 320, second, bus));
+        collector.handleEvent(new VehicleArrivesAtFacilityEvent(8 * 3600 + 60, bus, stop("c"), 0));
+        collector.handleEvent(new PersonLeavesVehicleEvent(8 * 3600 + 70, third, bus));
+
+        int route = transitIndex.getRouteIndex(Id.create("line", TransitLine.class),
+                Id.create("route", TransitRoute.class));
+        int ab = collector.getSegment(route, 0) * TransitLoadCollector.HOURS + 7;
+        int bc = collector.getSegment(route, 1) * TransitLoadCollector.HOURS + 7;
+        Assert.assertEquals(1, collector.getDepartures()[ab]);
+        Assert.assertEquals(2, collector.getPeakLoads()[ab]);
+        // two passengers over the 2 km link b, then one over the 3 km link c
+        Assert.assertEquals(4.0, collector.getPassengerKilometers()[ab], 1e-9);
+        Assert.assertEquals(1, collector.getPeakLoads()[bc]);
+        Assert.assertEquals(3.0, collector.getPassengerKilometers()[bc], 1e-9);
+        Assert.assertEquals(7.0, collector.getLinePassengerKilometers()[0], 1e-9);
+    }
+
+    private static Id<TransitStopFacility> stop(String name) {
+        return Id.create(name, TransitStopFacility.class);
+    }
+
+    private static Scenario createScenario() {
+        Config config = ConfigUtils.createConfig();
+        config.transit().setUseTransit(true);
+        Scenario scenario = ScenarioUtils.createScenario(config);
+
+        Network network = scenario.getNetwork();
+        NetworkFactory networkFactory = network.getFactory();
+        Node[] nodes = new Node[4];
+        double[] x = {0, 1000, 3000, 6000};
+        for(int n = 0; n < nodes.length; n++) {
+            nodes[n] = networkFactory.createNode(Id.createNodeId(n), new Coord(x[n], 0));
+            network.addNode(nodes[n]);
+        }
+        List<Id<Link>> links = new ArrayList<>();
+        for(int l = 0; l < 3; l++) {
+            Link link = networkFactory.createLink(Id.createLinkId(l), nodes[l], nodes[l + 1]);
+            link.setLength(x[l + 1] - x[l]);
+            network.addLink(link);
+            links.add(link.getId());
+        }
+
+        Vehicles vehicles = scenario.getTransitVehicles();
+        VehicleType busType = vehicles.getFactory().createVehicleType(Id.create("bus", VehicleType.class));
+        vehicles.addVehicleType(busType);
+        Vehicle bus = vehicles.getFactory().createVehicle(Id.createVehicleId("bus_1"), busType);
+        vehicles.addVehicle(bus);
+
+        TransitSchedule schedule = scenario.getTransitSchedule();
+        TransitScheduleFactory factory = schedule.getFactory();
+        List<TransitRouteStop> stops = new ArrayList<>();
+        String[] names = {"a", "b", "c"};
+        for(int s = 0; s < names.length; s++) {
+            TransitStopFacility stop = factory.createTransitStopFacility(stop(names[s]), new Coord(x[s + 1], 0), false);
+            stop.setLinkId(links.get(s));
+            schedule.addStopFacility(stop);
+            stops.add(factory.createTransitRouteStop(stop, s * 300, s * 300));
+        }
+        TransitRoute route = factory.createTransitRoute(Id.create("route", TransitRoute.class),
+                RouteUtils.createLinkNetworkRouteImpl(links.get(0), Arrays.asList(links.get(1)), links.get(2)),
+                stops, "bus");
+        Departure departure = factory.createDeparture(Id.create("dep", Departure.class), 7 * 3600);
+        departure.setVehicleId(bus.getId());
+        route.addDeparture(departure);
+        TransitLine line = factory.createTransitLine(Id.create("line", TransitLine.class));
+        line.addRoute(route);
+        schedule.addTransitLine(line);
+        return scenario;
+    }
+}
@@ -0,0 +1,126 @@
+package edu.byu.cougarsim.calibration;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.pt.transitSchedule.api.*;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Checks that every column of the trips, and the names in the header, read back from a trip log that spans more
+ * than one block, and that the collector and its shards drop the trips of iterations without a log.
+ */
+public class TripLogCollectorTest {
+
+    @Rule public MatsimTestUtils utils = new MatsimTestUtils();
+
+    private static final int TRIPS = TripLogCollector.BLOCK_SIZE + 1000;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Scenario scenario = createScenario();
+        TripPurposeClassifier classifier = new TripPurposeClassifier(scenario.getConfig());
+        TransitIndex transitIndex = new TransitIndex(scenario);
+        TripLogCollector collector = new TripLogCollector(classifier, transitIndex);
+        collector.reset(0);
+
+        TripRecord trip = new TripRecord();
+        for(int i = 0; i < TRIPS; i++) {
+            fill(trip, i, classifier);
+            collector.handleTrip(trip);
+        }
+        Assert.assertEquals(TRIPS, collector.size());
+
+        // the copy is what the listener writes while the collector is reset for the next iteration
+        TripLogCollector copy = collector.copy();
+        collector.reset(1);
+        File file = new File(utils.getOutputDirectory(), "trips.bin");
+        copy.write(file);
+
+        try (TripLogReader reader = new TripLogReader(file)) {
+            Assert.assertEquals(TRIPS, reader.size());
+            Assert.assertEquals(classifier.getPurposes(), reader.getPurposes());
+            Assert.assertEquals(classifier.getModes(), reader.getModes());
+            Assert.assertEquals(Collections.singletonList("red"), reader.getLines());
+            Assert.assertEquals(Collections.singletonList("1"), reader.getRoutes());
+
+            int last = TripLogCollector.BLOCK_SIZE;
+            for(int i : new int[] {0, 1, last - 1, last, last + 1, TRIPS - 1}) {
+                fill(trip, i, classifier);
+                Assert.assertEquals(trip.getPersonIndex(), reader.getPersonIndex(i));
+                Assert.assertEquals(Math.round(trip.getDepartureTime()), reader.getDepartureTime(i));
+                Assert.assertEquals(Math.round(trip.getArrivalTime()), reader.getArrivalTime(i));
+                Assert.assertEquals(trip.getRoute(), reader.getRoute(i));
+                Assert.assertEquals(trip.getLine(), reader.getLine(i));
+                Assert.assertEquals(trip.getPurpose(), reader.getPurpose(i));
+                Assert.assertEquals(trip.getMode(), reader.getMode(i));
+            }
+        }
+    }
+
+    @Test
+    public void testNotLoggedIterationDropsTrips() {
+        Scenario scenario = createScenario();
+        TripPurposeClassifier classifier = new TripPurposeClassifier(scenario.getConfig());
+        TripLogCollector collector = new TripLogCollector(classifier, new TransitIndex(scenario));
+        TripCollector shard = collector.newShard();
+        TripRecord trip = new TripRecord();
+        fill(trip, 1, classifier);
+
+        collector.setLogged(false);
+        shard.handleTrip(trip);
+        collector.merge(shard);
+        Assert.assertEquals(0, collector.size());
+
+        collector.setLogged(true);
+        shard.handleTrip(trip);
+        collector.merge(shard);
+        Assert.assertEquals(1, collector.size());
+    }
+
+    private static void fill(TripRecord trip, int i, TripPurposeClassifier classifier) {
+        trip.personIndex = i;
+        trip.departureTime = 6 * 3600 + i + 0.4;
+        trip.arrivalTime = 6 * 3600 + 2 * i + 600.6;
+        boolean transit = i % 3 == 0;
+        trip.route = transit ? 0 : -1;
+        trip.line = transit ? 0 : -1;
+        trip.purpose = i % classifier.getNumberOfPurposes();
+        trip.mode = i % classifier.getNumberOfModes();
+    }
+
+    private static Scenario createScenario() {
+        Config config = ConfigUtils.createConfig();
+        config.transit().setUseTransit(true);
+        Scenario scenario = ScenarioUtils.createScenario(config);
+
+        TransitSchedule schedule = scenario.getTransitSchedule();
+        TransitScheduleFactory factory = schedule.getFactory();
+        Id<Link> link = Id.createLinkId("1");
+        TransitStopFacility stop = factory.createTransitStopFacility(Id.create("stop", TransitStopFacility.class),
+                new Coord(0, 0), false);
+        stop.setLinkId(link);
+        schedule.addStopFacility(stop);
+        TransitRoute route = factory.createTransitRoute(Id.create("1", TransitRoute.class),
+                RouteUtils.createLinkNetworkRouteImpl(link, link),
+                Arrays.asList(factory.createTransitRouteStop(stop, 0, 0)), "bus");
+        route.addDeparture(factory.createDeparture(Id.create("1", Departure.class), 7 * 3600));
+        TransitLine line = factory.createTransitLine(Id.create("red", TransitLine.class));
+        line.addRoute(route);
+        schedule.addTransitLine(line);
+        return scenario;
+    }
+}
@@ -0,0 +1,122 @@
+package org.matsim.run;
+
+import edu.byu.cougarsim.calibration.CalibrationControlerListener;
+import org.apache.log4j.Logger;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.ShutdownListener;
+import org.matsim.testcases.MatsimTestUtils;
+
+import javax.inject.Inject;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * Runs a few iterations of equil scaled to production sizes and reports, per size and iteration, the wall time, the
+ * time of the calibration listener at the end of the iteration and the peak heap.
+ *
+ * The test is skipped unless the sizes are given, e.g.
+ * <code>mvn test -Dtest=ScalingTest -Dscaling.sizes=10000,100000,1000000 -Dscaling.iterations=3</code>; give the
+ * JVM enough heap for the largest size through <code>argLine</code>. The report is written to
+ * <code>scaling_report.csv</code> in the test output directory, or to the file in <code>scaling.report</code>.
+ */
+public class ScalingTest {
+	private static final Logger log = Logger.getLogger(ScalingTest.class);
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public final void test() throws IOException {
+		String sizes = System.getProperty("scaling.sizes");
+		Assume.assumeTrue("no scaling.sizes given", sizes != null && !sizes.isEmpty());
+		int iterations = Integer.getInteger("scaling.iterations", 3);
+		File report = new File(System.getProperty("scaling.report", utils.getOutputDirectory() + "scaling_report.csv"));
+
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(report))) {
+			out.write("Agents, Iteration, WallSeconds, ListenerSeconds, PeakHeapMB\n");
+			for(String size : sizes.split(",")) {
+				int agents = Integer.parseInt(size.trim());
+				File scenario = new File(utils.getOutputDirectory(), "scenario_" + agents);
+				File configFile = ScaleEquilScenario.generate(ConfigUtils.loadConfig("scenarios/equil/config.xml"),
+						agents, scenario, 0.2);
+
+				Config config = ConfigUtils.loadConfig(configFile.getPath());
+				config.controler().setLastIteration(iterations - 1);
+				config.controler().setWriteEventsInterval(0);
+				config.controler().setWritePlansInterval(0);
+				config.controler().setCreateGraphs(false);
+				config.controler().setOutputDirectory(utils.getOutputDirectory() + "run_" + agents);
+
+				Controler controler = RunMatsim.prepareControler(config);
+				ScalingMonitor monitor = new ScalingMonitor(agents, out);
+				controler.addOverridingModule(new AbstractModule() {
+					@Override
+					public void install() {
+						this.addControlerListenerBinding().toInstance(monitor);
+					}
+				});
+				controler.run();
+				out.flush();
+			}
+		}
+		log.info("Wrote scaling report to " + report);
+	}
+
+	/**
+	 * Writes the row of an iteration when the next one starts, so the row holds the whole iteration, including the
+	 * listeners that run after this one.
+	 */
+	static class ScalingMonitor implements IterationStartsListener, ShutdownListener {
+
+		@Inject CalibrationControlerListener calibration;
+
+		private final int agents;
+		private final Writer out;
+		private int iteration = -1;
+		private long iterationStart;
+
+		ScalingMonitor(int agents, Writer out) {
+			this.agents = agents;
+			this.out = out;
+		}
+
+		@Override
+		public void notifyIterationStarts(IterationStartsEvent event) {
+			writeRow();
+			iteration = event.getIteration();
+			iterationStart = System.nanoTime();
+			for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				pool.resetPeakUsage();
+			}
+		}
+
+		@Override
+		public void notifyShutdown(ShutdownEvent event) {
+			writeRow();
+		}
+
+		private void writeRow() {
+			if(iteration < 0) return;
+			long peakHeap = 0;
+			for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if(pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+			}
+			try {
+				out.write(agents + ", " + iteration + ", " + (System.nanoTime() - iterationStart) / 1e9 + ", " +
+						calibration.getIterationEndsNanos() / 1e9 + ", " + peakHeap / (1024 * 1024) + "\n");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.matsim.run;
+
+import edu.byu.cougarsim.calibration.CalibrationConfigGroup;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Checks that a scenario read from its snapshot has the same network and selected plans as the one parsed from XML,
+ * and that the snapshot is written on the first load and used on the second.
+ */
+public class ScenarioSnapshotTest {
+
+	@Rule public MatsimTestUtils utils = new MatsimTestUtils() ;
+
+	@Test
+	public void testRoundTrip() {
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		CalibrationConfigGroup calibrationConfig = ConfigUtils.addOrGetModule(config,
+				CalibrationConfigGroup.GROUP_NAME, CalibrationConfigGroup.class);
+		calibrationConfig.setScenarioSnapshotDirectory(utils.getOutputDirectory());
+
+		Scenario parsed = ScenarioSnapshot.loadScenario(config);
+		File[] snapshots = new File(utils.getOutputDirectory()).listFiles((dir, name) -> name.endsWith(".snapshot"));
+		Assert.assertEquals(1, snapshots.length);
+		Scenario loaded = ScenarioSnapshot.loadScenario(config);
+
+		Assert.assertEquals(parsed.getNetwork().getNodes().size(), loaded.getNetwork().getNodes().size());
+		Assert.assertEquals(parsed.getNetwork().getLinks().size(), loaded.getNetwork().getLinks().size());
+		for(Link link : parsed.getNetwork().getLinks().values()) {
+			Link other = loaded.getNetwork().getLinks().get(link.getId());
+			Assert.assertEquals(link.getToNode().getId(), other.getToNode().getId());
+			Assert.assertEquals(link.getLength(), other.getLength(), 0.0);
+			Assert.assertEquals(link.getCapacity(), other.getCapacity(), 0.0);
+			Assert.assertEquals(link.getAllowedModes(), other.getAllowedModes());
+		}
+
+		Assert.assertEquals(parsed.getPopulation().getPersons().size(), loaded.getPopulation().getPersons().size());
+		for(Person person : parsed.getPopulation().getPersons().values()) {
+			List<PlanElement> elements = person.getSelectedPlan().getPlanElements();
+			List<PlanElement> otherElements = loaded.getPopulation().getPersons().get(person.getId())
+					.getSelectedPlan().getPlanElements();
+			Assert.assertEquals(elements.size(), otherElements.size());
+			for(int e = 0; e < elements.size(); e++) {
+				if(elements.get(e) instanceof Activity) {
+					Activity activity = (Activity) elements.get(e);
+					Activity other = (Activity) otherElements.get(e);
+					Assert.assertEquals(activity.getType(), other.getType());
+					Assert.assertEquals(activity.getLinkId(), other.getLinkId());
+					Assert.assertEquals(activity.getEndTime(), other.getEndTime(), 0.0);
+				} else {
+					Leg leg = (Leg) elements.get(e);
+					Leg other = (Leg) otherElements.get(e);
+					Assert.assertEquals(leg.getMode(), other.getMode());
+					Assert.assertEquals(leg.getRoute() == null, other.getRoute() == null);
+					if(leg.getRoute() != null) {
+						Assert.assertEquals(leg.getRoute().getRouteDescription(), other.getRoute().getRouteDescription());
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testChangedInputGetsNewSnapshot() throws Exception {
+		Config config = ConfigUtils.loadConfig("scenarios/equil/config.xml");
+		String key = ScenarioSnapshot.key(config);
+		Assert.assertEquals(key, ScenarioSnapshot.key(ConfigUtils.loadConfig("scenarios/equil/config.xml")));
+		config.plans().setInputFile(null);
+		Assert.assertNotEquals(key, ScenarioSnapshot.key(config));
+	}
+}